@@ -0,0 +1,100 @@
+package com.kisielewicz.finanteq.benchmark;
+
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conflict checks done by {@link com.kisielewicz.finanteq.service.ReservationService} before saving a reservation,
+ * with the availability index holding a varying number of reservations per room.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvailabilityBenchmark {
+
+    private static final int ROOMS = 100;
+    private static final int HORIZON_DAYS = 365;
+    private static final int QUERIES = 1024;
+
+    @Param({"1", "10", "100"})
+    private int reservationsPerRoom;
+
+    private RoomAvailabilityIndex availabilityIndex;
+
+    private final long[] roomIds = new long[QUERIES];
+    private final LocalDate[] startDates = new LocalDate[QUERIES];
+    private final LocalDate[] endDates = new LocalDate[QUERIES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        LocalDate today = LocalDate.now();
+        int gap = HORIZON_DAYS / reservationsPerRoom;
+        List<Long> rooms = new ArrayList<>();
+        List<Booking> bookings = new ArrayList<>();
+        long reservationId = 0;
+        for (long roomId = 1; roomId <= ROOMS; roomId++) {
+            rooms.add(roomId);
+            for (int i = 0; i < reservationsPerRoom; i++) {
+                LocalDate startDate = today.plusDays((long) i * gap);
+                bookings.add(new Booking(++reservationId, roomId, startDate, startDate.plusDays(Math.max(1, gap / 2))));
+            }
+        }
+        availabilityIndex = new RoomAvailabilityIndex(null, null, HORIZON_DAYS);
+        availabilityIndex.load(rooms, bookings);
+
+        Random random = new Random(42);
+        for (int i = 0; i < QUERIES; i++) {
+            roomIds[i] = 1 + random.nextInt(ROOMS);
+            startDates[i] = today.plusDays(random.nextInt(HORIZON_DAYS - 7));
+            endDates[i] = startDates[i].plusDays(1 + random.nextInt(7));
+        }
+    }
+
+    @Benchmark
+    public boolean isFree() {
+        int i = nextQuery();
+        return availabilityIndex.isFree(roomIds[i], startDates[i], endDates[i], null);
+    }
+
+    @Benchmark
+    public Booking tryBookAndRelease() {
+        int i = nextQuery();
+        Booking booking = availabilityIndex.tryBook(roomIds[i], startDates[i], endDates[i], null);
+        if (booking != null) {
+            availabilityIndex.release(booking);
+        }
+        return booking;
+    }
+
+    @Benchmark
+    public List<Long> findFreeRooms() {
+        int i = nextQuery();
+        return availabilityIndex.findFreeRooms(startDates[i], endDates[i]);
+    }
+
+    private int nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+}
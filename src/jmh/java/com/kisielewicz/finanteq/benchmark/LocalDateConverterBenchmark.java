@@ -0,0 +1,40 @@
+package com.kisielewicz.finanteq.benchmark;
+
+import com.kisielewicz.finanteq.converters.LocalDatePersistenceConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalDateConverterBenchmark {
+
+    private final LocalDatePersistenceConverter converter = new LocalDatePersistenceConverter();
+
+    private final LocalDate localDate = LocalDate.of(2017, 11, 28);
+    private final Date sqlDate = Date.valueOf(localDate);
+
+    @Benchmark
+    public Date toDatabaseColumn() {
+        return converter.convertToDatabaseColumn(localDate);
+    }
+
+    @Benchmark
+    public LocalDate toEntityAttribute() {
+        return converter.convertToEntityAttribute(sqlDate);
+    }
+}
@@ -0,0 +1,109 @@
+package com.kisielewicz.finanteq.benchmark;
+
+import com.kisielewicz.finanteq.FinanteqApplication;
+import com.kisielewicz.finanteq.domain.Reservation;
+import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.exceptions.ConflictException;
+import com.kisielewicz.finanteq.service.ReservationService;
+import com.kisielewicz.finanteq.service.RoomService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Make and cancel round trips through {@link ReservationService} backed by an embedded H2 database.
+ * H2 runs in its default mode, as Flyway 3.2 can't find the schema of an H2 database in MySQL mode.
+ * Run with {@code -Djmh.args="-t 8 ReservationServiceBenchmark"} to try other thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReservationServiceBenchmark {
+
+    private static final int BOOKABLE_DAYS = 3000;
+    private static final int MAX_STAY_DAYS = 7;
+
+    @Param({"100"})
+    private int rooms;
+
+    private ConfigurableApplicationContext context;
+    private ReservationService reservationService;
+    private final List<Long> roomIds = new ArrayList<>();
+
+    @Setup
+    public void setUp() {
+        context = new SpringApplicationBuilder(FinanteqApplication.class)
+                .bannerMode(Banner.Mode.OFF)
+                .run("--spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                        "--spring.datasource.driver-class-name=org.h2.Driver",
+                        "--spring.datasource.username=sa",
+                        "--spring.datasource.password=sa",
+                        "--spring.jpa.database=H2",
+                        "--spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+                        "--spring.jpa.hibernate.ddl-auto=none",
+                        "--server.port=0",
+                        "--logging.level.root=WARN");
+        reservationService = context.getBean(ReservationService.class);
+        RoomService roomService = context.getBean(RoomService.class);
+        for (int i = 0; i < rooms; i++) {
+            roomIds.add(roomService.addNewRoom().getId());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Reservation makeAndCancel() {
+        return makeAndCancelRandomReservation();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Reservation makeAndCancelConcurrently() {
+        return makeAndCancelRandomReservation();
+    }
+
+    private Reservation makeAndCancelRandomReservation() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        LocalDate startDate = LocalDate.now().plusDays(1 + random.nextInt(BOOKABLE_DAYS));
+        ReservationDTO reservationDTO = new ReservationDTO();
+        reservationDTO.setRoomId(roomIds.get(random.nextInt(roomIds.size())));
+        reservationDTO.setStartDate(startDate);
+        reservationDTO.setEndDate(startDate.plusDays(1 + random.nextInt(MAX_STAY_DAYS)));
+        reservationDTO.setMail("benchmark@mail.com");
+        try {
+            Reservation reservation = reservationService.makeReservation(reservationDTO);
+            reservationService.cancelReservation(reservation.getId());
+            return reservation;
+        } catch (ConflictException e) {
+            // another thread holds an overlapping reservation of the room at the moment
+            return null;
+        }
+    }
+}
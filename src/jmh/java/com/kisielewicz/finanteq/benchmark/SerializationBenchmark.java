@@ -0,0 +1,112 @@
+package com.kisielewicz.finanteq.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kisielewicz.finanteq.FinanteqApplication;
+import com.kisielewicz.finanteq.domain.Reservation;
+import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.dto.ReservationColumnsDTO;
+import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON (de)serialization of controller responses and requests, done with the application's {@link ObjectMapper}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private static final int LIST_SIZE = 100;
+
+    private ObjectMapper objectMapper;
+    private Room room;
+    private Reservation reservation;
+    private List<Reservation> reservations;
+    private List<ReservationSummaryDTO> summaries;
+    private byte[] reservationDTOJson;
+
+    @Setup
+    public void setUp() throws IOException {
+        objectMapper = new FinanteqApplication().objectMapper(false);
+        reservations = new ArrayList<>(LIST_SIZE);
+        for (int i = 0; i < LIST_SIZE; i++) {
+            reservations.add(reservation(i));
+        }
+        summaries = new ArrayList<>(LIST_SIZE);
+        for (Reservation listed : reservations) {
+            summaries.add(new ReservationSummaryDTO(listed.getId(), listed.getRoom().getId(),
+                    listed.getStartDate(), listed.getEndDate()));
+        }
+        reservation = reservations.get(0);
+        room = reservation.getRoom();
+
+        ReservationDTO reservationDTO = new ReservationDTO();
+        reservationDTO.setStartDate(reservation.getStartDate());
+        reservationDTO.setEndDate(reservation.getEndDate());
+        reservationDTO.setRoomId(room.getId());
+        reservationDTO.setMail(reservation.getMail());
+        reservationDTOJson = objectMapper.writeValueAsBytes(reservationDTO);
+    }
+
+    @Benchmark
+    public byte[] writeRoom() throws IOException {
+        return objectMapper.writeValueAsBytes(room);
+    }
+
+    @Benchmark
+    public byte[] writeReservation() throws IOException {
+        return objectMapper.writeValueAsBytes(reservation);
+    }
+
+    @Benchmark
+    public byte[] writeReservationList() throws IOException {
+        return objectMapper.writeValueAsBytes(reservations);
+    }
+
+    @Benchmark
+    public byte[] writeReservationSummaryList() throws IOException {
+        return objectMapper.writeValueAsBytes(summaries);
+    }
+
+    @Benchmark
+    public byte[] writeReservationColumns() throws IOException {
+        return objectMapper.writeValueAsBytes(ReservationColumnsDTO.of(summaries));
+    }
+
+    @Benchmark
+    public ReservationDTO readReservationDTO() throws IOException {
+        return objectMapper.readValue(reservationDTOJson, ReservationDTO.class);
+    }
+
+    private static Reservation reservation(long id) {
+        Room room = new Room();
+        room.setId(id % 10 + 1);
+        room.setIsReserved(false);
+        Reservation reservation = new Reservation();
+        reservation.setId(id);
+        reservation.setStartDate(LocalDate.of(2017, 11, 28).plusDays(id));
+        reservation.setEndDate(LocalDate.of(2017, 12, 3).plusDays(id));
+        reservation.setRoom(room);
+        reservation.setMail("guest" + id + "@mail.com");
+        return reservation;
+    }
+}
@@ -3,6 +3,7 @@ package com.kisielewicz.finanteq;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -17,7 +18,7 @@ import org.springframework.scheduling.annotation.EnableScheduling;
 @EnableScheduling
 @ComponentScan({"com.kisielewicz.finanteq.domain", "com.kisielewicz.finanteq.repository",
 	"com.kisielewicz.finanteq.service", "com.kisielewicz.finanteq.spring.configuration", "com.kisielewicz.finanteq.web",
-	"com.kisielewicz.finanteq.helpers"})
+	"com.kisielewicz.finanteq.helpers", "com.kisielewicz.finanteq.availability", "com.kisielewicz.finanteq.metrics"})
 @EnableSpringDataWebSupport
 @EnableAutoConfiguration(exclude = RepositoryRestMvcAutoConfiguration.class)
 public class FinanteqApplication extends SpringBootServletInitializer {
@@ -27,10 +28,10 @@ public class FinanteqApplication extends SpringBootServletInitializer {
 	}
 
 	@Bean
-	public ObjectMapper objectMapper() {
+	public ObjectMapper objectMapper(@Value("${json.indent-output:false}") boolean indentOutput) {
 
 		ObjectMapper objectMapper = new ObjectMapper();
-		objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
+		objectMapper.configure(SerializationFeature.INDENT_OUTPUT, indentOutput);
 		objectMapper.registerModule(new JavaTimeModule());
 		objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
 
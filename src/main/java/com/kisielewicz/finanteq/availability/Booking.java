@@ -0,0 +1,39 @@
+package com.kisielewicz.finanteq.availability;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.LocalDate;
+
+/**
+ * Booked date range of a single room, kept as half-open [startDay, endDay) range of epoch days.
+ * Bookings without reservation id are pending - not yet committed to the database.
+ */
+@Getter
+@ToString
+public final class Booking {
+
+    private final Long reservationId;
+    private final long roomId;
+    private final long startDay;
+    private final long endDay;
+
+    public Booking(Long reservationId, Long roomId, LocalDate startDate, LocalDate endDate) {
+        this(reservationId, roomId, startDate.toEpochDay(), endDate.toEpochDay());
+    }
+
+    public Booking(Long reservationId, long roomId, long startDay, long endDay) {
+        this.reservationId = reservationId;
+        this.roomId = roomId;
+        this.startDay = startDay;
+        this.endDay = endDay;
+    }
+
+    public boolean overlaps(long start, long end) {
+        return startDay < end && endDay > start;
+    }
+
+    Booking withReservationId(long reservationId) {
+        return new Booking(reservationId, roomId, startDay, endDay);
+    }
+}
@@ -0,0 +1,107 @@
+package com.kisielewicz.finanteq.availability;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Single change of the availability index as stored in the journal: fixed size binary record of operation code,
+ * reservation id - or property id of an added room - room id and epoch-day start and end, followed by CRC32 of those,
+ * so a record torn by a crash is recognized and the journal is read up to it.
+ */
+@Getter
+@ToString
+final class JournalRecord {
+
+    enum Op {
+        BOOK, CANCEL, ADD_ROOM, REMOVE_ROOM;
+
+        private byte code() {
+            // 0 is left for the zeroed, never written part of a segment
+            return (byte) (ordinal() + 1);
+        }
+
+        private static Op of(byte code) {
+            return code > 0 && code <= values().length ? values()[code - 1] : null;
+        }
+    }
+
+    private static final int PAYLOAD_SIZE = 1 + 8 + 8 + 4 + 4;
+    static final int SIZE = PAYLOAD_SIZE + 4;
+
+    private final Op op;
+    private final long reservationId;
+    private final long roomId;
+    private final int startDay;
+    private final int endDay;
+
+    private JournalRecord(Op op, long reservationId, long roomId, int startDay, int endDay) {
+        this.op = op;
+        this.reservationId = reservationId;
+        this.roomId = roomId;
+        this.startDay = startDay;
+        this.endDay = endDay;
+    }
+
+    static JournalRecord book(Booking booking) {
+        return new JournalRecord(Op.BOOK, booking.getReservationId(), booking.getRoomId(),
+                Math.toIntExact(booking.getStartDay()), Math.toIntExact(booking.getEndDay()));
+    }
+
+    static JournalRecord cancel(long reservationId) {
+        return new JournalRecord(Op.CANCEL, reservationId, 0, 0, 0);
+    }
+
+    static JournalRecord addRoom(long roomId, long propertyId) {
+        return new JournalRecord(Op.ADD_ROOM, propertyId, roomId, 0, 0);
+    }
+
+    static JournalRecord removeRoom(long roomId) {
+        return new JournalRecord(Op.REMOVE_ROOM, 0, roomId, 0, 0);
+    }
+
+    long getPropertyId() {
+        return reservationId;
+    }
+
+    Booking toBooking() {
+        return new Booking(reservationId, roomId, startDay, endDay);
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        byte[] bytes = new byte[SIZE];
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        record.put(op.code()).putLong(reservationId).putLong(roomId).putInt(startDay).putInt(endDay);
+        record.putInt(checksum(bytes));
+        buffer.put(bytes);
+    }
+
+    /**
+     * @return record read from the buffer, or null when there are no more whole and intact records in it
+     */
+    static JournalRecord readFrom(ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE) {
+            return null;
+        }
+        byte[] bytes = new byte[SIZE];
+        buffer.get(bytes);
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        Op op = Op.of(record.get());
+        long reservationId = record.getLong();
+        long roomId = record.getLong();
+        int startDay = record.getInt();
+        int endDay = record.getInt();
+        if (op == null || record.getInt() != checksum(bytes)) {
+            return null;
+        }
+        return new JournalRecord(op, reservationId, roomId, startDay, endDay);
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, PAYLOAD_SIZE);
+        return (int) crc.getValue();
+    }
+}
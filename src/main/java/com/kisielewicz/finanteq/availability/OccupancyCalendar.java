@@ -0,0 +1,183 @@
+package com.kisielewicz.finanteq.availability;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Per-day bitsets of occupied rooms over a rolling horizon of days, one bit per room.
+ * Finding rooms free in a date range is an OR of the bitsets of the days in range, done a word at a time.
+ * Days are kept in a ring buffer, so advancing the horizon only clears the days which fall out of it.
+ */
+class OccupancyCalendar {
+
+    private final int horizonDays;
+    private final BitSet[] days;
+    private final BitSet rooms = new BitSet();
+    private final Map<Long, Integer> slotsByRoomId = new HashMap<>();
+    private final List<Long> roomIdsBySlot = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long firstDay;
+
+    OccupancyCalendar(int horizonDays, long firstDay) {
+        this.horizonDays = horizonDays;
+        this.days = new BitSet[horizonDays];
+        for (int i = 0; i < horizonDays; i++) {
+            days[i] = new BitSet();
+        }
+        this.firstDay = firstDay;
+    }
+
+    long getFirstDay() {
+        lock.readLock().lock();
+        try {
+            return firstDay;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long getEndDay() {
+        return getFirstDay() + horizonDays;
+    }
+
+    void clear(long firstDay) {
+        lock.writeLock().lock();
+        try {
+            for (BitSet day : days) {
+                day.clear();
+            }
+            this.firstDay = firstDay;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the horizon to start on the given day, clearing the days which fall out of it.
+     *
+     * @return first day which wasn't covered by the horizon before and has to be filled again
+     */
+    long advanceTo(long day) {
+        lock.writeLock().lock();
+        try {
+            long previousEndDay = firstDay + horizonDays;
+            if (day <= firstDay) {
+                return previousEndDay;
+            }
+            long clearedDays = Math.min(day - firstDay, horizonDays);
+            for (long i = 0; i < clearedDays; i++) {
+                days[slotOf(firstDay + i)].clear();
+            }
+            firstDay = day;
+            return Math.max(previousEndDay, day);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void addRoom(long roomId) {
+        lock.writeLock().lock();
+        try {
+            slotForRoom(roomId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void removeRoom(long roomId) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slotsByRoomId.remove(roomId);
+            if (slot != null) {
+                rooms.clear(slot);
+                for (BitSet day : days) {
+                    day.clear(slot);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void occupy(long roomId, long startDay, long endDay) {
+        mark(roomId, startDay, endDay, true);
+    }
+
+    void release(long roomId, long startDay, long endDay) {
+        mark(roomId, startDay, endDay, false);
+    }
+
+    /**
+     * @return ids of rooms free on every day of [startDay, endDay), or null when the range isn't inside the horizon
+     */
+    List<Long> findFreeRooms(long startDay, long endDay) {
+        lock.readLock().lock();
+        try {
+            if (startDay < firstDay || endDay > firstDay + horizonDays) {
+                return null;
+            }
+            BitSet occupied = new BitSet();
+            for (long day = startDay; day < endDay; day++) {
+                occupied.or(days[slotOf(day)]);
+            }
+            BitSet free = (BitSet) rooms.clone();
+            free.andNot(occupied);
+            List<Long> roomIds = new ArrayList<>(free.cardinality());
+            for (int slot = free.nextSetBit(0); slot >= 0; slot = free.nextSetBit(slot + 1)) {
+                roomIds.add(roomIdsBySlot.get(slot));
+            }
+            return roomIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<Long> roomIds() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(slotsByRoomId.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void mark(long roomId, long startDay, long endDay, boolean occupied) {
+        lock.writeLock().lock();
+        try {
+            int slot = slotForRoom(roomId);
+            long from = Math.max(startDay, firstDay);
+            long to = Math.min(endDay, firstDay + horizonDays);
+            for (long day = from; day < to; day++) {
+                days[slotOf(day)].set(slot, occupied);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int slotForRoom(long roomId) {
+        Integer slot = slotsByRoomId.get(roomId);
+        if (slot == null) {
+            // reuse slots of deleted rooms, so bitsets don't grow with every room ever created
+            slot = rooms.nextClearBit(0);
+            rooms.set(slot);
+            if (slot < roomIdsBySlot.size()) {
+                roomIdsBySlot.set(slot, roomId);
+            } else {
+                roomIdsBySlot.add(roomId);
+            }
+            slotsByRoomId.put(roomId, slot);
+        }
+        return slot;
+    }
+
+    private int slotOf(long day) {
+        return (int) Math.floorMod(day, (long) horizonDays);
+    }
+}
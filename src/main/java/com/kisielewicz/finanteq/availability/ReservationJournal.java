@@ -0,0 +1,267 @@
+package com.kisielewicz.finanteq.availability;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only journal of committed changes of the {@link RoomAvailabilityIndex}, used to restore the index
+ * at startup without reading all reservations from the database.
+ *
+ * Each generation of the journal is a snapshot file with the whole state of the index, written once,
+ * and a memory-mapped segment file of fixed size with records of the changes made after the snapshot.
+ * Appending a record is just a copy into the mapped memory, which the operating system writes to disk on its own.
+ * When the segment is full or the periodic snapshot is due a new generation is started and older files are deleted.
+ * Records which didn't make it to disk before a crash are caught by the checksum the index compares with
+ * the database after restoring.
+ */
+@Component
+public class ReservationJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReservationJournal.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x52534e50;
+    private static final int SEGMENT_MAGIC = 0x524a4e4c;
+    private static final Pattern GENERATION_FILE = Pattern.compile("(snapshot|journal)-(\\d+)\\.(?:bin|log)(\\.tmp)?");
+
+    private final Path directory;
+    private final int segmentSize;
+
+    private boolean enabled;
+    private long generation;
+    private FileChannel segmentChannel;
+    private MappedByteBuffer segment;
+
+    @Autowired
+    public ReservationJournal(@Value("${availability.journal.enabled:false}") boolean enabled,
+                              @Value("${availability.journal.directory:journal}") String directory,
+                              @Value("${availability.journal.segment-size-bytes:16777216}") int segmentSize) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+    }
+
+    public static ReservationJournal disabled() {
+        return new ReservationJournal(false, "journal", 0);
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Reads records of the latest snapshot followed by records of its segment, up to the first one not written whole.
+     *
+     * @return records to replay on an empty index, or null when there is no intact snapshot to restore from
+     */
+    synchronized List<JournalRecord> recover() {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            Files.createDirectories(directory);
+            long latest = latestGeneration();
+            if (latest < 0) {
+                LOGGER.info("No journal snapshot found in {}", directory.toAbsolutePath());
+                return null;
+            }
+            generation = latest;
+            List<JournalRecord> records = readSnapshot(snapshotFile(latest));
+            if (records == null) {
+                LOGGER.warn("Journal snapshot {} is damaged", snapshotFile(latest));
+                return null;
+            }
+            int snapshotRecords = records.size();
+            readSegment(segmentFile(latest), records);
+            LOGGER.info("Read {} snapshot and {} journal records of generation {}", snapshotRecords,
+                    records.size() - snapshotRecords, latest);
+            return records;
+        } catch (IOException e) {
+            LOGGER.error("Failed to read journal from {}", directory.toAbsolutePath(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given state and maps a new empty segment for changes made after it.
+     * Files of the previous generations are deleted once the new one is in place.
+     */
+    synchronized void startGeneration(Map<Long, Long> propertyByRoomId, Collection<Booking> bookings) {
+        if (!enabled) {
+            return;
+        }
+        long next = generation + 1;
+        try {
+            Files.createDirectories(directory);
+            writeSnapshot(next, propertyByRoomId, bookings);
+            mapSegment(next);
+            generation = next;
+            deleteGenerationsBefore(next);
+            LOGGER.info("Started journal generation {} with snapshot of {} rooms and {} reservations",
+                    next, propertyByRoomId.size(), bookings.size());
+        } catch (IOException e) {
+            fail("Failed to start journal generation " + next, e);
+        }
+    }
+
+    /**
+     * @return false when the record doesn't fit in the segment anymore and a new generation has to be started
+     */
+    synchronized boolean append(JournalRecord record) {
+        if (!enabled || segment == null) {
+            return true;
+        }
+        if (segment.remaining() < JournalRecord.SIZE) {
+            return false;
+        }
+        record.writeTo(segment);
+        return true;
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (segment != null) {
+            segment.force();
+        }
+        closeSegment();
+    }
+
+    private long latestGeneration() throws IOException {
+        long latest = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = GENERATION_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches() && matcher.group(1).equals("snapshot") && matcher.group(3) == null) {
+                    latest = Math.max(latest, Long.parseLong(matcher.group(2)));
+                }
+            }
+        }
+        return latest;
+    }
+
+    private List<JournalRecord> readSnapshot(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buffer.remaining() < 8 || buffer.getInt() != SNAPSHOT_MAGIC) {
+            return null;
+        }
+        int count = buffer.getInt();
+        List<JournalRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JournalRecord record = JournalRecord.readFrom(buffer);
+            if (record == null) {
+                return null;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    private void readSegment(Path file, List<JournalRecord> records) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 4 || buffer.getInt() != SEGMENT_MAGIC) {
+                LOGGER.warn("Journal segment {} is damaged, restoring from snapshot only", file);
+                return;
+            }
+            JournalRecord record;
+            while ((record = JournalRecord.readFrom(buffer)) != null) {
+                records.add(record);
+            }
+        }
+    }
+
+    private void writeSnapshot(long generation, Map<Long, Long> propertyByRoomId, Collection<Booking> bookings) throws IOException {
+        int count = propertyByRoomId.size() + bookings.size();
+        ByteBuffer buffer = ByteBuffer.allocate(8 + count * JournalRecord.SIZE);
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(count);
+        for (Map.Entry<Long, Long> room : propertyByRoomId.entrySet()) {
+            JournalRecord.addRoom(room.getKey(), room.getValue()).writeTo(buffer);
+        }
+        for (Booking booking : bookings) {
+            JournalRecord.book(booking).writeTo(buffer);
+        }
+        buffer.flip();
+        // written aside and moved in place, so the latest snapshot file is always whole
+        Path temporary = directory.resolve(snapshotFile(generation).getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotFile(generation), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void mapSegment(long generation) throws IOException {
+        closeSegment();
+        segmentChannel = FileChannel.open(segmentFile(generation), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(SEGMENT_MAGIC);
+    }
+
+    private void closeSegment() {
+        segment = null;
+        if (segmentChannel != null) {
+            try {
+                segmentChannel.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close journal segment", e);
+            }
+            segmentChannel = null;
+        }
+    }
+
+    private void deleteGenerationsBefore(long generation) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Matcher matcher = GENERATION_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches() && Long.parseLong(matcher.group(2)) < generation) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops journaling for the rest of the run. Files left behind are older than the index, which the checksum
+     * catches on the next startup.
+     */
+    private void fail(String message, IOException e) {
+        LOGGER.error("{}, journaling stopped", message, e);
+        enabled = false;
+        closeSegment();
+    }
+
+    private Path snapshotFile(long generation) {
+        return directory.resolve(String.format("snapshot-%016d.bin", generation));
+    }
+
+    private Path segmentFile(long generation) {
+        return directory.resolve(String.format("journal-%016d.log", generation));
+    }
+}
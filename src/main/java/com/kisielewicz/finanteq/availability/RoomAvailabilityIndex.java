@@ -0,0 +1,417 @@
+package com.kisielewicz.finanteq.availability;
+
+import com.kisielewicz.finanteq.datasource.ShardContext;
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import com.kisielewicz.finanteq.repository.ReservationRepository;
+import com.kisielewicz.finanteq.repository.RoomRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory index of booked date ranges per room, used to answer reservation conflict checks without querying
+ * the database. Loaded at startup with all reservations which didn't end yet and kept in sync by
+ * {@link com.kisielewicz.finanteq.service.ReservationService} on make, edit and cancel. It only knows of writes made
+ * through this node, so with reservation.multi-node or shards enabled writes check overlaps again in the database.
+ *
+ * A date range is first booked as pending, which makes it unavailable for everyone else right away,
+ * and becomes committed (or is released) once the transaction persisting it completes.
+ * Committed bookings are also mirrored in an {@link OccupancyCalendar} used to search for free rooms.
+ *
+ * Committed changes are appended to the {@link ReservationJournal} when it's enabled. At startup the index is then
+ * restored from the journal and checked against aggregates of the database, falling back to loading all
+ * reservations only when they don't match - e.g. after another node changed reservations in the meantime.
+ */
+@Component
+public class RoomAvailabilityIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoomAvailabilityIndex.class);
+
+    private final ReservationRepository reservationRepository;
+    private final RoomRepository roomRepository;
+
+    private final Map<Long, RoomSchedule> schedules = new ConcurrentHashMap<>();
+    // rooms of every shard are in the index, so searches for one property filter them by it
+    private final Map<Long, Long> propertyByRoomId = new ConcurrentHashMap<>();
+    private final Map<Long, Booking> bookingsByReservationId = new ConcurrentHashMap<>();
+    private final OccupancyCalendar calendar;
+    private final ReservationJournal journal;
+    private final ShardRouter shardRouter;
+
+    public RoomAvailabilityIndex(ReservationRepository reservationRepository, RoomRepository roomRepository,
+                                 int calendarHorizonDays) {
+        this(reservationRepository, roomRepository, calendarHorizonDays, ReservationJournal.disabled());
+    }
+
+    public RoomAvailabilityIndex(ReservationRepository reservationRepository, RoomRepository roomRepository,
+                                 int calendarHorizonDays, ReservationJournal journal) {
+        this(reservationRepository, roomRepository, calendarHorizonDays, journal, ShardRouter.single());
+    }
+
+    @Autowired
+    public RoomAvailabilityIndex(ReservationRepository reservationRepository, RoomRepository roomRepository,
+                                 @Value("${availability.calendar.horizon-days:365}") int calendarHorizonDays,
+                                 ReservationJournal journal, ShardRouter shardRouter) {
+        this.reservationRepository = reservationRepository;
+        this.roomRepository = roomRepository;
+        this.calendar = new OccupancyCalendar(calendarHorizonDays, LocalDate.now().toEpochDay());
+        this.journal = journal;
+        this.shardRouter = shardRouter;
+    }
+
+    @PostConstruct
+    public void loadFromDatabase() {
+        if (journal.isEnabled() && restoreFromJournal()) {
+            snapshotJournal();
+            return;
+        }
+        LOGGER.info("Loading availability index from reservations which didn't end yet");
+        LocalDate today = LocalDate.now();
+        Map<Long, Long> propertyByRoomId = new LinkedHashMap<>();
+        List<Long> roomIds = new ArrayList<>();
+        shardRouter.fanOutInPlace(() -> {
+            long propertyId = ShardContext.currentPropertyOrDefault();
+            for (Long roomId : roomRepository.findAllIds()) {
+                propertyByRoomId.put(roomId, propertyId);
+                roomIds.add(roomId);
+            }
+            return null;
+        });
+        List<Booking> bookings = new ArrayList<>();
+        shardRouter.fanOutInPlace(() -> reservationRepository.findAllBookingsEndingAfter(today)).forEach(shard -> shard.forEach(bookings::add));
+        if (shardRouter.isSharded()) {
+            checkUnique(roomIds, "Room");
+            checkUnique(bookings.stream().map(Booking::getReservationId).collect(Collectors.toList()), "Reservation");
+        }
+        load(propertyByRoomId, bookings);
+        LOGGER.info("Loaded availability index with {} reservations", bookingsByReservationId.size());
+        snapshotJournal();
+    }
+
+    /**
+     * Replays the journal on an empty index and compares counts and sums of ids and dates of the restored rooms
+     * and reservations with the same aggregates computed by the database - of rooms shard by shard, so each of them
+     * is known to belong to the property of its shard.
+     *
+     * @return true when the index was restored and matches the database
+     */
+    synchronized boolean restoreFromJournal() {
+        List<JournalRecord> records = journal.recover();
+        if (records == null) {
+            return false;
+        }
+        LocalDate today = LocalDate.now();
+        load(Collections.emptyMap(), Collections.emptyList());
+        for (JournalRecord record : records) {
+            replay(record);
+        }
+        evictEndedBy(today);
+        List<StateChecksum> rooms = shardRouter.fanOutInPlace(
+                () -> StateChecksum.ofRooms(roomsOf(ShardContext.currentPropertyOrDefault())));
+        long roomCount = rooms.stream().mapToLong(StateChecksum::getCount).sum();
+        StateChecksum bookings = StateChecksum.ofBookings(bookingsByReservationId.values());
+        List<StateChecksum> storedRooms = shardRouter.fanOutInPlace(roomRepository::checksumRooms);
+        StateChecksum storedBookings = shardRouter.fanOutInPlace(() -> reservationRepository.checksumBookingsEndingAfter(today)).stream()
+                .reduce(StateChecksum::plus).orElseThrow(IllegalStateException::new);
+        if (rooms.equals(storedRooms) && roomCount == propertyByRoomId.size() && bookings.equals(storedBookings)) {
+            LOGGER.info("Restored availability index with {} reservations from journal", bookingsByReservationId.size());
+            return true;
+        }
+        LOGGER.warn("Availability index restored from journal doesn't match database, loading from database");
+        return false;
+    }
+
+    /**
+     * Starts a new journal generation with a snapshot of the index, so the journal replayed at startup stays short.
+     */
+    @Scheduled(fixedDelayString = "${availability.journal.snapshot-interval-ms:600000}",
+            initialDelayString = "${availability.journal.snapshot-interval-ms:600000}")
+    public synchronized void snapshotJournal() {
+        if (journal.isEnabled()) {
+            journal.startGeneration(new HashMap<>(propertyByRoomId), new ArrayList<>(bookingsByReservationId.values()));
+        }
+    }
+
+    // the index is keyed by ids, which shards have to hand out from ranges of their own
+    private static void checkUnique(List<Long> ids, String entity) {
+        Set<Long> seen = new HashSet<>();
+        for (Long id : ids) {
+            if (!seen.add(id)) {
+                throw new IllegalStateException(entity + " id " + id + " is used by more than one shard");
+            }
+        }
+    }
+
+    /**
+     * Loads rooms of the property of the current thread with the bookings.
+     */
+    public synchronized void load(Iterable<Long> roomIds, Iterable<Booking> bookings) {
+        Map<Long, Long> propertyByRoomId = new LinkedHashMap<>();
+        for (Long roomId : roomIds) {
+            propertyByRoomId.put(roomId, ShardContext.currentPropertyOrDefault());
+        }
+        load(propertyByRoomId, bookings);
+    }
+
+    private synchronized void load(Map<Long, Long> propertyByRoomId, Iterable<Booking> bookings) {
+        schedules.clear();
+        bookingsByReservationId.clear();
+        this.propertyByRoomId.clear();
+        calendar.clear(LocalDate.now().toEpochDay());
+        propertyByRoomId.forEach(this::putRoom);
+        for (Booking booking : bookings) {
+            if (scheduleFor(booking.getRoomId()).addCommitted(booking) != null) {
+                LOGGER.warn("Overlapping reservations found for room: {}, starting on day: {}",
+                        booking.getRoomId(), LocalDate.ofEpochDay(booking.getStartDay()));
+            }
+            bookingsByReservationId.put(booking.getReservationId(), booking);
+            calendar.occupy(booking.getRoomId(), booking.getStartDay(), booking.getEndDay());
+        }
+    }
+
+    public boolean isFree(long roomId, LocalDate startDate, LocalDate endDate, Long ignoredReservationId) {
+        RoomSchedule schedule = schedules.get(roomId);
+        return schedule == null
+                || schedule.isFree(startDate.toEpochDay(), endDate.toEpochDay(), ignoredReservationId);
+    }
+
+    /**
+     * Finds rooms without committed bookings in the date range. Ranges inside the calendar horizon are answered
+     * from the calendar bitsets, others by checking schedules of all rooms.
+     */
+    public List<Long> findFreeRooms(LocalDate startDate, LocalDate endDate) {
+        List<Long> freeRoomIds = calendar.findFreeRooms(startDate.toEpochDay(), endDate.toEpochDay());
+        if (freeRoomIds == null) {
+            LOGGER.info("Date range {} - {} is outside of calendar horizon, checking every room", startDate, endDate);
+            freeRoomIds = new ArrayList<>();
+            for (Long roomId : calendar.roomIds()) {
+                if (isFree(roomId, startDate, endDate, null)) {
+                    freeRoomIds.add(roomId);
+                }
+            }
+        }
+        return freeRoomIds;
+    }
+
+    /**
+     * Finds rooms free in the date range, the best fitting first - rooms where the range fills the gap between
+     * bookings it falls into most tightly, so the calendar is left with fewer gaps too short to be booked.
+     * Rooms with no booking after the range come last.
+     */
+    public List<Long> findFreeRoomsBestFit(LocalDate startDate, LocalDate endDate) {
+        return findFreeRoomsBestFit(startDate, endDate, null);
+    }
+
+    /**
+     * Like {@link #findFreeRoomsBestFit(LocalDate, LocalDate)}, but only finds rooms of the property, unless it's null.
+     */
+    public List<Long> findFreeRoomsBestFit(LocalDate startDate, LocalDate endDate, Long propertyId) {
+        long startDay = startDate.toEpochDay();
+        long endDay = endDate.toEpochDay();
+        long firstDay = calendar.getFirstDay();
+        List<Long> freeRoomIds = findFreeRooms(startDate, endDate);
+        if (propertyId != null) {
+            freeRoomIds.removeIf(roomId -> !propertyId.equals(propertyByRoomId.get(roomId)));
+        }
+        Map<Long, Long> slackByRoomId = new HashMap<>(freeRoomIds.size() * 2);
+        for (Long roomId : freeRoomIds) {
+            slackByRoomId.put(roomId, scheduleFor(roomId).slackAround(startDay, endDay, firstDay));
+        }
+        freeRoomIds.sort(Comparator.comparing((Long roomId) -> slackByRoomId.get(roomId)).thenComparing(roomId -> roomId));
+        return freeRoomIds;
+    }
+
+    /**
+     * Books the date range as pending if it doesn't overlap any other booking of the room.
+     * Booking of the reservation being edited is ignored in the check.
+     *
+     * @return pending booking, or null when the date range is already taken
+     */
+    public Booking tryBook(long roomId, LocalDate startDate, LocalDate endDate, Long editedReservationId) {
+        Booking booking = new Booking(null, roomId, startDate, endDate);
+        return scheduleFor(roomId).tryAddPending(booking, editedReservationId) ? booking : null;
+    }
+
+    public void release(Booking pending) {
+        scheduleFor(pending.getRoomId()).removePending(pending);
+    }
+
+    /**
+     * Turns the pending booking into the committed booking of the reservation, replacing its previous date range.
+     */
+    public synchronized void commit(Booking pending, long reservationId) {
+        Booking committed = pending.withReservationId(reservationId);
+        putCommitted(committed);
+        scheduleFor(pending.getRoomId()).removePending(pending);
+        journal(JournalRecord.book(committed));
+    }
+
+    public synchronized void remove(long reservationId) {
+        if (removeCommitted(reservationId)) {
+            journal(JournalRecord.cancel(reservationId));
+        }
+    }
+
+    public synchronized void addRoom(long roomId, long propertyId) {
+        putRoom(roomId, propertyId);
+        journal(JournalRecord.addRoom(roomId, propertyId));
+    }
+
+    public synchronized void removeRoom(long roomId) {
+        dropRoom(roomId);
+        journal(JournalRecord.removeRoom(roomId));
+    }
+
+    /**
+     * Drops bookings which ended by the given date - they can't conflict with any new reservation anymore -
+     * and moves the calendar horizon to start on that date.
+     */
+    public synchronized int evictEndedBy(LocalDate date) {
+        int evicted = 0;
+        for (RoomSchedule schedule : schedules.values()) {
+            for (Booking booking : schedule.removeEndedBy(date.toEpochDay())) {
+                bookingsByReservationId.remove(booking.getReservationId());
+                evicted++;
+            }
+        }
+        long refillFromDay = calendar.advanceTo(date.toEpochDay());
+        long endDay = calendar.getEndDay();
+        for (Booking booking : bookingsByReservationId.values()) {
+            if (booking.overlaps(refillFromDay, endDay)) {
+                calendar.occupy(booking.getRoomId(), booking.getStartDay(), booking.getEndDay());
+            }
+        }
+        return evicted;
+    }
+
+    public int size() {
+        return bookingsByReservationId.size();
+    }
+
+    public void commitAfterTransaction(Booking pending, long reservationId) {
+        afterTransaction(() -> commit(pending, reservationId), () -> release(pending));
+    }
+
+    public void removeAfterTransaction(long reservationId) {
+        afterTransaction(() -> remove(reservationId), () -> { });
+    }
+
+    public void addRoomAfterTransaction(long roomId, long propertyId) {
+        afterTransaction(() -> addRoom(roomId, propertyId), () -> { });
+    }
+
+    public void removeRoomAfterTransaction(long roomId) {
+        afterTransaction(() -> removeRoom(roomId), () -> { });
+    }
+
+    private void putCommitted(Booking committed) {
+        removeCommitted(committed.getReservationId());
+        scheduleFor(committed.getRoomId()).addCommitted(committed);
+        bookingsByReservationId.put(committed.getReservationId(), committed);
+        calendar.occupy(committed.getRoomId(), committed.getStartDay(), committed.getEndDay());
+    }
+
+    private boolean removeCommitted(long reservationId) {
+        Booking previous = bookingsByReservationId.remove(reservationId);
+        if (previous == null) {
+            return false;
+        }
+        scheduleFor(previous.getRoomId()).removeCommitted(previous);
+        calendar.release(previous.getRoomId(), previous.getStartDay(), previous.getEndDay());
+        return true;
+    }
+
+    private void putRoom(long roomId, long propertyId) {
+        propertyByRoomId.put(roomId, propertyId);
+        calendar.addRoom(roomId);
+    }
+
+    private List<Long> roomsOf(long propertyId) {
+        List<Long> roomIds = new ArrayList<>();
+        propertyByRoomId.forEach((roomId, roomPropertyId) -> {
+            if (roomPropertyId == propertyId) {
+                roomIds.add(roomId);
+            }
+        });
+        return roomIds;
+    }
+
+    private void dropRoom(long roomId) {
+        RoomSchedule schedule = schedules.remove(roomId);
+        if (schedule != null) {
+            for (Booking booking : schedule.committedBookings()) {
+                bookingsByReservationId.remove(booking.getReservationId());
+            }
+        }
+        propertyByRoomId.remove(roomId);
+        calendar.removeRoom(roomId);
+    }
+
+    private void replay(JournalRecord record) {
+        switch (record.getOp()) {
+            case BOOK:
+                putCommitted(record.toBooking());
+                break;
+            case CANCEL:
+                removeCommitted(record.getReservationId());
+                break;
+            case ADD_ROOM:
+                putRoom(record.getRoomId(), record.getPropertyId());
+                break;
+            case REMOVE_ROOM:
+                dropRoom(record.getRoomId());
+                break;
+        }
+    }
+
+    /**
+     * Appends the change, which is already applied to the index. When the segment is full the snapshot
+     * of the new generation includes it.
+     */
+    private void journal(JournalRecord record) {
+        if (journal.isEnabled() && !journal.append(record)) {
+            snapshotJournal();
+        }
+    }
+
+    private RoomSchedule scheduleFor(long roomId) {
+        return schedules.computeIfAbsent(roomId, id -> new RoomSchedule());
+    }
+
+    private static void afterTransaction(Runnable onCommit, Runnable onRollback) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            onCommit.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == TransactionSynchronization.STATUS_COMMITTED) {
+                    onCommit.run();
+                } else {
+                    onRollback.run();
+                }
+            }
+        });
+    }
+}
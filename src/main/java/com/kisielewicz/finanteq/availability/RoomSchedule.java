@@ -0,0 +1,97 @@
+package com.kisielewicz.finanteq.availability;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bookings of a single room. Committed bookings never overlap, so they are kept in a tree keyed by start day
+ * and an overlap check only has to look at the closest bookings starting before the end of the checked range.
+ * Pending bookings of in-flight transactions are few and kept in a plain list.
+ */
+class RoomSchedule {
+
+    // slack of a range with no booking after it, so it only ever fits better than other open ended ones
+    static final long OPEN_ENDED = Long.MAX_VALUE / 2;
+
+    private final TreeMap<Long, Booking> committed = new TreeMap<>();
+    private final List<Booking> pending = new ArrayList<>();
+
+    synchronized boolean isFree(long startDay, long endDay, Long ignoredReservationId) {
+        Map.Entry<Long, Booking> entry = committed.lowerEntry(endDay);
+        while (entry != null && entry.getValue().getEndDay() > startDay) {
+            if (!isIgnored(entry.getValue(), ignoredReservationId)) {
+                return false;
+            }
+            entry = committed.lowerEntry(entry.getKey());
+        }
+        for (Booking booking : pending) {
+            if (booking.overlaps(startDay, endDay)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Free days left around the range in the gap between committed bookings it falls into, which has to be free.
+     * Days before the first bookable day don't count as free.
+     */
+    synchronized long slackAround(long startDay, long endDay, long firstDay) {
+        Map.Entry<Long, Booking> before = committed.lowerEntry(endDay);
+        long gapStartDay = before == null ? firstDay : Math.max(before.getValue().getEndDay(), firstDay);
+        long slackBefore = Math.max(startDay - gapStartDay, 0);
+        Long after = committed.ceilingKey(endDay);
+        return after == null ? OPEN_ENDED + slackBefore : slackBefore + after - endDay;
+    }
+
+    synchronized boolean tryAddPending(Booking booking, Long ignoredReservationId) {
+        if (!isFree(booking.getStartDay(), booking.getEndDay(), ignoredReservationId)) {
+            return false;
+        }
+        pending.add(booking);
+        return true;
+    }
+
+    synchronized void removePending(Booking booking) {
+        Iterator<Booking> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == booking) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    synchronized Booking addCommitted(Booking booking) {
+        return committed.put(booking.getStartDay(), booking);
+    }
+
+    synchronized void removeCommitted(Booking booking) {
+        committed.remove(booking.getStartDay(), booking);
+    }
+
+    synchronized List<Booking> removeEndedBy(long day) {
+        List<Booking> removed = new ArrayList<>();
+        Iterator<Booking> iterator = committed.values().iterator();
+        while (iterator.hasNext()) {
+            Booking booking = iterator.next();
+            if (booking.getEndDay() > day) {
+                break;
+            }
+            removed.add(booking);
+            iterator.remove();
+        }
+        return removed;
+    }
+
+    synchronized List<Booking> committedBookings() {
+        return new ArrayList<>(committed.values());
+    }
+
+    private boolean isIgnored(Booking booking, Long ignoredReservationId) {
+        return ignoredReservationId != null && ignoredReservationId.equals(booking.getReservationId());
+    }
+}
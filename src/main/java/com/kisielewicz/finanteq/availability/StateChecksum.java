@@ -0,0 +1,84 @@
+package com.kisielewicz.finanteq.availability;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.LocalDate;
+
+/**
+ * Count and sums of ids and dates of a set of rows, cheap to aggregate in the database and compared with the same
+ * aggregates of the availability index to check it was restored right. Dates are summed as yyyyMMdd numbers,
+ * which unlike epoch days can be computed with date functions of any database.
+ *
+ * Rooms and dates of reservations are summed weighted by the reservation id, so reservations moved to another room
+ * or swapping dates change the sums too. Weights stay below {@link #WEIGHT_MODULUS}, keeping the sums in a long.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public final class StateChecksum {
+
+    public static final int WEIGHT_MODULUS = 997;
+
+    private final long count;
+    private final long idSum;
+    private final long roomSum;
+    private final long startDateSum;
+    private final long endDateSum;
+
+    public StateChecksum(Long count, Long idSum) {
+        this(count, idSum, 0L, 0L, 0L);
+    }
+
+    public StateChecksum(Long count, Long idSum, Long roomSum, Long startDateSum, Long endDateSum) {
+        // sums of no rows are null
+        this.count = count == null ? 0 : count;
+        this.idSum = idSum == null ? 0 : idSum;
+        this.roomSum = roomSum == null ? 0 : roomSum;
+        this.startDateSum = startDateSum == null ? 0 : startDateSum;
+        this.endDateSum = endDateSum == null ? 0 : endDateSum;
+    }
+
+    public StateChecksum plus(StateChecksum other) {
+        return new StateChecksum(count + other.count, idSum + other.idSum, roomSum + other.roomSum,
+                startDateSum + other.startDateSum, endDateSum + other.endDateSum);
+    }
+
+    static StateChecksum ofRooms(Iterable<Long> roomIds) {
+        long count = 0;
+        long idSum = 0;
+        for (Long roomId : roomIds) {
+            count++;
+            idSum += roomId;
+        }
+        return new StateChecksum(count, idSum);
+    }
+
+    static StateChecksum ofBookings(Iterable<Booking> bookings) {
+        long count = 0;
+        long idSum = 0;
+        long roomSum = 0;
+        long startDateSum = 0;
+        long endDateSum = 0;
+        for (Booking booking : bookings) {
+            long weight = weight(booking.getReservationId());
+            count++;
+            idSum += booking.getReservationId();
+            roomSum += weight * booking.getRoomId();
+            startDateSum += weight * dateNumber(booking.getStartDay());
+            endDateSum += weight * dateNumber(booking.getEndDay());
+        }
+        return new StateChecksum(count, idSum, roomSum, startDateSum, endDateSum);
+    }
+
+    // same as mod(r.id, WEIGHT_MODULUS) + 1 computed by the database
+    private static long weight(long reservationId) {
+        return reservationId % WEIGHT_MODULUS + 1;
+    }
+
+    private static long dateNumber(long epochDay) {
+        LocalDate date = LocalDate.ofEpochDay(epochDay);
+        return date.getYear() * 10000L + date.getMonthValue() * 100L + date.getDayOfMonth();
+    }
+}
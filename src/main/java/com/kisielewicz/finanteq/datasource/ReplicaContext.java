@@ -0,0 +1,25 @@
+package com.kisielewicz.finanteq.datasource;
+
+/**
+ * Time of the last write of the client the current thread reads for, which decides whether the replica has caught up
+ * with it. Threads without one read whatever the replica has, as long as it doesn't lag too far behind.
+ */
+public final class ReplicaContext {
+
+    private static final ThreadLocal<Long> LAST_WRITE = new ThreadLocal<>();
+
+    private ReplicaContext() {
+    }
+
+    public static Long currentLastWrite() {
+        return LAST_WRITE.get();
+    }
+
+    public static void setLastWrite(Long lastWriteAt) {
+        if (lastWriteAt == null) {
+            LAST_WRITE.remove();
+        } else {
+            LAST_WRITE.set(lastWriteAt);
+        }
+    }
+}
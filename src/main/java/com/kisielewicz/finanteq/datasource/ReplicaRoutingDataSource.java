@@ -0,0 +1,169 @@
+package com.kisielewicz.finanteq.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Hands out connections of the replica to read-only transactions and of the primary to everything else. A connection
+ * is chosen when it is requested, so the data source has to be wrapped in a LazyConnectionDataSourceProxy - otherwise
+ * transactions take their connection before being marked read-only.
+ *
+ * How far the replica lags is measured with a heartbeat - the node writes its clock to the primary and reads back
+ * what of it the replica has, so everything committed before that time is on the replica as well. Reads of a client
+ * whose last write (see {@link ReplicaContext}) the replica may not have yet go to the primary, so it sees its own
+ * reservations, and so do all reads while the replica lags more than the max lag or can't give a connection -
+ * it's tried again after the retry interval.
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private static final String UPDATE_BEAT = "update replica_heartbeat set beat_at = ? where node = ?";
+    private static final String INSERT_BEAT = "insert into replica_heartbeat (node, beat_at) values (?, ?)";
+    private static final String SELECT_BEAT = "select beat_at from replica_heartbeat where node = ?";
+    private static final String DELETE_BEAT = "delete from replica_heartbeat where node = ?";
+
+    private final DataSource primary;
+    private final DataSource replica;
+    private final String nodeId;
+    private final long retryIntervalMillis;
+    private final long maxLagMillis;
+    private final long clockSkewMillis;
+    private final LongSupplier clock;
+
+    private volatile long replicaDownUntil;
+    // time of this node's clock up to which everything committed to the primary is on the replica
+    private volatile long replicatedUntil;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    public ReplicaRoutingDataSource(DataSource primary, DataSource replica, String nodeId, long retryIntervalMillis,
+                                    long maxLagMillis, long clockSkewMillis) {
+        this(primary, replica, nodeId, retryIntervalMillis, maxLagMillis, clockSkewMillis, System::currentTimeMillis);
+    }
+
+    ReplicaRoutingDataSource(DataSource primary, DataSource replica, String nodeId, long retryIntervalMillis,
+                             long maxLagMillis, long clockSkewMillis, LongSupplier clock) {
+        this.primary = primary;
+        this.replica = replica;
+        this.nodeId = nodeId;
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.maxLagMillis = maxLagMillis;
+        this.clockSkewMillis = clockSkewMillis;
+        this.clock = clock;
+    }
+
+    public synchronized void start(long heartbeatIntervalMillis) {
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatIntervalMillis, heartbeatIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+            heartbeatExecutor = null;
+        }
+        try {
+            new JdbcTemplate(primary).update(DELETE_BEAT, nodeId);
+        } catch (DataAccessException e) {
+            LOGGER.warn("Failed to delete heartbeat of node: {}", nodeId, e);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (readsFromReplica()) {
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                replicaUnavailable(e);
+            }
+        }
+        return primary.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (readsFromReplica()) {
+            try {
+                return replica.getConnection(username, password);
+            } catch (SQLException e) {
+                replicaUnavailable(e);
+            }
+        }
+        return primary.getConnection(username, password);
+    }
+
+    public boolean isReplicaAvailable() {
+        return clock.getAsLong() >= replicaDownUntil;
+    }
+
+    /**
+     * @return how far behind the primary the replica was at its last heartbeat, growing until the next one
+     */
+    public long getLagMillis() {
+        return clock.getAsLong() - replicatedUntil;
+    }
+
+    /**
+     * Writes the clock to the primary and reads back what the replica has of it.
+     */
+    void heartbeat() {
+        long beatAt = clock.getAsLong();
+        try {
+            JdbcTemplate primaryTemplate = new JdbcTemplate(primary);
+            if (primaryTemplate.update(UPDATE_BEAT, beatAt, nodeId) == 0) {
+                primaryTemplate.update(INSERT_BEAT, nodeId, beatAt);
+            }
+        } catch (DataAccessException e) {
+            LOGGER.warn("Failed to write heartbeat of node: {} to primary", nodeId, e);
+            return;
+        }
+        if (!isReplicaAvailable()) {
+            return;
+        }
+        try {
+            List<Long> replicated = new JdbcTemplate(replica).queryForList(SELECT_BEAT, Long.class, nodeId);
+            if (!replicated.isEmpty()) {
+                replicatedUntil = Math.max(replicatedUntil, replicated.get(0));
+            }
+        } catch (DataAccessException e) {
+            replicaUnavailable(e);
+        }
+    }
+
+    private boolean readsFromReplica() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            return false;
+        }
+        long now = clock.getAsLong();
+        if (now < replicaDownUntil || now - replicatedUntil > maxLagMillis) {
+            return false;
+        }
+        // the write may have been served by another node, whose clock is off by up to the skew
+        Long lastWrite = ReplicaContext.currentLastWrite();
+        return lastWrite == null || lastWrite + clockSkewMillis <= replicatedUntil;
+    }
+
+    private void replicaUnavailable(Exception e) {
+        replicaDownUntil = clock.getAsLong() + retryIntervalMillis;
+        LOGGER.warn("Failed to reach replica, reading from primary for next {} ms", retryIntervalMillis, e);
+    }
+}
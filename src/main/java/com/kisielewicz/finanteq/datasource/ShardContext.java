@@ -0,0 +1,52 @@
+package com.kisielewicz.finanteq.datasource;
+
+import java.util.function.Supplier;
+
+/**
+ * Property the current thread works for, which decides the shard its connections come from. Threads without
+ * a property use the shard of the default one - the property every room belonged to before sharding.
+ */
+public final class ShardContext {
+
+    public static final long DEFAULT_PROPERTY = 1L;
+
+    private static final ThreadLocal<Long> PROPERTY = new ThreadLocal<>();
+
+    private ShardContext() {
+    }
+
+    public static Long currentProperty() {
+        return PROPERTY.get();
+    }
+
+    public static long currentPropertyOrDefault() {
+        Long propertyId = PROPERTY.get();
+        return propertyId == null ? DEFAULT_PROPERTY : propertyId;
+    }
+
+    public static void setProperty(Long propertyId) {
+        if (propertyId == null) {
+            PROPERTY.remove();
+        } else {
+            PROPERTY.set(propertyId);
+        }
+    }
+
+    public static <T> T callForProperty(Long propertyId, Supplier<T> action) {
+        Long previous = PROPERTY.get();
+        setProperty(propertyId);
+        try {
+            return action.get();
+        } finally {
+            setProperty(previous);
+        }
+    }
+
+    /**
+     * @return the action bound to the property of the calling thread, for handing it over to another thread
+     */
+    public static <T> Supplier<T> bound(Supplier<T> action) {
+        Long propertyId = PROPERTY.get();
+        return () -> callForProperty(propertyId, action);
+    }
+}
@@ -0,0 +1,131 @@
+package com.kisielewicz.finanteq.datasource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Knows which shard holds which property and runs work meant for all of them - reads spanning properties
+ * and maintenance jobs - once on every shard, in parallel when there are several.
+ */
+public class ShardRouter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardRouter.class);
+
+    private static final String SINGLE_SHARD = "default";
+    private static final String NO_SHARD = "No shard holds property: %s";
+    private static final String SHARED_SHARD = "Shard: %s holds more than one property, give every property a shard of its own";
+
+    private final Map<Long, String> shardByProperty;
+    private final Map<String, Long> propertyByShard = new LinkedHashMap<>();
+    private final ExecutorService fanOutExecutor;
+
+    /**
+     * Queries don't filter rooms and reservations by property - the shard a request is routed to is what separates
+     * properties - so a shard may hold only one of them.
+     */
+    public ShardRouter(Map<Long, String> shardByProperty) {
+        if (!shardByProperty.containsKey(ShardContext.DEFAULT_PROPERTY)) {
+            throw new IllegalStateException(String.format(NO_SHARD, ShardContext.DEFAULT_PROPERTY));
+        }
+        this.shardByProperty = new LinkedHashMap<>(shardByProperty);
+        shardByProperty.forEach((propertyId, shard) -> {
+            if (propertyByShard.putIfAbsent(shard, propertyId) != null) {
+                throw new IllegalStateException(String.format(SHARED_SHARD, shard));
+            }
+        });
+        this.fanOutExecutor = propertyByShard.size() > 1 ? Executors.newFixedThreadPool(propertyByShard.size()) : null;
+    }
+
+    public static ShardRouter single() {
+        return new ShardRouter(Collections.singletonMap(ShardContext.DEFAULT_PROPERTY, SINGLE_SHARD));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (fanOutExecutor != null) {
+            fanOutExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isSharded() {
+        return propertyByShard.size() > 1;
+    }
+
+    public boolean hasProperty(long propertyId) {
+        return shardByProperty.containsKey(propertyId);
+    }
+
+    public String shardOf(Long propertyId) {
+        String shard = shardByProperty.get(propertyId == null ? ShardContext.DEFAULT_PROPERTY : propertyId);
+        if (shard == null) {
+            throw new IllegalStateException(String.format(NO_SHARD, propertyId));
+        }
+        return shard;
+    }
+
+    public String defaultShard() {
+        return shardOf(ShardContext.DEFAULT_PROPERTY);
+    }
+
+    /**
+     * @return results of the action run once on every shard, in order of shards
+     */
+    public <T> List<T> fanOut(Supplier<T> action) {
+        if (!isSharded()) {
+            return Collections.singletonList(ShardContext.callForProperty(ShardContext.DEFAULT_PROPERTY, action));
+        }
+        List<CompletableFuture<T>> results = new ArrayList<>(propertyByShard.size());
+        for (Long propertyId : propertyByShard.values()) {
+            results.add(CompletableFuture.supplyAsync(() -> ShardContext.callForProperty(propertyId, action), fanOutExecutor));
+        }
+        try {
+            return results.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            LOGGER.warn("Failed to run action on every shard", e.getCause());
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Like {@link #fanOut(Supplier)}, but visits the shards one after another on the calling thread. Meant for work
+     * done while the application context starts, when threads of the fan out pool would wait for beans the calling
+     * thread is creating.
+     */
+    public <T> List<T> fanOutInPlace(Supplier<T> action) {
+        List<T> results = new ArrayList<>(propertyByShard.size());
+        for (Long propertyId : propertyByShard.values()) {
+            results.add(ShardContext.callForProperty(propertyId, action));
+        }
+        return results;
+    }
+
+    /**
+     * Reads the shard of the current property, or when the thread works for no property in particular, reads all
+     * shards and merges what they returned in the given order, keeping at most limit elements.
+     */
+    public <T> List<T> readMerged(Supplier<? extends Collection<T>> read, Comparator<? super T> order, int limit) {
+        if (!isSharded() || ShardContext.currentProperty() != null) {
+            return new ArrayList<>(read.get());
+        }
+        return fanOut(read).stream()
+                .flatMap(Collection::stream)
+                .sorted(order)
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+}
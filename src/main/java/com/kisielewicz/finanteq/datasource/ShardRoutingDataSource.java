@@ -0,0 +1,28 @@
+package com.kisielewicz.finanteq.datasource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out connections of the shard holding the property of the current thread. The property has to be set
+ * before a transaction starts, as the transaction keeps the connection it began with.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+
+    private final ShardRouter router;
+
+    public ShardRoutingDataSource(ShardRouter router, Map<String, DataSource> shards) {
+        this.router = router;
+        setTargetDataSources(new HashMap<>(shards));
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        return router.shardOf(ShardContext.currentProperty());
+    }
+}
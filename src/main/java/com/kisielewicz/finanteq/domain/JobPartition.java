@@ -0,0 +1,51 @@
+package com.kisielewicz.finanteq.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.time.LocalDate;
+
+/**
+ * Range of room ids a scheduled job processes for a given day. A node works on a partition while it holds its lease,
+ * and moves the checkpoint - the last room id done - together with every chunk of work it commits.
+ */
+@Data
+@NoArgsConstructor
+@Entity
+@Table(name = "job_partition")
+public class JobPartition {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "job_name", nullable = false)
+    private String jobName;
+
+    @Column(name = "run_date", nullable = false)
+    private LocalDate runDate;
+
+    @Column(name = "from_id", nullable = false)
+    private long fromId;
+
+    @Column(name = "to_id", nullable = false)
+    private long toId;
+
+    @Column(name = "checkpoint_id", nullable = false)
+    private long checkpointId;
+
+    @Column(name = "owner")
+    private String owner;
+
+    @Column(name = "lease_until", nullable = false)
+    private long leaseUntil;
+
+    @Column(name = "done", nullable = false)
+    private boolean done;
+}
@@ -34,4 +34,16 @@ public class Reservation {
 
     @Column(name = "mail", nullable = false)
     private String mail;
+
+    // copy of the property of the room, so reservations of a property can be read without joining rooms
+    @Column(name = "property_id", nullable = false)
+    private Long propertyId;
+
+    @PrePersist
+    @PreUpdate
+    public void copyPropertyOfRoom() {
+        if (room != null) {
+            propertyId = room.getPropertyId();
+        }
+    }
 }
@@ -0,0 +1,28 @@
+package com.kisielewicz.finanteq.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Version of rooms or reservations of a shard, bumped by writes of every node working on it.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "resource_version")
+public class ResourceVersion {
+
+    @Id
+    @Column(name = "resource")
+    private String resource;
+
+    @Column(name = "version", nullable = false)
+    private long version;
+}
@@ -15,4 +15,7 @@ public class Room {
 
     @Column(name = "is_reserved", nullable = false)
     private Boolean isReserved;
+
+    @Column(name = "property_id", nullable = false)
+    private Long propertyId;
 }
@@ -0,0 +1,33 @@
+package com.kisielewicz.finanteq.dto;
+
+import com.kisielewicz.finanteq.domain.Reservation;
+import lombok.Data;
+
+@Data
+public class BatchReservationResultDTO {
+
+    public enum Status {
+        CREATED, CONFLICT, NOT_FOUND
+    }
+
+    private int index;
+    private Status status;
+    private Reservation reservation;
+    private String message;
+
+    public static BatchReservationResultDTO created(int index, Reservation reservation) {
+        BatchReservationResultDTO result = new BatchReservationResultDTO();
+        result.setIndex(index);
+        result.setStatus(Status.CREATED);
+        result.setReservation(reservation);
+        return result;
+    }
+
+    public static BatchReservationResultDTO failed(int index, Status status, String message) {
+        BatchReservationResultDTO result = new BatchReservationResultDTO();
+        result.setIndex(index);
+        result.setStatus(status);
+        result.setMessage(message);
+        return result;
+    }
+}
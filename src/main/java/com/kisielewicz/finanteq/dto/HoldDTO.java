@@ -0,0 +1,16 @@
+package com.kisielewicz.finanteq.dto;
+
+import lombok.Data;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+@Data
+public class HoldDTO {
+
+    private String holdId;
+    private Long roomId;
+    private LocalDate startDate;
+    private LocalDate endDate;
+    private Instant expiresAt;
+}
@@ -0,0 +1,14 @@
+package com.kisielewicz.finanteq.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ImportRejectionDTO {
+
+    private long line;
+    private String message;
+}
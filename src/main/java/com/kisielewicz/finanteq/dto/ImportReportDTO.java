@@ -0,0 +1,18 @@
+package com.kisielewicz.finanteq.dto;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+public class ImportReportDTO {
+
+    private long rowsRead;
+    private long imported;
+    private long rejected;
+    private int chunks;
+    private long elapsedMillis;
+    //only the first rejections are listed, rejected holds the count of all
+    private List<ImportRejectionDTO> rejections = new ArrayList<>();
+}
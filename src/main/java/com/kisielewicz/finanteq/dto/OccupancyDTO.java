@@ -0,0 +1,21 @@
+package com.kisielewicz.finanteq.dto;
+
+import lombok.Data;
+
+import java.time.LocalDate;
+
+/**
+ * Occupancy of rooms in the window [from, to). Day i of the arrays is from + i days,
+ * room i of the arrays is the room with id roomIds[i]. Runs of days room i is occupied in are given as
+ * occupiedDayRunsPerRoom[i] = [first day, end day, first day, end day, ...], the end day not being occupied.
+ */
+@Data
+public class OccupancyDTO {
+
+    private LocalDate from;
+    private LocalDate to;
+    private int[] occupiedRoomsPerDay;
+    private long[] roomIds;
+    private int[] occupiedNightsPerRoom;
+    private int[][] occupiedDayRunsPerRoom;
+}
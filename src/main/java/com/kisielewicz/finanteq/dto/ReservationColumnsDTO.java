@@ -0,0 +1,34 @@
+package com.kisielewicz.finanteq.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Listed reservations as parallel arrays - reservation i has id ids[i], room roomIds[i] and is booked
+ * for epoch days [startDays[i], endDays[i]).
+ */
+@Data
+public class ReservationColumnsDTO {
+
+    private long[] ids;
+    private long[] roomIds;
+    private int[] startDays;
+    private int[] endDays;
+
+    public static ReservationColumnsDTO of(List<ReservationSummaryDTO> reservations) {
+        ReservationColumnsDTO columns = new ReservationColumnsDTO();
+        columns.setIds(new long[reservations.size()]);
+        columns.setRoomIds(new long[reservations.size()]);
+        columns.setStartDays(new int[reservations.size()]);
+        columns.setEndDays(new int[reservations.size()]);
+        for (int i = 0; i < reservations.size(); i++) {
+            ReservationSummaryDTO reservation = reservations.get(i);
+            columns.getIds()[i] = reservation.getId();
+            columns.getRoomIds()[i] = reservation.getRoomId();
+            columns.getStartDays()[i] = (int) reservation.getStartDate().toEpochDay();
+            columns.getEndDays()[i] = (int) reservation.getEndDate().toEpochDay();
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,21 @@
+package com.kisielewicz.finanteq.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+
+/**
+ * Reservation as listed - read straight from the reservation table, without its room or mail.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReservationSummaryDTO {
+
+    private Long id;
+    private Long roomId;
+    private LocalDate startDate;
+    private LocalDate endDate;
+}
@@ -0,0 +1,15 @@
+package com.kisielewicz.finanteq.dto;
+
+import lombok.Data;
+
+import java.time.LocalDate;
+
+@Data
+public class RevisionReportDTO {
+
+    private LocalDate date;
+    private int roomsReleased;
+    private int roomsReserved;
+    private int chunks;
+    private long elapsedMillis;
+}
@@ -0,0 +1,212 @@
+package com.kisielewicz.finanteq.helpers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Sheds writes to rooms and reservations before they reach the database, with 429 and Retry-After, when the client
+ * sends more of them than its rate allows or when more writes are in progress than the concurrency limit, which
+ * follows their latency. Bursts are this way turned away instead of queueing for room locks and connections until
+ * every request fails. Reads aren't limited - they are cheap and can be served by the replica.
+ *
+ * Clients are told apart by the header set in admission.client-header, e.g. X-Forwarded-For set by the load
+ * balancer - behind one the remote address is the same for every client, so the filter can't be enabled without it.
+ */
+@Component
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionFilter.class);
+
+    static final String REJECTED_RATE_COUNTER = "admission.rejected.rate";
+    static final String REJECTED_CONCURRENCY_COUNTER = "admission.rejected.concurrency";
+
+    private static final Pattern ID = Pattern.compile("/[^/]*\\d[^/]*(?=/|$)");
+
+    private static final String RATE_EXCEEDED = "Too many requests from the client, please retry later.";
+    private static final String OVERLOADED = "Too many reservation requests are being processed, please retry.";
+
+    private final CounterService counterService;
+    private final boolean enabled;
+    private final String clientHeader;
+    private final ClientRateLimiter rateLimiter;
+    private final ConcurrencyLimit concurrencyLimit;
+    private final LongSupplier clock;
+
+    @Autowired
+    public AdmissionFilter(CounterService counterService,
+                           @Value("${admission.enabled:false}") boolean enabled,
+                           @Value("${admission.client-header:}") String clientHeader,
+                           @Value("${admission.rate-per-second:10}") double ratePerSecond,
+                           @Value("${admission.burst:20}") int burst,
+                           @Value("${admission.max-clients:100000}") long maxClients,
+                           @Value("${admission.initial-limit:20}") int initialLimit,
+                           @Value("${admission.min-limit:2}") int minLimit,
+                           @Value("${admission.max-limit:100}") int maxLimit,
+                           @Value("${admission.latency-tolerance:2.0}") double latencyTolerance) {
+        this(counterService, enabled, clientHeader, new ClientRateLimiter(ratePerSecond, burst, maxClients, System::nanoTime),
+                new ConcurrencyLimit(initialLimit, minLimit, maxLimit, latencyTolerance), System::nanoTime);
+    }
+
+    AdmissionFilter(CounterService counterService, boolean enabled, String clientHeader, ClientRateLimiter rateLimiter,
+                    ConcurrencyLimit concurrencyLimit, LongSupplier clock) {
+        if (enabled && clientHeader.isEmpty()) {
+            throw new IllegalStateException("admission.client-header has to name the header telling clients apart");
+        }
+        this.counterService = counterService;
+        this.enabled = enabled;
+        this.clientHeader = clientHeader;
+        this.rateLimiter = rateLimiter;
+        this.concurrencyLimit = concurrencyLimit;
+        this.clock = clock;
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrencyLimit.getLimit();
+    }
+
+    public int getInFlight() {
+        return concurrencyLimit.getInFlight();
+    }
+
+    public long getClientCount() {
+        return rateLimiter.size();
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!enabled || isRead(request.getMethod())) {
+            return true;
+        }
+        String path = request.getServletPath();
+        return !path.startsWith("/reservations/") && !path.startsWith("/rooms/");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String client = clientOf(request);
+        long waitNanos = rateLimiter.tryAcquire(client);
+        if (waitNanos > 0) {
+            LOGGER.debug("Client: {} exceeded its rate, rejecting: {}", client, request.getServletPath());
+            counterService.increment(REJECTED_RATE_COUNTER);
+            reject(response, TimeUnit.NANOSECONDS.toSeconds(waitNanos - 1) + 1, RATE_EXCEEDED);
+            return;
+        }
+        String endpoint = databaseEndpointOf(request.getServletPath());
+        if (endpoint == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        if (!concurrencyLimit.tryAcquire()) {
+            LOGGER.debug("Concurrency limit: {} reached, rejecting: {}", concurrencyLimit.getLimit(), request.getServletPath());
+            counterService.increment(REJECTED_CONCURRENCY_COUNTER);
+            reject(response, 1, OVERLOADED);
+            return;
+        }
+        long start = clock.getAsLong();
+        boolean async = false;
+        boolean completed = false;
+        try {
+            filterChain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                // writes done by the write executor only finish when their async request completes
+                request.getAsyncContext().addListener(new ReleasingListener(endpoint, start));
+                async = true;
+            }
+            completed = true;
+        } finally {
+            if (!async) {
+                release(endpoint, start, completed ? response.getStatus() : HttpStatus.INTERNAL_SERVER_ERROR.value());
+            }
+        }
+    }
+
+    /**
+     * @return endpoint of the write, with ids left out, when it works on the database - holds live in memory
+     * and imports run for as long as the file takes, so these are only rate limited
+     */
+    static String databaseEndpointOf(String path) {
+        if (path.startsWith("/reservations/import")
+                || path.startsWith("/reservations/hold") && !path.endsWith("/confirm")) {
+            return null;
+        }
+        return ID.matcher(path).replaceAll("/{id}");
+    }
+
+    // only successful writes tell how fast the database is - rejections and errors are fast or slow for other reasons
+    private void release(String endpoint, long start, int status) {
+        if (HttpStatus.valueOf(status).is2xxSuccessful()) {
+            concurrencyLimit.release(endpoint, clock.getAsLong() - start);
+        } else {
+            concurrencyLimit.release();
+        }
+    }
+
+    private String clientOf(HttpServletRequest request) {
+        String client = clientHeader.isEmpty() ? null : request.getHeader(clientHeader);
+        if (client == null || client.isEmpty()) {
+            return request.getRemoteAddr();
+        }
+        // a proxy appends addresses it forwarded for, the first one is the client
+        int comma = client.indexOf(',');
+        return (comma < 0 ? client : client.substring(0, comma)).trim();
+    }
+
+    private static boolean isRead(String method) {
+        return HttpMethod.GET.matches(method) || HttpMethod.HEAD.matches(method) || HttpMethod.OPTIONS.matches(method);
+    }
+
+    private static void reject(HttpServletResponse response, long retryAfterSeconds, String message) throws IOException {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        response.getWriter().write(message);
+    }
+
+    private final class ReleasingListener implements AsyncListener {
+
+        private final String endpoint;
+        private final long start;
+
+        private ReleasingListener(String endpoint, long start) {
+            this.endpoint = endpoint;
+            this.start = start;
+        }
+
+        // called after timeouts and errors as well
+        @Override
+        public void onComplete(AsyncEvent event) {
+            release(endpoint, start, ((HttpServletResponse) event.getSuppliedResponse()).getStatus());
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
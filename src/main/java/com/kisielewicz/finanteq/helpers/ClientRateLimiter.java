@@ -0,0 +1,55 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket of every client, refilled at a fixed rate up to the burst size. A bucket is a single AtomicLong
+ * holding the time at which it gets full again, so taking a token is one compare-and-set and clients never contend
+ * with each other. Buckets of clients not seen for a while are dropped, a dropped bucket is as good as a full one.
+ */
+class ClientRateLimiter {
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final LongSupplier clock;
+    private final Cache<String, AtomicLong> buckets;
+
+    ClientRateLimiter(double tokensPerSecond, int burst, long maxClients, LongSupplier clock) {
+        this.nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / tokensPerSecond);
+        this.burstNanos = nanosPerToken * burst;
+        this.clock = clock;
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(maxClients)
+                .expireAfterAccess(Math.max(burstNanos, TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * @return 0 when the client got a token, otherwise nanoseconds until it gets the next one
+     */
+    long tryAcquire(String client) {
+        AtomicLong fullAt = buckets.get(client, key -> new AtomicLong(Long.MIN_VALUE));
+        while (true) {
+            long now = clock.getAsLong();
+            long current = fullAt.get();
+            // a full bucket stays full, tokens above the burst are never collected
+            long next = Math.max(current == Long.MIN_VALUE ? now : current, now) + nanosPerToken;
+            long wait = next - now - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    long size() {
+        return buckets.estimatedSize();
+    }
+}
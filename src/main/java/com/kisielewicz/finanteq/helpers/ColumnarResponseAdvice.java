@@ -0,0 +1,46 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.kisielewicz.finanteq.dto.ReservationColumnsDTO;
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO;
+import org.springframework.core.MethodParameter;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import java.util.List;
+
+/**
+ * Answers reservation lists as ReservationColumnsDTO to clients accepting COLUMNAR_JSON - parallel arrays of numbers
+ * instead of an object per reservation, which is several times smaller for long lists.
+ */
+@ControllerAdvice
+public class ColumnarResponseAdvice implements ResponseBodyAdvice<Object> {
+
+    public static final String COLUMNAR_JSON_VALUE = "application/vnd.finanteq.columnar+json";
+    public static final MediaType COLUMNAR_JSON = MediaType.parseMediaType(COLUMNAR_JSON_VALUE);
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return AbstractJackson2HttpMessageConverter.class.isAssignableFrom(converterType)
+                && ResolvableType.forMethodParameter(returnType).asCollection().resolveGeneric(0) == ReservationSummaryDTO.class;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        // both formats share ETags, so caches have to tell them apart by Accept
+        response.getHeaders().add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        if (body instanceof List && COLUMNAR_JSON.includes(selectedContentType)) {
+            return ReservationColumnsDTO.of((List<ReservationSummaryDTO>) body);
+        }
+        return body;
+    }
+}
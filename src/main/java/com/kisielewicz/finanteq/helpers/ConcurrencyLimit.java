@@ -0,0 +1,97 @@
+package com.kisielewicz.finanteq.helpers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limit of writes processed at once, following their latency. While writes take about as long as the fastest ones
+ * of the same endpoint in the recent window the limit grows by its square root, once they get slower than that by more
+ * than the tolerance - the database queues them instead of doing more work - it shrinks in proportion. The limit only
+ * grows while at least half of it is used, so a quiet period doesn't leave it open for the next burst.
+ */
+class ConcurrencyLimit {
+
+    private static final double SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final int WINDOW_SAMPLES = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // endpoints differ in the work they do, so each is compared with its own fastest writes
+    private final Map<String, Window> windows = new HashMap<>();
+
+    private volatile double limit;
+
+    ConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Frees the place of a write which completed, adjusting the limit to its latency.
+     */
+    void release(String endpoint, long latencyNanos) {
+        int current = inFlight.getAndDecrement();
+        update(endpoint, latencyNanos, current);
+    }
+
+    /**
+     * Frees the place of a write which failed or was rejected, whose latency says nothing about the database.
+     */
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    private synchronized void update(String endpoint, long latencyNanos, int inFlightBefore) {
+        long noLoadNanos = windows.computeIfAbsent(endpoint, key -> new Window()).add(Math.max(latencyNanos, 1));
+        double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * noLoadNanos / latencyNanos));
+        if (gradient == 1.0 && inFlightBefore < limit / 2) {
+            return;
+        }
+        double target = limit * gradient + (gradient == 1.0 ? Math.sqrt(limit) : 0);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    private static final class Window {
+
+        private long previousMinNanos = Long.MAX_VALUE;
+        private long minNanos = Long.MAX_VALUE;
+        private int samples;
+
+        // the no load latency moves with data size and database load, so it's only kept for two windows
+        private long add(long latencyNanos) {
+            minNanos = Math.min(minNanos, latencyNanos);
+            if (++samples == WINDOW_SAMPLES) {
+                previousMinNanos = minNanos;
+                minNanos = Long.MAX_VALUE;
+                samples = 0;
+            }
+            return Math.min(previousMinNanos, minNanos);
+        }
+    }
+}
@@ -1,24 +1,66 @@
 package com.kisielewicz.finanteq.helpers;
 
+import com.kisielewicz.finanteq.exceptions.BadRequestException;
 import com.kisielewicz.finanteq.exceptions.ConflictException;
 import com.kisielewicz.finanteq.exceptions.NotFoundException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
 
+import java.util.concurrent.RejectedExecutionException;
+
 @ControllerAdvice
 public class ErrorsHandler extends ResponseEntityExceptionHandler {
 
+    static final String CONFLICT_LOCK_COUNTER = "reservation.conflict.lock";
+    static final String REJECTED_WRITE_COUNTER = "reservation.rejected.write";
+
+    private final CounterService counterService;
+
+    @Autowired
+    public ErrorsHandler(CounterService counterService) {
+        this.counterService = counterService;
+    }
+
     @ExceptionHandler({ConflictException.class})
     protected ResponseEntity<Object> handleConflict(RuntimeException ex) {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.CONFLICT);
     }
 
+    @ExceptionHandler({BadRequestException.class})
+    protected ResponseEntity<Object> handleBadRequest(RuntimeException ex) {
+        return new ResponseEntity<>(ex.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+
     @ExceptionHandler({NotFoundException.class})
     protected ResponseEntity<Object> handleNotFound(RuntimeException ex) {
         return new ResponseEntity<>(ex.getMessage(), HttpStatus.NOT_FOUND);
     }
 
+    @ExceptionHandler({PessimisticLockingFailureException.class})
+    protected ResponseEntity<Object> handleLockFailure(RuntimeException ex) {
+        // room locks can time out both while locking rooms and while saving reservations
+        counterService.increment(CONFLICT_LOCK_COUNTER);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        return new ResponseEntity<>("Room is being modified by another request, please retry.", headers,
+                HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    @ExceptionHandler({RejectedExecutionException.class})
+    protected ResponseEntity<Object> handleRejectedWrite(RuntimeException ex) {
+        // write executor is saturated - rejecting right away keeps clients from piling up behind it
+        counterService.increment(REJECTED_WRITE_COUNTER);
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, "1");
+        return new ResponseEntity<>("Too many reservation requests are being processed, please retry.", headers,
+                HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
 }
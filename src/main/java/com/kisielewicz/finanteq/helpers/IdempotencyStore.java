@@ -0,0 +1,216 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.kisielewicz.finanteq.datasource.ShardContext;
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import com.kisielewicz.finanteq.domain.IdempotencyRecord;
+import com.kisielewicz.finanteq.exceptions.ConflictException;
+import com.kisielewicz.finanteq.exceptions.NotFoundException;
+import com.kisielewicz.finanteq.repository.IdempotencyRecordRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.dao.DataAccessException;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Remembers results of writes sent with an Idempotency-Key header, so a retried request gets the response
+ * of the original one instead of being executed again. Results are kept in memory for a limited time and number
+ * of keys and, when persistence is enabled, also in the idempotency_key table, where retries reaching another node
+ * or coming after a restart find them. Keys are stored on the shard of the request's property, where its retries
+ * look for them.
+ */
+@Component
+public class IdempotencyStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    static final String REPLAYED_COUNTER = "reservation.idempotent.replayed";
+
+    private static final String KEY_REUSED = "Idempotency key was already used for a different request.";
+    private static final int MAX_STORED_KEY_LENGTH = 200;
+
+    private final IdempotencyRecordRepository recordRepository;
+    private final ObjectMapper objectMapper;
+    private final ObjectWriter resultWriter;
+    private final CounterService counterService;
+    private final long ttlMillis;
+    private final boolean persistent;
+    private final Cache<String, Entry> entries;
+    private final ShardRouter shardRouter;
+
+    @Autowired
+    public IdempotencyStore(IdempotencyRecordRepository recordRepository, ObjectMapper objectMapper,
+                            CounterService counterService, ShardRouter shardRouter,
+                            @Value("${idempotency.max-keys:100000}") long maxKeys,
+                            @Value("${idempotency.ttl-seconds:86400}") long ttlSeconds,
+                            @Value("${idempotency.persistent:false}") boolean persistent) {
+        this.recordRepository = recordRepository;
+        this.objectMapper = objectMapper;
+        this.resultWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+        this.counterService = counterService;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.persistent = persistent;
+        this.shardRouter = shardRouter;
+        this.entries = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Runs the write the first time the key is used for the operation and returns its result to every later request
+     * with the key, including ones made while the first is still running. Only results and business errors (409, 404)
+     * are remembered - a rejected write or a lock timeout is left for the retry to run again.
+     *
+     * @throws ConflictException when the key was already used for a request with different content
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> execute(String operation, String idempotencyKey, Object request, Class<T> resultType,
+                                            Supplier<CompletableFuture<T>> write) {
+        String key = storedKey(operation, idempotencyKey);
+        int requestHash = Objects.hashCode(request);
+        Entry existing = entries.getIfPresent(key);
+        if (existing == null && persistent) {
+            Entry persisted = loadPersisted(key, resultType);
+            if (persisted != null) {
+                Entry concurrent = entries.asMap().putIfAbsent(key, persisted);
+                existing = concurrent != null ? concurrent : persisted;
+            }
+        }
+        if (existing == null) {
+            Entry entry = new Entry(requestHash);
+            existing = entries.asMap().putIfAbsent(key, entry);
+            if (existing == null) {
+                return (CompletableFuture<T>) start(key, entry, ShardContext.currentProperty(), write);
+            }
+        }
+        if (existing.requestHash != requestHash) {
+            LOGGER.info("Idempotency key: {} reused for a different request, throwing ConflictException", key);
+            throw new ConflictException(KEY_REUSED);
+        }
+        LOGGER.info("Replaying result for idempotency key: {}", key);
+        counterService.increment(REPLAYED_COUNTER);
+        return (CompletableFuture<T>) existing.result;
+    }
+
+    @Scheduled(fixedDelayString = "${idempotency.cleanup-interval-ms:3600000}")
+    public void deleteExpired() {
+        if (persistent) {
+            long createdBefore = System.currentTimeMillis() - ttlMillis;
+            int deleted = shardRouter.fanOut(() -> recordRepository.deleteCreatedBefore(createdBefore)).stream()
+                    .mapToInt(Integer::intValue).sum();
+            LOGGER.info("Deleted {} expired idempotency keys", deleted);
+        }
+    }
+
+    private <T> CompletableFuture<Object> start(String key, Entry entry, Long propertyId, Supplier<CompletableFuture<T>> write) {
+        CompletableFuture<T> result;
+        try {
+            result = write.get();
+        } catch (RuntimeException e) {
+            entries.asMap().remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+        result.whenComplete((value, e) -> {
+            if (e != null && !isRemembered(e)) {
+                entries.asMap().remove(key, entry);
+            } else if (persistent) {
+                // completed on the write executor, which doesn't work for the property of the request
+                ShardContext.callForProperty(propertyId, () -> persist(key, entry.requestHash, value, e));
+            }
+            if (e != null) {
+                entry.result.completeExceptionally(e);
+            } else {
+                entry.result.complete(value);
+            }
+        });
+        return entry.result;
+    }
+
+    private Entry loadPersisted(String key, Class<?> resultType) {
+        IdempotencyRecord record;
+        try {
+            record = recordRepository.findOne(key);
+        } catch (DataAccessException e) {
+            LOGGER.warn("Failed to read idempotency key: {}", key, e);
+            return null;
+        }
+        if (record == null || record.getCreatedAt() < System.currentTimeMillis() - ttlMillis) {
+            return null;
+        }
+        Entry entry = new Entry(record.getRequestHash());
+        if (record.getStatus() == HttpStatus.CONFLICT.value()) {
+            entry.result.completeExceptionally(new ConflictException(record.getBody()));
+        } else if (record.getStatus() == HttpStatus.NOT_FOUND.value()) {
+            entry.result.completeExceptionally(new NotFoundException(record.getBody()));
+        } else {
+            try {
+                entry.result.complete(objectMapper.readValue(record.getBody(), resultType));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read result stored for idempotency key: {}", key, e);
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    private Void persist(String key, int requestHash, Object value, Throwable e) {
+        IdempotencyRecord record = new IdempotencyRecord();
+        record.setKey(key);
+        record.setRequestHash(requestHash);
+        record.setCreatedAt(System.currentTimeMillis());
+        try {
+            if (e == null) {
+                record.setStatus(HttpStatus.OK.value());
+                record.setBody(resultWriter.writeValueAsString(value));
+            } else {
+                record.setStatus((e instanceof ConflictException ? HttpStatus.CONFLICT : HttpStatus.NOT_FOUND).value());
+                record.setBody(e.getMessage());
+            }
+            recordRepository.save(record);
+        } catch (IOException | DataAccessException failure) {
+            // the key is still remembered in memory, only retries reaching other nodes run the write again
+            LOGGER.warn("Failed to store idempotency key: {}", key, failure);
+        }
+        return null;
+    }
+
+    private static boolean isRemembered(Throwable e) {
+        return e instanceof ConflictException || e instanceof NotFoundException;
+    }
+
+    private static String storedKey(String operation, String idempotencyKey) {
+        if (idempotencyKey.length() > MAX_STORED_KEY_LENGTH) {
+            idempotencyKey = UUID.nameUUIDFromBytes(idempotencyKey.getBytes(StandardCharsets.UTF_8)).toString();
+        }
+        return operation + ":" + idempotencyKey;
+    }
+
+    private static final class Entry {
+
+        private final int requestHash;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        private Entry(int requestHash) {
+            this.requestHash = requestHash;
+        }
+    }
+}
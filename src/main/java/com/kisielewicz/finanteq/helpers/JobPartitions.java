@@ -0,0 +1,207 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import com.kisielewicz.finanteq.domain.JobPartition;
+import com.kisielewicz.finanteq.repository.JobPartitionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs scheduled jobs once per day across all nodes. The rooms a job works on are split into ranges of ids kept
+ * in the job_partition table - every node running the job takes leases of the ranges nobody holds and processes them
+ * in chunks, each committed together with the checkpoint of its range. A range left behind by a node which stopped
+ * is taken over once its lease expires and resumed from the checkpoint.
+ *
+ * Partitions live next to the rooms they cover, so with shards the job is run for every shard.
+ */
+@Component
+public class JobPartitions {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobPartitions.class);
+
+    /**
+     * Work done for one chunk of room ids, in the transaction which records the chunk as done.
+     */
+    @FunctionalInterface
+    public interface ChunkWork<T> {
+
+        T process(LocalDate runDate, long fromId, long toId);
+    }
+
+    private final JobPartitionRepository partitionRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ShardRouter shardRouter;
+    private final String nodeId;
+    private final long partitionSize;
+    private final long leaseMillis;
+    private final int keepDays;
+    private final LongSupplier clock;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    @Autowired
+    public JobPartitions(JobPartitionRepository partitionRepository, PlatformTransactionManager transactionManager,
+                         ShardRouter shardRouter, @Value("${jobs.node-id:}") String nodeId,
+                         @Value("${jobs.partition-size:10000}") long partitionSize,
+                         @Value("${jobs.lease-ms:300000}") long leaseMillis,
+                         @Value("${jobs.keep-days:7}") int keepDays) {
+        this(partitionRepository, transactionManager, shardRouter,
+                nodeId.isEmpty() ? ManagementFactory.getRuntimeMXBean().getName() : nodeId,
+                partitionSize, leaseMillis, keepDays, System::currentTimeMillis);
+    }
+
+    JobPartitions(JobPartitionRepository partitionRepository, PlatformTransactionManager transactionManager,
+                  ShardRouter shardRouter, String nodeId, long partitionSize, long leaseMillis, int keepDays,
+                  LongSupplier clock) {
+        this.partitionRepository = partitionRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.shardRouter = shardRouter;
+        this.nodeId = nodeId;
+        this.partitionSize = partitionSize;
+        this.leaseMillis = leaseMillis;
+        this.keepDays = keepDays;
+        this.clock = clock;
+    }
+
+    /**
+     * Makes the job known to this node, so it can run it and take over its partitions left behind by other nodes.
+     */
+    public void register(String jobName, int chunkSize, ChunkWork<?> work) {
+        jobs.put(jobName, new Job(chunkSize, work));
+    }
+
+    /**
+     * Runs the job for the day on rooms of the current shard, up to the given id, taking every partition which
+     * is free. Partitions already done - by this run or an earlier one of the same day - are skipped.
+     *
+     * @return results of the chunks processed by this node
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> run(String jobName, LocalDate runDate, long maxId) {
+        Job job = job(jobName);
+        List<JobPartition> partitions = partitionsOf(jobName, runDate, maxId);
+        // nodes starting together go for different partitions first
+        Collections.rotate(partitions, Math.floorMod(nodeId.hashCode(), Math.max(partitions.size(), 1)));
+        List<T> results = new ArrayList<>();
+        for (JobPartition partition : partitions) {
+            if (!partition.isDone() && claim(partition)) {
+                process(job, partition, (List<Object>) results);
+            }
+        }
+        LOGGER.info("Node: {} processed {} chunks of job: {} for: {}", nodeId, results.size(), jobName, runDate);
+        return results;
+    }
+
+    /**
+     * Resumes partitions whose owner stopped renewing its lease, as long as they belong to the newest run of their job,
+     * and forgets partitions of old runs.
+     */
+    @Scheduled(fixedDelayString = "${jobs.resume-interval-ms:60000}")
+    public void resumeAbandoned() {
+        LocalDate today = LocalDate.now();
+        shardRouter.fanOut(() -> {
+            long now = clock.getAsLong();
+            for (JobPartition partition : partitionRepository.findAbandonedOfNewestRuns(today.minusDays(1), now)) {
+                Job job = jobs.get(partition.getJobName());
+                if (job != null && claim(partition)) {
+                    LOGGER.info("Resuming partition: {} of job: {} from id: {}", partition.getId(),
+                            partition.getJobName(), partition.getCheckpointId() + 1);
+                    process(job, partition, new ArrayList<>());
+                }
+            }
+            return partitionRepository.deleteRunBefore(today.minusDays(keepDays));
+        });
+    }
+
+    private Job job(String jobName) {
+        Job job = jobs.get(jobName);
+        if (job == null) {
+            throw new IllegalStateException("Job: " + jobName + " isn't registered");
+        }
+        return job;
+    }
+
+    private List<JobPartition> partitionsOf(String jobName, LocalDate runDate, long maxId) {
+        List<JobPartition> partitions = partitionRepository.findByJobNameAndRunDateOrderByFromId(jobName, runDate);
+        if (!partitions.isEmpty() || maxId < 1) {
+            return partitions;
+        }
+        List<JobPartition> created = new ArrayList<>();
+        for (long fromId = 1; fromId <= maxId; fromId += partitionSize) {
+            JobPartition partition = new JobPartition();
+            partition.setJobName(jobName);
+            partition.setRunDate(runDate);
+            partition.setFromId(fromId);
+            partition.setToId(Math.min(fromId + partitionSize - 1, maxId));
+            partition.setCheckpointId(fromId - 1);
+            created.add(partition);
+        }
+        try {
+            transactionTemplate.execute(status -> partitionRepository.save(created));
+            LOGGER.info("Split job: {} for: {} into {} partitions", jobName, runDate, created.size());
+            return created;
+        } catch (DataIntegrityViolationException e) {
+            LOGGER.info("Job: {} for: {} was already split by another node", jobName, runDate);
+            return partitionRepository.findByJobNameAndRunDateOrderByFromId(jobName, runDate);
+        }
+    }
+
+    private boolean claim(JobPartition partition) {
+        long now = clock.getAsLong();
+        return partitionRepository.claim(partition.getId(), nodeId, now, now + leaseMillis) == 1;
+    }
+
+    private void process(Job job, JobPartition partition, List<Object> results) {
+        // the partition may have been read before its previous owner moved the checkpoint
+        long checkpointId = partitionRepository.findCheckpoint(partition.getId());
+        for (long fromId = checkpointId + 1; fromId <= partition.getToId(); fromId += job.chunkSize) {
+            long toId = Math.min(fromId + job.chunkSize - 1, partition.getToId());
+            boolean last = toId == partition.getToId();
+            long chunkFromId = fromId;
+            try {
+                results.add(transactionTemplate.execute(status -> {
+                    Object result = job.work.process(partition.getRunDate(), chunkFromId, toId);
+                    if (partitionRepository.checkpoint(partition.getId(), nodeId, toId, last,
+                            clock.getAsLong() + leaseMillis) != 1) {
+                        throw new LeaseLostException();
+                    }
+                    return result;
+                }));
+            } catch (LeaseLostException e) {
+                LOGGER.warn("Lost lease of partition: {} of job: {}, leaving it at id: {}", partition.getId(),
+                        partition.getJobName(), chunkFromId - 1);
+                return;
+            }
+        }
+    }
+
+    private static final class Job {
+
+        private final int chunkSize;
+        private final ChunkWork<?> work;
+
+        private Job(int chunkSize, ChunkWork<?> work) {
+            this.chunkSize = chunkSize;
+            this.work = work;
+        }
+    }
+
+    // rolls back the chunk, which another node is going to do again
+    private static final class LeaseLostException extends RuntimeException {
+    }
+}
@@ -0,0 +1,231 @@
+package com.kisielewicz.finanteq.helpers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends mails in the background. Mails are put on a bounded queue and taken off it in batches by a pool of workers,
+ * each keeping its SMTP connection open for as long as there is something to send. Failed mails are retried
+ * with exponential backoff. On shutdown workers send what is left in the queue for up to the drain timeout,
+ * mails still queued or waiting for a retry after it are logged as dropped.
+ */
+@Component
+public class MailDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MailDispatcher.class);
+
+    private static final long ENQUEUE_TIMEOUT_SECONDS = 10;
+    private static final long IDLE_TIMEOUT_MILLIS = 1000;
+    private static final String SEND_TIMER = "timer.mail.send";
+
+    private final Mailer mailer;
+    private final GaugeService gaugeService;
+    private final BlockingQueue<MailTask> queue;
+    private final int workerCount;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private final long drainTimeoutMillis;
+
+    private final ExecutorService workers;
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private volatile boolean running;
+
+    @Autowired
+    public MailDispatcher(Mailer mailer, GaugeService gaugeService, @Value("${mail.queue-capacity:10000}") int queueCapacity,
+                          @Value("${mail.workers:2}") int workerCount, @Value("${mail.batch-size:50}") int batchSize,
+                          @Value("${mail.max-attempts:3}") int maxAttempts,
+                          @Value("${mail.retry-backoff-ms:1000}") long retryBackoffMillis,
+                          @Value("${mail.drain-timeout-ms:5000}") long drainTimeoutMillis) {
+        this.mailer = mailer;
+        this.gaugeService = gaugeService;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.workerCount = workerCount;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.workers = Executors.newFixedThreadPool(workerCount);
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            workers.submit(this::work);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        int waitingForRetry = retries.shutdownNow().size();
+        if (waitingForRetry > 0) {
+            LOGGER.warn("Dropping {} mails waiting for retry", waitingForRetry);
+            failed.addAndGet(waitingForRetry);
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(drainTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Mail queue not drained in {} ms, stopping workers", drainTimeoutMillis);
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        List<MailTask> dropped = new ArrayList<>();
+        queue.drainTo(dropped);
+        for (MailTask task : dropped) {
+            LOGGER.warn("Dropping queued mail to: {}", task.to);
+        }
+        failed.addAndGet(dropped.size());
+    }
+
+    /**
+     * Queues a reminder mail, waiting for space in the queue if it's full.
+     *
+     * @return false when the mail couldn't be queued
+     */
+    public boolean dispatch(String to) {
+        try {
+            if (queue.offer(new MailTask(to, 1), ENQUEUE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.warn("Mail queue is full, dropping mail to: {}", to);
+        failed.incrementAndGet();
+        return false;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    private void work() {
+        Transport transport = null;
+        List<MailTask> batch = new ArrayList<>(batchSize);
+        try {
+            // once stopped, what is left in the queue is still sent
+            while (running || !queue.isEmpty()) {
+                MailTask first = queue.poll(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    transport = close(transport);
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                transport = send(transport, batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(transport);
+        }
+    }
+
+    private Transport send(Transport transport, List<MailTask> batch) {
+        LOGGER.info("Sending batch of {} mails", batch.size());
+        for (MailTask task : batch) {
+            long start = System.nanoTime();
+            try {
+                if (transport == null || !transport.isConnected()) {
+                    transport = mailer.connect();
+                }
+                Message message = mailer.compose(task.to);
+                transport.sendMessage(message, message.getAllRecipients());
+                sent.incrementAndGet();
+            } catch (MessagingException | RuntimeException e) {
+                LOGGER.warn("Failed to send mail to: {} on attempt {}", task.to, task.attempt, e);
+                transport = close(transport);
+                retryLater(task);
+            } finally {
+                gaugeService.submit(SEND_TIMER, (System.nanoTime() - start) / 1e6);
+            }
+        }
+        return transport;
+    }
+
+    private void retryLater(MailTask task) {
+        if (task.attempt >= maxAttempts) {
+            LOGGER.error("Giving up sending mail to: {} after {} attempts", task.to, task.attempt);
+            failed.incrementAndGet();
+            return;
+        }
+        long delay = retryBackoffMillis << (task.attempt - 1);
+        try {
+            retries.schedule(() -> {
+                if (!queue.offer(new MailTask(task.to, task.attempt + 1))) {
+                    LOGGER.warn("Mail queue is full, dropping retried mail to: {}", task.to);
+                    failed.incrementAndGet();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            retried.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("Dispatcher is stopping, dropping mail to: {}", task.to);
+            failed.incrementAndGet();
+        }
+    }
+
+    private Transport close(Transport transport) {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException | RuntimeException e) {
+                LOGGER.warn("Failed to close SMTP connection", e);
+            }
+        }
+        return null;
+    }
+
+    private static final class MailTask {
+
+        private final String to;
+        private final int attempt;
+
+        private MailTask(String to, int attempt) {
+            this.to = to;
+            this.attempt = attempt;
+        }
+    }
+}
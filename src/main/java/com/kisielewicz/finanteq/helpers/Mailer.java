@@ -1,47 +1,59 @@
 package com.kisielewicz.finanteq.helpers;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
 
 import javax.mail.*;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import java.util.Properties;
 
+@Component
 public class Mailer {
 
-    @Value("${mail.username}")
-    private static String USERNAME;
+    private static final String SUBJECT = "Your room reservation";
+    private static final String TEXT = "Your room reservation starts tomorrow. " +
+            "Please remember about your reservation or cancel it at your earliest convenience.";
 
-    @Value("${mail.password}")
-    private static String PASSWORD;
+    private final String username;
+    private final Session session;
 
-    public static void mail(String to) {
+    @Autowired
+    public Mailer(@Value("${mail.username}") String username, @Value("${mail.password}") String password,
+                  @Value("${mail.host:smtp.gmail.com}") String host, @Value("${mail.port:587}") int port,
+                  @Value("${mail.starttls:true}") boolean startTls) {
+        this.username = username;
 
         Properties props = new Properties();
         props.put("mail.smtp.auth", "true");
-        props.put("mail.smtp.starttls.enable", "true");
-        props.put("mail.smtp.host", "smtp.gmail.com");
-        props.put("mail.smtp.port", "587");
+        props.put("mail.smtp.starttls.enable", String.valueOf(startTls));
+        props.put("mail.smtp.host", host);
+        props.put("mail.smtp.port", String.valueOf(port));
 
-        Session session = Session.getInstance(props,
+        this.session = Session.getInstance(props,
                 new javax.mail.Authenticator() {
                     protected PasswordAuthentication getPasswordAuthentication() {
-                        return new PasswordAuthentication(USERNAME, PASSWORD);
+                        return new PasswordAuthentication(username, password);
                     }
                 });
+    }
 
-        try {
-
-            Message message = new MimeMessage(session);
-            message.setFrom(new InternetAddress(USERNAME));
-            message.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
-            message.setSubject("Your room reservation");
-            message.setText("Your room reservation starts tomorrow. Please remember about your reservation or cancel it at your earliest convenience.");
+    public Message compose(String to) throws MessagingException {
+        Message message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(username));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
+        message.setSubject(SUBJECT);
+        message.setText(TEXT);
+        return message;
+    }
 
-            Transport.send(message);
-            System.out.println("Sent message successfully....");
-        } catch (MessagingException mex) {
-            mex.printStackTrace();
-        }
+    /**
+     * Opens SMTP connection which can be used to send many messages, unlike {@link Transport#send(Message)}.
+     */
+    public Transport connect() throws MessagingException {
+        Transport transport = session.getTransport("smtp");
+        transport.connect();
+        return transport;
     }
 }
@@ -0,0 +1,63 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.kisielewicz.finanteq.datasource.ShardContext;
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Binds requests with a Property-Id header to the property, so they are served by its shard. Requests without
+ * the header work for no property in particular - they write to the default property and read all of them.
+ */
+@Component
+public class PropertyFilter extends OncePerRequestFilter {
+
+    public static final String PROPERTY_HEADER = "Property-Id";
+
+    private static final String PROPERTY_NOT_FOUND = "No property by id:%s found.";
+
+    private final ShardRouter shardRouter;
+
+    @Autowired
+    public PropertyFilter(ShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String header = request.getHeader(PROPERTY_HEADER);
+        if (header == null) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        Long propertyId = parse(header);
+        if (propertyId == null || !shardRouter.hasProperty(propertyId)) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            response.getWriter().write(String.format(PROPERTY_NOT_FOUND, header));
+            return;
+        }
+        ShardContext.setProperty(propertyId);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ShardContext.setProperty(null);
+        }
+    }
+
+    private static Long parse(String header) {
+        try {
+            return Long.valueOf(header.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
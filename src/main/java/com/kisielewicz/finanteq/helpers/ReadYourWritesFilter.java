@@ -0,0 +1,154 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.kisielewicz.finanteq.datasource.ReplicaContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.WebUtils;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Gives responses to writes a cookie with the time they completed at, and binds reads sending it back to that time,
+ * so they go to the primary until the replica has the client's writes. Clients without the cookie read from
+ * the replica. It outlives the max lag of the replica, beyond which every read goes to the primary anyway.
+ */
+@Component
+@ConditionalOnProperty(name = "datasource.replica.enabled", havingValue = "true")
+public class ReadYourWritesFilter extends OncePerRequestFilter {
+
+    static final String LAST_WRITE_COOKIE = "Last-Write";
+
+    private final int cookieMaxAgeSeconds;
+    private final LongSupplier clock;
+
+    @Autowired
+    public ReadYourWritesFilter(@Value("${datasource.replica.max-lag-ms:5000}") long maxLagMillis) {
+        this(maxLagMillis, System::currentTimeMillis);
+    }
+
+    ReadYourWritesFilter(long maxLagMillis, LongSupplier clock) {
+        this.cookieMaxAgeSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(maxLagMillis) + 1;
+        this.clock = clock;
+    }
+
+    //writes run on the write executor complete when their result is dispatched
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (!isRead(request.getMethod())) {
+            if (request.getDispatcherType() == DispatcherType.ASYNC) {
+                response.addCookie(lastWriteCookie());
+                filterChain.doFilter(request, response);
+                return;
+            }
+            LastWriteResponse lastWriteResponse = new LastWriteResponse(response);
+            filterChain.doFilter(request, lastWriteResponse);
+            if (request.isAsyncStarted()) {
+                lastWriteResponse.cookieAdded = true;
+            } else {
+                lastWriteResponse.addLastWriteCookie();
+            }
+            return;
+        }
+        ReplicaContext.setLastWrite(lastWriteOf(request));
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            ReplicaContext.setLastWrite(null);
+        }
+    }
+
+    private Cookie lastWriteCookie() {
+        Cookie cookie = new Cookie(LAST_WRITE_COOKIE, String.valueOf(clock.getAsLong()));
+        cookie.setPath("/");
+        cookie.setMaxAge(cookieMaxAgeSeconds);
+        cookie.setHttpOnly(true);
+        return cookie;
+    }
+
+    private static Long lastWriteOf(HttpServletRequest request) {
+        Cookie cookie = WebUtils.getCookie(request, LAST_WRITE_COOKIE);
+        if (cookie == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(cookie.getValue());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isRead(String method) {
+        return HttpMethod.GET.matches(method) || HttpMethod.HEAD.matches(method) || HttpMethod.OPTIONS.matches(method);
+    }
+
+    /**
+     * Adds the cookie right before the response of a synchronous write is committed, after its transaction committed.
+     */
+    private final class LastWriteResponse extends HttpServletResponseWrapper {
+
+        private boolean cookieAdded;
+
+        private LastWriteResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            addLastWriteCookie();
+            return super.getOutputStream();
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            addLastWriteCookie();
+            return super.getWriter();
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            addLastWriteCookie();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            addLastWriteCookie();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            addLastWriteCookie();
+            super.sendError(sc, msg);
+        }
+
+        private void addLastWriteCookie() {
+            if (cookieAdded || isCommitted()) {
+                return;
+            }
+            cookieAdded = true;
+            addCookie(lastWriteCookie());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import com.kisielewicz.finanteq.domain.ResourceVersion;
+import com.kisielewicz.finanteq.repository.ResourceVersionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Versions of rooms and reservations, bumped by every write and used as ETags of read endpoints,
+ * so polling clients get 304 Not Modified without the data being queried and serialized again.
+ *
+ * Versions are kept in the resource_version table of every shard, so writes of any node change the ETags handed
+ * out by all of them. Reading them costs a primary key lookup instead of the query and serialization of the response.
+ * Rows changed around the application, e.g. by hand, don't bump them.
+ */
+@Component
+public class ResourceVersions {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceVersions.class);
+
+    private static final Comparator<ResourceVersion> BY_RESOURCE = Comparator.comparing(ResourceVersion::getResource);
+
+    public enum Resource {
+        ROOMS, RESERVATIONS
+    }
+
+    private final ResourceVersionRepository resourceVersionRepository;
+    private final ShardRouter shardRouter;
+
+    @Autowired
+    public ResourceVersions(ResourceVersionRepository resourceVersionRepository, ShardRouter shardRouter) {
+        this.resourceVersionRepository = resourceVersionRepository;
+        this.shardRouter = shardRouter;
+    }
+
+    /**
+     * Bumps versions on the shard of the current property once the current transaction commits, so clients can't
+     * get an ETag of a version whose data isn't visible yet.
+     */
+    public void bumpAfterTransaction(Resource... resources) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            bump(resources);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                bump(resources);
+            }
+        });
+    }
+
+    /**
+     * @return versions of the resources on the shard of the current property, or on every shard when the thread
+     * works for no property in particular
+     */
+    public String etag(Resource... resources) {
+        List<ResourceVersion> versions = shardRouter.readMerged(resourceVersionRepository::findAll, BY_RESOURCE, Integer.MAX_VALUE);
+        StringBuilder etag = new StringBuilder("\"");
+        for (Resource resource : resources) {
+            for (ResourceVersion version : versions) {
+                if (version.getResource().equals(resource.name())) {
+                    if (etag.length() > 1) {
+                        etag.append('-');
+                    }
+                    etag.append(version.getVersion());
+                }
+            }
+        }
+        return etag.append('"').toString();
+    }
+
+    /**
+     * @return version of the resource on the shard of the current property, for keying cached reads by it
+     */
+    public long version(Resource resource) {
+        ResourceVersion version = resourceVersionRepository.findOne(resource.name());
+        return version == null ? 0 : version.getVersion();
+    }
+
+    // the write already committed, failing it now would only make the client retry it
+    private void bump(Resource... resources) {
+        List<String> names = new ArrayList<>(resources.length);
+        for (Resource resource : resources) {
+            names.add(resource.name());
+        }
+        try {
+            resourceVersionRepository.bump(names);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to bump versions of: {}, clients may get 304 Not Modified until the next write", names, e);
+        }
+    }
+}
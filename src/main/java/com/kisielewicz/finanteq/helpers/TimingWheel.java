@@ -0,0 +1,105 @@
+package com.kisielewicz.finanteq.helpers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel of items expiring at a given time. Every level is a ring of buckets, each covering one
+ * tick of the level, and a tick of a level spans the whole ring of the level below. Scheduling and expiring an item
+ * costs the same no matter how many items are scheduled - items far in the future wait in the upper levels and are
+ * moved down a level each time the level below comes round to them.
+ *
+ * Items expire with the precision of one tick of the lowest level. Not thread safe - callers synchronize access.
+ */
+public class TimingWheel<T> {
+
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long intervalMillis;
+    private final ArrayDeque<Timeout<T>>[] buckets;
+
+    private long currentTime;
+    private TimingWheel<T> overflow;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.intervalMillis = tickMillis * wheelSize;
+        this.buckets = new ArrayDeque[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        this.currentTime = startMillis - Math.floorMod(startMillis, tickMillis);
+    }
+
+    public void schedule(T item, long deadlineMillis) {
+        add(new Timeout<>(item, deadlineMillis));
+    }
+
+    /**
+     * Moves the wheel to the given time.
+     *
+     * @return items which expired by then, including ones scheduled with a deadline already in the past
+     */
+    public List<T> advanceTo(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        while (currentTime + tickMillis <= nowMillis) {
+            for (Timeout<T> timeout : bucket(currentTime)) {
+                expired.add(timeout.item);
+            }
+            bucket(currentTime).clear();
+            currentTime += tickMillis;
+            cascade();
+        }
+        return expired;
+    }
+
+    private void add(Timeout<T> timeout) {
+        if (timeout.deadline < currentTime + tickMillis) {
+            bucket(currentTime).add(timeout);
+        } else if (timeout.deadline < currentTime + intervalMillis) {
+            bucket(timeout.deadline).add(timeout);
+        } else {
+            if (overflow == null) {
+                overflow = new TimingWheel<>(intervalMillis, wheelSize, currentTime);
+            }
+            overflow.add(timeout);
+        }
+    }
+
+    /**
+     * After the wheel came round, the items of the upper level's bucket which starts now are spread over this level.
+     */
+    private void cascade() {
+        if (overflow != null && Math.floorMod(currentTime, intervalMillis) == 0) {
+            for (Timeout<T> timeout : overflow.advanceOneTick()) {
+                add(timeout);
+            }
+        }
+    }
+
+    private List<Timeout<T>> advanceOneTick() {
+        currentTime += tickMillis;
+        cascade();
+        List<Timeout<T>> starting = new ArrayList<>(bucket(currentTime));
+        bucket(currentTime).clear();
+        return starting;
+    }
+
+    private ArrayDeque<Timeout<T>> bucket(long time) {
+        return buckets[(int) Math.floorMod(Math.floorDiv(time, tickMillis), (long) wheelSize)];
+    }
+
+    private static final class Timeout<T> {
+
+        private final T item;
+        private final long deadline;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.kisielewicz.finanteq.helpers;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex;
+import com.kisielewicz.finanteq.datasource.ShardContext;
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import com.kisielewicz.finanteq.domain.Reservation;
+import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.dto.ReservationColumnsDTO;
+import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO;
+import com.kisielewicz.finanteq.dto.RevisionReportDTO;
+import com.kisielewicz.finanteq.repository.ReservationRepository;
+import com.kisielewicz.finanteq.repository.RoomRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs the paths which otherwise initialize lazily on the first user requests - translation and preparing of the
+ * queries, Jackson serializers, JIT compilation of the overlap checks and the first requests through the dispatcher
+ * servlet - once the application has started. Until it is done the application reports it isn't ready to take
+ * traffic, see {@link com.kisielewicz.finanteq.metrics.WarmUpHealthIndicator}.
+ */
+@Component
+public class WarmUp implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WarmUp.class);
+
+    static final long FAILED = -1;
+
+    private final ReservationRepository reservationRepository;
+    private final RoomRepository roomRepository;
+    private final RoomAvailabilityIndex availabilityIndex;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate readOnlyTransaction;
+    private final ShardRouter shardRouter;
+    private final boolean enabled;
+    private final int overlapChecks;
+    private final boolean swaggerEnabled;
+
+    private final Map<String, Long> phaseMillis = Collections.synchronizedMap(new LinkedHashMap<>());
+    private volatile boolean done;
+
+    @Autowired
+    public WarmUp(ReservationRepository reservationRepository, RoomRepository roomRepository,
+                  RoomAvailabilityIndex availabilityIndex, ObjectMapper objectMapper,
+                  PlatformTransactionManager transactionManager, ShardRouter shardRouter,
+                  @Value("${warmup.enabled:true}") boolean enabled,
+                  @Value("${warmup.overlap-checks:20000}") int overlapChecks,
+                  @Value("${swagger.enabled:true}") boolean swaggerEnabled) {
+        this.reservationRepository = reservationRepository;
+        this.roomRepository = roomRepository;
+        this.availabilityIndex = availabilityIndex;
+        this.objectMapper = objectMapper;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.shardRouter = shardRouter;
+        this.enabled = enabled;
+        this.overlapChecks = overlapChecks;
+        this.swaggerEnabled = swaggerEnabled;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        phaseMillis.put("context", ManagementFactory.getRuntimeMXBean().getUptime());
+        if (enabled) {
+            phase("queries", this::warmUpQueries);
+            phase("serializers", this::warmUpSerializers);
+            phase("overlap-checks", this::warmUpOverlapChecks);
+            phase("requests", () -> warmUpRequests(event.getApplicationContext().getEnvironment()));
+        }
+        done = true;
+        LOGGER.info("Warm-up done, ready for traffic. Startup phases took (ms): {}", phaseMillis);
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return time every finished phase took in milliseconds, or -1 when it failed
+     */
+    public Map<String, Long> getPhaseMillis() {
+        synchronized (phaseMillis) {
+            return new LinkedHashMap<>(phaseMillis);
+        }
+    }
+
+    // a failed phase only leaves its path cold, so it doesn't keep the application from getting ready
+    void phase(String name, Runnable phase) {
+        LOGGER.info("Warming up: {}", name);
+        long start = System.nanoTime();
+        try {
+            phase.run();
+            phaseMillis.put(name, (System.nanoTime() - start) / 1_000_000);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to warm up: {}", name, e);
+            phaseMillis.put(name, FAILED);
+        }
+    }
+
+    private void warmUpQueries() {
+        LocalDate today = LocalDate.now();
+        PageRequest firstRow = new PageRequest(0, 1);
+        shardRouter.fanOut(() -> readOnlyTransaction.execute(status -> {
+            reservationRepository.findOne(0L);
+            reservationRepository.findSummariesAfter(0L, firstRow);
+            reservationRepository.findSummariesForRoomAfter(0L, 0L, firstRow);
+            reservationRepository.findSummariesStartingAfter(today, 0L, firstRow);
+            reservationRepository.findSummariesForRoomStartingAfter(0L, today);
+            reservationRepository.findMailsByStartDateForRooms(today, 0L, 0L);
+            reservationRepository.findBookingsOverlapping(Collections.singleton(0L), today, today.plusDays(1));
+            return roomRepository.findMaxId();
+        }));
+    }
+
+    private void warmUpSerializers() {
+        Room room = new Room();
+        room.setId(0L);
+        room.setIsReserved(false);
+        room.setPropertyId(ShardContext.DEFAULT_PROPERTY);
+        Reservation reservation = new Reservation();
+        reservation.setId(0L);
+        reservation.setRoom(room);
+        reservation.setStartDate(LocalDate.now());
+        reservation.setEndDate(LocalDate.now().plusDays(1));
+        reservation.setMail("warm-up@localhost");
+        reservation.copyPropertyOfRoom();
+        List<ReservationSummaryDTO> summaries = Collections.singletonList(
+                new ReservationSummaryDTO(0L, 0L, reservation.getStartDate(), reservation.getEndDate()));
+        try {
+            objectMapper.writeValueAsBytes(reservation);
+            objectMapper.writeValueAsBytes(Collections.singletonList(room));
+            objectMapper.writeValueAsBytes(summaries);
+            objectMapper.writeValueAsBytes(ReservationColumnsDTO.of(summaries));
+            objectMapper.writeValueAsBytes(new RevisionReportDTO());
+            objectMapper.readValue(objectMapper.writeValueAsBytes(new ReservationDTO()), ReservationDTO.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // read only checks on random date ranges, enough of them for the JIT to compile the paths of real requests
+    private void warmUpOverlapChecks() {
+        LocalDate today = LocalDate.now();
+        List<Long> roomIds = availabilityIndex.findFreeRooms(today.plusDays(1), today.plusDays(2));
+        if (roomIds.isEmpty()) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < overlapChecks; i++) {
+            LocalDate startDate = today.plusDays(random.nextInt(60));
+            LocalDate endDate = startDate.plusDays(1 + random.nextInt(14));
+            availabilityIndex.isFree(roomIds.get(random.nextInt(roomIds.size())), startDate, endDate, null);
+            if (i % 1000 == 0) {
+                availabilityIndex.findFreeRoomsBestFit(startDate, endDate);
+            }
+        }
+    }
+
+    private void warmUpRequests(Environment environment) {
+        String port = environment.getProperty("local.server.port");
+        if (port == null) {
+            LOGGER.info("Not running in embedded server, skipping warm-up requests");
+            return;
+        }
+        RestTemplate restTemplate = new RestTemplate();
+        String baseUrl = "http://localhost:" + port;
+        restTemplate.getForObject(baseUrl + "/reservations/all?limit=1", String.class);
+        if (swaggerEnabled) {
+            restTemplate.getForObject(baseUrl + "/v2/api-docs", String.class);
+        }
+    }
+}
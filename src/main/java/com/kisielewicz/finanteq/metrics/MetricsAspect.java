@@ -0,0 +1,88 @@
+package com.kisielewicz.finanteq.metrics;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.aop.framework.AopProxyUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Times controller methods, repository queries and scheduled jobs. Durations are submitted as "timer." gauges,
+ * which the Dropwizard metric services record as timers with rates and percentiles, visible under /metrics.
+ * Methods returning a {@link CompletionStage} are timed until it completes.
+ */
+@Aspect
+@Component
+public class MetricsAspect {
+
+    static final String CONTROLLER_TIMER = "timer.controller.";
+    static final String REPOSITORY_TIMER = "timer.repository.";
+    static final String JOB_TIMER = "timer.job.";
+
+    private final GaugeService gaugeService;
+    private final Map<Class<?>, String> repositoryNames = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MetricsAspect(GaugeService gaugeService) {
+        this.gaugeService = gaugeService;
+    }
+
+    @Around("execution(public * com.kisielewicz.finanteq.web..*(..))")
+    public Object timeController(ProceedingJoinPoint joinPoint) throws Throwable {
+        return timed(CONTROLLER_TIMER + joinPoint.getSignature().getDeclaringType().getSimpleName() + "."
+                + joinPoint.getSignature().getName(), joinPoint);
+    }
+
+    @Around("execution(public * org.springframework.data.repository.Repository+.*(..))")
+    public Object timeRepository(ProceedingJoinPoint joinPoint) throws Throwable {
+        return timed(REPOSITORY_TIMER + repositoryName(joinPoint.getTarget()) + "."
+                + joinPoint.getSignature().getName(), joinPoint);
+    }
+
+    @Around("@annotation(org.springframework.scheduling.annotation.Scheduled)")
+    public Object timeJob(ProceedingJoinPoint joinPoint) throws Throwable {
+        return timed(JOB_TIMER + joinPoint.getSignature().getName(), joinPoint);
+    }
+
+    private Object timed(String name, ProceedingJoinPoint joinPoint) throws Throwable {
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = joinPoint.proceed();
+        } catch (Throwable e) {
+            submit(name, start);
+            throw e;
+        }
+        if (result instanceof CompletionStage) {
+            ((CompletionStage<?>) result).whenComplete((value, e) -> submit(name, start));
+        } else {
+            submit(name, start);
+        }
+        return result;
+    }
+
+    private void submit(String name, long start) {
+        gaugeService.submit(name, (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Repositories are proxies implementing both the repository interface and the Spring Data ones it extends,
+     * so methods inherited from CrudRepository are reported under the name of the repository interface.
+     */
+    private String repositoryName(Object repository) {
+        return repositoryNames.computeIfAbsent(repository.getClass(), proxyClass -> {
+            for (Class<?> repositoryInterface : AopProxyUtils.proxiedUserInterfaces(repository)) {
+                if (repositoryInterface.getName().startsWith("com.kisielewicz.finanteq.")) {
+                    return repositoryInterface.getSimpleName();
+                }
+            }
+            return proxyClass.getSimpleName();
+        });
+    }
+}
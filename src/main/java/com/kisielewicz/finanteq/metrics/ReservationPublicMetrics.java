@@ -0,0 +1,59 @@
+package com.kisielewicz.finanteq.metrics;
+
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex;
+import com.kisielewicz.finanteq.helpers.AdmissionFilter;
+import com.kisielewicz.finanteq.helpers.MailDispatcher;
+import com.kisielewicz.finanteq.service.HoldService;
+import com.kisielewicz.finanteq.spring.configuration.AsyncConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Exposes the state of the mail queue, the availability index, the reservation write executor, the holds and
+ * the admission control under /metrics.
+ */
+@Component
+public class ReservationPublicMetrics implements PublicMetrics {
+
+    private final MailDispatcher mailDispatcher;
+    private final RoomAvailabilityIndex availabilityIndex;
+    private final ThreadPoolTaskExecutor writeExecutor;
+    private final HoldService holdService;
+    private final AdmissionFilter admissionFilter;
+
+    @Autowired
+    public ReservationPublicMetrics(MailDispatcher mailDispatcher, RoomAvailabilityIndex availabilityIndex,
+                                    @Qualifier(AsyncConfiguration.RESERVATION_WRITE_EXECUTOR) ThreadPoolTaskExecutor writeExecutor,
+                                    HoldService holdService, AdmissionFilter admissionFilter) {
+        this.mailDispatcher = mailDispatcher;
+        this.availabilityIndex = availabilityIndex;
+        this.writeExecutor = writeExecutor;
+        this.holdService = holdService;
+        this.admissionFilter = admissionFilter;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("mail.queue.size", mailDispatcher.getQueueSize()));
+        metrics.add(new Metric<>("mail.sent", mailDispatcher.getSentCount()));
+        metrics.add(new Metric<>("mail.retried", mailDispatcher.getRetriedCount()));
+        metrics.add(new Metric<>("mail.failed", mailDispatcher.getFailedCount()));
+        metrics.add(new Metric<>("availability.index.reservations", availabilityIndex.size()));
+        metrics.add(new Metric<>("reservation.writes.active", writeExecutor.getActiveCount()));
+        metrics.add(new Metric<>("reservation.writes.queue.size", writeExecutor.getThreadPoolExecutor().getQueue().size()));
+        metrics.add(new Metric<>("reservation.holds.active", holdService.size()));
+        metrics.add(new Metric<>("admission.limit", admissionFilter.getConcurrencyLimit()));
+        metrics.add(new Metric<>("admission.in-flight", admissionFilter.getInFlight()));
+        metrics.add(new Metric<>("admission.clients", admissionFilter.getClientCount()));
+        return metrics;
+    }
+}
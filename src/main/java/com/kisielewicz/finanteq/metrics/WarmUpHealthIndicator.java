@@ -0,0 +1,32 @@
+package com.kisielewicz.finanteq.metrics;
+
+import com.kisielewicz.finanteq.helpers.WarmUp;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps /health at OUT_OF_SERVICE (503) until the warm-up is done, so a load balancer checking it sends traffic
+ * to the node only once it's ready. Lists how long every startup phase took.
+ */
+@Component
+public class WarmUpHealthIndicator extends AbstractHealthIndicator {
+
+    private final WarmUp warmUp;
+
+    @Autowired
+    public WarmUpHealthIndicator(WarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        if (warmUp.isDone()) {
+            builder.up();
+        } else {
+            builder.outOfService();
+        }
+        warmUp.getPhaseMillis().forEach(builder::withDetail);
+    }
+}
@@ -0,0 +1,57 @@
+package com.kisielewicz.finanteq.repository;
+
+import com.kisielewicz.finanteq.domain.JobPartition;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public interface JobPartitionRepository extends CrudRepository<JobPartition, Long> {
+
+    List<JobPartition> findByJobNameAndRunDateOrderByFromId(String jobName, LocalDate runDate);
+
+    /**
+     * Finds partitions nobody holds a valid lease of, of the newest run of every job - resuming an older run would undo
+     * work of the newer one.
+     */
+    @Query("select p from JobPartition p where p.done = false and p.runDate >= :since and p.leaseUntil < :now " +
+            "and p.runDate = (select max(q.runDate) from JobPartition q where q.jobName = p.jobName) " +
+            "order by p.jobName, p.fromId")
+    List<JobPartition> findAbandonedOfNewestRuns(@Param("since") LocalDate since, @Param("now") long now);
+
+    @Query("select p.checkpointId from JobPartition p where p.id = :id")
+    long findCheckpoint(@Param("id") long id);
+
+    /**
+     * Takes the lease of a partition which isn't done and which nobody else holds a valid lease of.
+     *
+     * @return 1 when the lease was taken
+     */
+    @Transactional
+    @Modifying
+    @Query("update JobPartition p set p.owner = :owner, p.leaseUntil = :leaseUntil where p.id = :id " +
+            "and p.done = false and (p.owner is null or p.leaseUntil < :now)")
+    int claim(@Param("id") long id, @Param("owner") String owner, @Param("now") long now,
+              @Param("leaseUntil") long leaseUntil);
+
+    /**
+     * Moves the checkpoint and extends the lease, as long as the owner still holds it. Meant to run in the transaction
+     * of the chunk of work it records.
+     *
+     * @return 1 when the owner still held the lease
+     */
+    @Modifying
+    @Query("update JobPartition p set p.checkpointId = :checkpointId, p.done = :done, p.leaseUntil = :leaseUntil " +
+            "where p.id = :id and p.owner = :owner")
+    int checkpoint(@Param("id") long id, @Param("owner") String owner, @Param("checkpointId") long checkpointId,
+                   @Param("done") boolean done, @Param("leaseUntil") long leaseUntil);
+
+    @Transactional
+    @Modifying
+    @Query("delete from JobPartition p where p.runDate < :before")
+    int deleteRunBefore(@Param("before") LocalDate before);
+}
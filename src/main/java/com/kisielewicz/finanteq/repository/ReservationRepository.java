@@ -1,23 +1,97 @@
 package com.kisielewicz.finanteq.repository;
 
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.availability.StateChecksum;
 import com.kisielewicz.finanteq.domain.Reservation;
 import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
+import javax.persistence.QueryHint;
 import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
 
-public interface ReservationRepository extends CrudRepository<Reservation, Long> {
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+
+public interface ReservationRepository extends CrudRepository<Reservation, Long>, ReservationRepositoryCustom {
+
+    // room id is read from the foreign key, so listing doesn't join nor load rooms
+    String SELECT_SUMMARY = "select new com.kisielewicz.finanteq.dto.ReservationSummaryDTO(r.id, r.room.id, r.startDate, r.endDate) " +
+            "from Reservation r ";
 
     Iterable<Reservation> findAllByStartDate(LocalDate localDate);
 
     Iterable<Reservation> findAllByEndDate(LocalDate localDate);
 
-    Iterable<Reservation> findAllByStartDateAfter(LocalDate after);
-
     Iterable<Reservation> findAllByRoomAndStartDateBeforeAndEndDateAfter(Room room, LocalDate localEndDate, LocalDate localStartDate);
 
-    Iterable<Reservation> findAllByStartDateAfterAndRoom_Id(LocalDate after, long roomId);
+    @Query(SELECT_SUMMARY + "order by r.id")
+    List<ReservationSummaryDTO> findAllSummaries();
+
+    @Query(SELECT_SUMMARY + "where r.id > :afterId order by r.id")
+    List<ReservationSummaryDTO> findSummariesAfter(@Param("afterId") long afterId, Pageable pageable);
+
+    @Query(SELECT_SUMMARY + "where r.room.id = :roomId order by r.id")
+    List<ReservationSummaryDTO> findSummariesForRoom(@Param("roomId") long roomId);
+
+    @Query(SELECT_SUMMARY + "where r.room.id = :roomId and r.id > :afterId order by r.id")
+    List<ReservationSummaryDTO> findSummariesForRoomAfter(@Param("roomId") long roomId, @Param("afterId") long afterId,
+                                                          Pageable pageable);
+
+    @Query(SELECT_SUMMARY + "where r.startDate > :date order by r.id")
+    List<ReservationSummaryDTO> findSummariesStartingAfter(@Param("date") LocalDate date);
+
+    @Query(SELECT_SUMMARY + "where r.startDate > :date and r.id > :afterId order by r.id")
+    List<ReservationSummaryDTO> findSummariesStartingAfter(@Param("date") LocalDate date, @Param("afterId") long afterId,
+                                                           Pageable pageable);
+
+    @Query(SELECT_SUMMARY + "where r.startDate > :date and r.room.id = :roomId order by r.id")
+    List<ReservationSummaryDTO> findSummariesForRoomStartingAfter(@Param("roomId") long roomId, @Param("date") LocalDate date);
+
+    @Query("select r.mail from Reservation r where r.startDate = :date and r.room.id between :fromId and :toId")
+    List<String> findMailsByStartDateForRooms(@Param("date") LocalDate date, @Param("fromId") long fromId,
+                                              @Param("toId") long toId);
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    @Query("select r from Reservation r order by r.id")
+    Stream<Reservation> streamAll();
+
+    @Query("select new com.kisielewicz.finanteq.availability.Booking(r.id, r.room.id, r.startDate, r.endDate) " +
+            "from Reservation r where r.endDate > :date")
+    Iterable<Booking> findAllBookingsEndingAfter(@Param("date") LocalDate date);
+
+    @Query("select new com.kisielewicz.finanteq.availability.StateChecksum(count(r), sum(r.id), " +
+            "sum((mod(r.id, " + StateChecksum.WEIGHT_MODULUS + ") + 1) * r.room.id), " +
+            "sum((mod(r.id, " + StateChecksum.WEIGHT_MODULUS + ") + 1) * (year(r.startDate) * 10000 + month(r.startDate) * 100 + day(r.startDate))), " +
+            "sum((mod(r.id, " + StateChecksum.WEIGHT_MODULUS + ") + 1) * (year(r.endDate) * 10000 + month(r.endDate) * 100 + day(r.endDate)))) " +
+            "from Reservation r where r.endDate > :date")
+    StateChecksum checksumBookingsEndingAfter(@Param("date") LocalDate date);
+
+    @Query("select new com.kisielewicz.finanteq.availability.Booking(r.id, r.room.id, r.startDate, r.endDate) " +
+            "from Reservation r where r.room.id in :roomIds and r.startDate < :to and r.endDate > :from")
+    List<Booking> findBookingsOverlapping(@Param("roomIds") Collection<Long> roomIds, @Param("from") LocalDate from,
+                                          @Param("to") LocalDate to);
+
+    /**
+     * Locks the reservation row until the end of current transaction, without taking a snapshot of the database
+     * the way a plain read would.
+     *
+     * @return id of the room of the locked reservation, or null when there is no such reservation
+     */
+    @Query(value = "SELECT room_id FROM reservation WHERE id = ?1 FOR UPDATE", nativeQuery = true)
+    Long lockReservation(long reservationId);
 
-    Iterable<Reservation> findAllByRoom_Id(long roomId);
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    @Query("select new com.kisielewicz.finanteq.availability.Booking(r.id, r.room.id, r.startDate, r.endDate) " +
+            "from Reservation r where r.startDate < :to and r.endDate > :from " +
+            "and r.room.id between :fromRoomId and :toRoomId")
+    Stream<Booking> streamBookingsOverlapping(@Param("from") LocalDate from, @Param("to") LocalDate to,
+                                              @Param("fromRoomId") long fromRoomId, @Param("toRoomId") long toRoomId);
 
 }
@@ -0,0 +1,24 @@
+package com.kisielewicz.finanteq.repository;
+
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.domain.Reservation;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+public interface ReservationRepositoryCustom {
+
+    /**
+     * Inserts reservations with JDBC batches, bypassing Hibernate which can't batch inserts of entities with
+     * identity generated ids. Runs in the surrounding transaction and sets generated ids on the inserted entities.
+     */
+    List<Reservation> insertAll(List<Reservation> reservations);
+
+    /**
+     * Reads bookings of the rooms overlapping [from, to) locking their rows until the end of current transaction.
+     * Unlike a plain read it sees reservations committed after the transaction's snapshot was taken, e.g. by another
+     * node while the rooms were being locked.
+     */
+    List<Booking> findBookingsOverlappingForUpdate(Collection<Long> roomIds, LocalDate from, LocalDate to);
+}
@@ -0,0 +1,85 @@
+package com.kisielewicz.finanteq.repository;
+
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.domain.Reservation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+public class ReservationRepositoryImpl implements ReservationRepositoryCustom {
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final String INSERT_RESERVATION = "INSERT INTO reservation " +
+            "(reservation_start_date, reservation_end_date, room_id, mail, property_id) VALUES (?, ?, ?, ?, ?)";
+
+    private static final String SELECT_BOOKINGS_OVERLAPPING_FOR_UPDATE = "SELECT id, room_id, reservation_start_date, " +
+            "reservation_end_date FROM reservation WHERE room_id IN (:roomIds) AND reservation_start_date < :to " +
+            "AND reservation_end_date > :from FOR UPDATE";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+
+    @Autowired
+    public ReservationRepositoryImpl(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    }
+
+    @Override
+    public List<Reservation> insertAll(List<Reservation> reservations) {
+        if (reservations.isEmpty()) {
+            return reservations;
+        }
+        return jdbcTemplate.execute((ConnectionCallback<List<Reservation>>) connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_RESERVATION,
+                    Statement.RETURN_GENERATED_KEYS)) {
+                for (int from = 0; from < reservations.size(); from += BATCH_SIZE) {
+                    List<Reservation> chunk = reservations.subList(from, Math.min(from + BATCH_SIZE, reservations.size()));
+                    for (Reservation reservation : chunk) {
+                        reservation.copyPropertyOfRoom();
+                        statement.setDate(1, Date.valueOf(reservation.getStartDate()));
+                        statement.setDate(2, Date.valueOf(reservation.getEndDate()));
+                        statement.setLong(3, reservation.getRoom().getId());
+                        statement.setString(4, reservation.getMail());
+                        statement.setLong(5, reservation.getPropertyId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    try (ResultSet keys = statement.getGeneratedKeys()) {
+                        for (Reservation reservation : chunk) {
+                            keys.next();
+                            reservation.setId(keys.getLong(1));
+                        }
+                    }
+                }
+            }
+            return reservations;
+        });
+    }
+
+    @Override
+    public List<Booking> findBookingsOverlappingForUpdate(Collection<Long> roomIds, LocalDate from, LocalDate to) {
+        if (roomIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        MapSqlParameterSource parameters = new MapSqlParameterSource()
+                .addValue("roomIds", roomIds)
+                .addValue("from", Date.valueOf(from))
+                .addValue("to", Date.valueOf(to));
+        return namedParameterJdbcTemplate.query(SELECT_BOOKINGS_OVERLAPPING_FOR_UPDATE, parameters,
+                (resultSet, row) -> new Booking(resultSet.getLong(1), resultSet.getLong(2),
+                        resultSet.getDate(3).toLocalDate(), resultSet.getDate(4).toLocalDate()));
+    }
+}
@@ -0,0 +1,27 @@
+package com.kisielewicz.finanteq.repository;
+
+import com.kisielewicz.finanteq.domain.ResourceVersion;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface ResourceVersionRepository extends CrudRepository<ResourceVersion, String> {
+
+    @Override
+    List<ResourceVersion> findAll();
+
+    /**
+     * Runs in a transaction of its own, so the row is locked only for the update - not for the whole write
+     * which changed the resources - and can be called once that write committed.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    @Modifying
+    @Query("update ResourceVersion v set v.version = v.version + 1 where v.resource in :resources")
+    int bump(@Param("resources") Collection<String> resources);
+}
@@ -1,9 +1,92 @@
 package com.kisielewicz.finanteq.repository;
 
+import com.kisielewicz.finanteq.availability.StateChecksum;
 import com.kisielewicz.finanteq.domain.Room;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
+import javax.persistence.LockModeType;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Rooms read by id and lists of rooms are cached, as room data rarely changes. Every write evicts both caches.
+ * Rooms locked for update are never taken from the cache, so they can be safely modified. Entries are kept
+ * per property, as the same query reads another shard for each of them.
+ *
+ * Lists of rooms are answered with ETags of the rooms version stored in the database, which writes of other nodes
+ * bump without evicting this node's cache - so they are also kept per version, read with a primary key lookup
+ * instead of the whole list, and a list cached before a write is never served under the ETag of a later one.
+ */
 public interface RoomRepository extends CrudRepository<Room, Long> {
 
+    String ROOM_CACHE = "room";
+    String ROOMS_CACHE = "rooms";
+    String PROPERTY = "T(com.kisielewicz.finanteq.datasource.ShardContext).currentPropertyOrDefault()";
+    String ROOMS_VERSION = "@resourceVersions.version(T(com.kisielewicz.finanteq.helpers.ResourceVersions$Resource).ROOMS)";
+
+    @Override
+    @Cacheable(cacheNames = ROOM_CACHE, key = "{" + PROPERTY + ", #p0}")
+    Room findOne(Long roomId);
+
+    @Override
+    @Cacheable(cacheNames = ROOMS_CACHE, key = "{" + PROPERTY + ", " + ROOMS_VERSION + "}")
+    Iterable<Room> findAll();
+
+    @Cacheable(cacheNames = ROOMS_CACHE, key = "{" + PROPERTY + ", " + ROOMS_VERSION + ", #p0}")
     Iterable<Room> findAllByIsReserved(Boolean isReserved);
+
+    @Override
+    @CacheEvict(cacheNames = {ROOM_CACHE, ROOMS_CACHE}, allEntries = true)
+    <S extends Room> S save(S room);
+
+    @Override
+    @CacheEvict(cacheNames = {ROOM_CACHE, ROOMS_CACHE}, allEntries = true)
+    void delete(Long roomId);
+
+    @Query("select r.id from Room r")
+    List<Long> findAllIds();
+
+    @Query("select new com.kisielewicz.finanteq.availability.StateChecksum(count(r), sum(r.id)) from Room r")
+    StateChecksum checksumRooms();
+
+    @Query("select coalesce(max(r.id), 0) from Room r")
+    long findMaxId();
+
+    @Modifying
+    @CacheEvict(cacheNames = {ROOM_CACHE, ROOMS_CACHE}, allEntries = true)
+    @Query("update Room r set r.isReserved = false where r.id between :fromId and :toId and r.id in " +
+            "(select res.room.id from Reservation res where res.endDate = :date)")
+    int releaseRoomsWithReservationsEndingOn(@Param("date") LocalDate date, @Param("fromId") long fromId,
+                                             @Param("toId") long toId);
+
+    @Modifying
+    @CacheEvict(cacheNames = {ROOM_CACHE, ROOMS_CACHE}, allEntries = true)
+    @Query("update Room r set r.isReserved = true where r.id between :fromId and :toId and r.id in " +
+            "(select res.room.id from Reservation res where res.startDate = :date)")
+    int reserveRoomsWithReservationsStartingOn(@Param("date") LocalDate date, @Param("fromId") long fromId,
+                                               @Param("toId") long toId);
+
+    /**
+     * Locks the room row until the end of current transaction, so writes concerning one room are serialized
+     * without blocking writes for other rooms.
+     *
+     * @return id of the locked room, or null when there is no such room
+     */
+    @Query(value = "SELECT id FROM room WHERE id = ?1 FOR UPDATE", nativeQuery = true)
+    Long lockRoom(long roomId);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select r from Room r where r.id = :id")
+    Room findOneForUpdate(@Param("id") long roomId);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select r from Room r where r.id in :ids order by r.id")
+    List<Room> findAllForUpdate(@Param("ids") Collection<Long> roomIds);
 }
@@ -0,0 +1,194 @@
+package com.kisielewicz.finanteq.service;
+
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex;
+import com.kisielewicz.finanteq.domain.Reservation;
+import com.kisielewicz.finanteq.dto.HoldDTO;
+import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.exceptions.ConflictException;
+import com.kisielewicz.finanteq.exceptions.NotFoundException;
+import com.kisielewicz.finanteq.helpers.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Tentative holds of date ranges, blocking them for a short time while a client completes checkout.
+ * A hold is a pending booking of the availability index, so it makes the range occupied for every reservation
+ * and hold made in the meantime without writing anything to the database. Only a confirmed hold is saved
+ * as a reservation; holds neither confirmed nor released are expired by a timing wheel.
+ */
+@Service
+public class HoldService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HoldService.class);
+
+    private static final String HOLD_NOT_FOUND = "No active hold by id:%s found.";
+    private static final String TOO_MANY_HOLDS = "Too many active holds, please retry later.";
+
+    static final String EXPIRED_COUNTER = "reservation.hold.expired";
+
+    private final ReservationService reservationService;
+    private final RoomAvailabilityIndex availabilityIndex;
+    private final CounterService counterService;
+    private final long ttlMillis;
+    private final long tickMillis;
+    private final int maxActive;
+    private final LongSupplier clock;
+
+    private final Map<String, Hold> holds = new ConcurrentHashMap<>();
+    private final TimingWheel<Hold> expirations;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hold-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public HoldService(ReservationService reservationService, RoomAvailabilityIndex availabilityIndex,
+                       CounterService counterService,
+                       @Value("${holds.ttl-seconds:600}") long ttlSeconds,
+                       @Value("${holds.tick-ms:100}") long tickMillis,
+                       @Value("${holds.wheel-size:64}") int wheelSize,
+                       @Value("${holds.max-active:100000}") int maxActive) {
+        this(reservationService, availabilityIndex, counterService, TimeUnit.SECONDS.toMillis(ttlSeconds), tickMillis,
+                wheelSize, maxActive, System::currentTimeMillis);
+    }
+
+    HoldService(ReservationService reservationService, RoomAvailabilityIndex availabilityIndex,
+                CounterService counterService, long ttlMillis, long tickMillis, int wheelSize, int maxActive,
+                LongSupplier clock) {
+        this.reservationService = reservationService;
+        this.availabilityIndex = availabilityIndex;
+        this.counterService = counterService;
+        this.ttlMillis = ttlMillis;
+        this.tickMillis = tickMillis;
+        this.maxActive = maxActive;
+        this.clock = clock;
+        this.expirations = new TimingWheel<>(tickMillis, wheelSize, clock.getAsLong());
+    }
+
+    @PostConstruct
+    public void start() {
+        ticker.scheduleAtFixedRate(() -> {
+            // an exception escaping would cancel all further runs
+            try {
+                expireHolds();
+            } catch (RuntimeException e) {
+                LOGGER.error("Failed to expire holds", e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    public HoldDTO hold(ReservationDTO reservationDTO) {
+        if (holds.size() >= maxActive) {
+            LOGGER.info("Reached limit of {} active holds, throwing ConflictException", maxActive);
+            throw new ConflictException(TOO_MANY_HOLDS);
+        }
+        Booking booking = reservationService.holdDateRange(reservationDTO);
+        Hold hold = new Hold(UUID.randomUUID().toString(), copy(reservationDTO), booking, clock.getAsLong() + ttlMillis);
+        holds.put(hold.id, hold);
+        synchronized (expirations) {
+            expirations.schedule(hold, hold.expiresAt);
+        }
+        LOGGER.info("Created hold: {} of room: {} expiring at: {}", hold.id, reservationDTO.getRoomId(),
+                Instant.ofEpochMilli(hold.expiresAt));
+        return toDTO(hold);
+    }
+
+    public Reservation confirm(String holdId) {
+        LOGGER.info("Confirming hold: {}", holdId);
+        Hold hold = take(holdId);
+        return reservationService.confirmHold(hold.reservationDTO, hold.booking);
+    }
+
+    public void release(String holdId) {
+        LOGGER.info("Releasing hold: {}", holdId);
+        availabilityIndex.release(take(holdId).booking);
+    }
+
+    public int size() {
+        return holds.size();
+    }
+
+    /**
+     * Confirmed and released holds stay in the wheel until their time comes and are skipped then.
+     */
+    void expireHolds() {
+        List<Hold> expired;
+        synchronized (expirations) {
+            expired = expirations.advanceTo(clock.getAsLong());
+        }
+        for (Hold hold : expired) {
+            if (holds.remove(hold.id, hold)) {
+                LOGGER.info("Hold: {} expired, releasing its date range", hold.id);
+                availabilityIndex.release(hold.booking);
+                counterService.increment(EXPIRED_COUNTER);
+            }
+        }
+    }
+
+    //removing the hold decides the race between confirming, releasing and expiring it
+    private Hold take(String holdId) {
+        Hold hold = holds.remove(holdId);
+        if (hold == null) {
+            LOGGER.info("Didn't find an active hold for id: {}, returning 404 exception.", holdId);
+            throw new NotFoundException(String.format(HOLD_NOT_FOUND, holdId));
+        }
+        return hold;
+    }
+
+    private static ReservationDTO copy(ReservationDTO reservationDTO) {
+        ReservationDTO copy = new ReservationDTO();
+        copy.setRoomId(reservationDTO.getRoomId());
+        copy.setStartDate(reservationDTO.getStartDate());
+        copy.setEndDate(reservationDTO.getEndDate());
+        copy.setMail(reservationDTO.getMail());
+        return copy;
+    }
+
+    private static HoldDTO toDTO(Hold hold) {
+        HoldDTO holdDTO = new HoldDTO();
+        holdDTO.setHoldId(hold.id);
+        holdDTO.setRoomId(hold.reservationDTO.getRoomId());
+        holdDTO.setStartDate(hold.reservationDTO.getStartDate());
+        holdDTO.setEndDate(hold.reservationDTO.getEndDate());
+        holdDTO.setExpiresAt(Instant.ofEpochMilli(hold.expiresAt));
+        return holdDTO;
+    }
+
+    private static final class Hold {
+
+        private final String id;
+        private final ReservationDTO reservationDTO;
+        private final Booking booking;
+        private final long expiresAt;
+
+        private Hold(String id, ReservationDTO reservationDTO, Booking booking, long expiresAt) {
+            this.id = id;
+            this.reservationDTO = reservationDTO;
+            this.booking = booking;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.kisielewicz.finanteq.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex;
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import com.kisielewicz.finanteq.domain.Reservation;
+import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.dto.ImportRejectionDTO;
+import com.kisielewicz.finanteq.dto.ImportReportDTO;
+import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.helpers.ResourceVersions;
+import com.kisielewicz.finanteq.repository.ReservationRepository;
+import com.kisielewicz.finanteq.repository.RoomRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports reservations streamed from a CSV or JSON lines file. Lines are read in chunks; every chunk is parsed
+ * and validated in parallel while the previous one is checked for overlaps and inserted with JDBC batches
+ * in a transaction of its own, so memory use depends on chunk size rather than file size.
+ *
+ * Rows which didn't end by today are booked in the availability index like any other reservation. Rooms of a chunk
+ * are locked for its transaction, like rooms of a batch, and rows starting before today - or every row, when other
+ * nodes or shards write too - are checked against reservations of their rooms read from the database for the date
+ * range the chunk spans. Files sorted by date keep those reads small. Rows of earlier chunks are committed by then,
+ * so overlaps within the file are found the same way.
+ */
+@Service
+public class ImportService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportService.class);
+
+    public enum Format {
+        CSV, JSONL
+    }
+
+    private static final String MALFORMED_ROW = "Row should have roomId, startDate, endDate and mail.";
+    private static final String MISSING_FIELDS = "Room id, dates and mail are required.";
+    private static final String WRONG_DATE_RANGE = "Date range input is wrong.";
+    private static final String ROOM_NOT_FOUND = "No room by id:%s found.";
+    private static final String OVERLAP = "Reservation for this room is already created for desired date range.";
+    private static final String CHUNK_FAILED = "Failed to save chunk: %s";
+
+    private final ReservationRepository reservationRepository;
+    private final RoomRepository roomRepository;
+    private final RoomAvailabilityIndex availabilityIndex;
+    private final ResourceVersions resourceVersions;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final int chunkSize;
+    private final int parallelism;
+    private final int maxReportedRejections;
+    private final boolean checksDatabase;
+    private final ExecutorService parsers;
+
+    @Autowired
+    public ImportService(ReservationRepository reservationRepository, RoomRepository roomRepository,
+                         RoomAvailabilityIndex availabilityIndex, ResourceVersions resourceVersions,
+                         ObjectMapper objectMapper, PlatformTransactionManager transactionManager,
+                         ShardRouter shardRouter,
+                         @Value("${import.chunk-size:1000}") int chunkSize,
+                         @Value("${import.parallelism:4}") int parallelism,
+                         @Value("${import.max-reported-rejections:1000}") int maxReportedRejections,
+                         @Value("${reservation.multi-node:false}") boolean multiNode) {
+        this.reservationRepository = reservationRepository;
+        this.roomRepository = roomRepository;
+        this.availabilityIndex = availabilityIndex;
+        this.resourceVersions = resourceVersions;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.maxReportedRejections = maxReportedRejections;
+        this.checksDatabase = multiNode || shardRouter.isSharded();
+        this.parsers = Executors.newFixedThreadPool(parallelism);
+    }
+
+    @PreDestroy
+    public void stop() {
+        parsers.shutdownNow();
+    }
+
+    public ImportReportDTO importReservations(Reader input, Format format) throws IOException {
+        LOGGER.info("Importing reservations from {} in chunks of {} rows", format, chunkSize);
+        long start = System.nanoTime();
+        ImportReportDTO report = new ImportReportDTO();
+        BufferedReader reader = new BufferedReader(input);
+        List<Future<List<Row>>> parsing = null;
+        List<Line> lines = new ArrayList<>(chunkSize);
+        long lineNumber = 0;
+        String text;
+        while ((text = reader.readLine()) != null) {
+            lineNumber++;
+            if (text.trim().isEmpty() || (lineNumber == 1 && format == Format.CSV && isHeader(text))) {
+                continue;
+            }
+            lines.add(new Line(lineNumber, text));
+            if (lines.size() == chunkSize) {
+                parsing = parseWhileWriting(lines, format, parsing, report);
+                lines = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!lines.isEmpty()) {
+            parsing = parseWhileWriting(lines, format, parsing, report);
+        }
+        if (parsing != null) {
+            write(join(parsing), report);
+        }
+        report.setElapsedMillis((System.nanoTime() - start) / 1_000_000);
+        LOGGER.info("Finished importing reservations: {} rows read, {} imported, {} rejected in {} ms",
+                report.getRowsRead(), report.getImported(), report.getRejected(), report.getElapsedMillis());
+        return report;
+    }
+
+    private List<Future<List<Row>>> parseWhileWriting(List<Line> lines, Format format,
+                                                      List<Future<List<Row>>> previous, ImportReportDTO report) {
+        List<Future<List<Row>>> parsing = parse(lines, format);
+        if (previous != null) {
+            write(join(previous), report);
+        }
+        return parsing;
+    }
+
+    private List<Future<List<Row>>> parse(List<Line> lines, Format format) {
+        List<Future<List<Row>>> slices = new ArrayList<>(parallelism);
+        int sliceSize = (lines.size() + parallelism - 1) / parallelism;
+        for (int from = 0; from < lines.size(); from += sliceSize) {
+            List<Line> slice = lines.subList(from, Math.min(from + sliceSize, lines.size()));
+            slices.add(parsers.submit(() -> {
+                List<Row> rows = new ArrayList<>(slice.size());
+                for (Line line : slice) {
+                    rows.add(parse(line, format));
+                }
+                return rows;
+            }));
+        }
+        return slices;
+    }
+
+    private Row parse(Line line, Format format) {
+        ReservationDTO reservationDTO;
+        try {
+            reservationDTO = format == Format.CSV ? parseCsv(line.text) : objectMapper.readValue(line.text, ReservationDTO.class);
+        } catch (IOException | RuntimeException e) {
+            return Row.rejected(line.number, format == Format.CSV ? MALFORMED_ROW : e.getMessage());
+        }
+        if (reservationDTO == null || reservationDTO.getRoomId() == null || reservationDTO.getStartDate() == null
+                || reservationDTO.getEndDate() == null || reservationDTO.getMail() == null) {
+            return Row.rejected(line.number, MISSING_FIELDS);
+        }
+        if (!reservationDTO.getStartDate().isBefore(reservationDTO.getEndDate())) {
+            return Row.rejected(line.number, WRONG_DATE_RANGE);
+        }
+        return new Row(line.number, reservationDTO, null);
+    }
+
+    private static ReservationDTO parseCsv(String text) {
+        String[] fields = text.split(",", -1);
+        if (fields.length != 4) {
+            throw new IllegalArgumentException(MALFORMED_ROW);
+        }
+        try {
+            ReservationDTO reservationDTO = new ReservationDTO();
+            reservationDTO.setRoomId(Long.valueOf(fields[0].trim()));
+            reservationDTO.setStartDate(LocalDate.parse(fields[1].trim()));
+            reservationDTO.setEndDate(LocalDate.parse(fields[2].trim()));
+            reservationDTO.setMail(fields[3].trim().isEmpty() ? null : fields[3].trim());
+            return reservationDTO;
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException(MALFORMED_ROW, e);
+        }
+    }
+
+    private static boolean isHeader(String text) {
+        return !text.isEmpty() && !Character.isDigit(text.trim().charAt(0));
+    }
+
+    private List<Row> join(List<Future<List<Row>>> slices) {
+        List<Row> rows = new ArrayList<>();
+        try {
+            for (Future<List<Row>> slice : slices) {
+                rows.addAll(slice.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing import", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to parse import", e.getCause());
+        }
+        return rows;
+    }
+
+    /**
+     * Checks rows of the chunk in file order, so of two overlapping rows the first one is imported,
+     * and inserts the accepted ones in a transaction of their own, holding locks of the chunk's rooms.
+     */
+    private void write(List<Row> rows, ImportReportDTO report) {
+        LocalDate today = LocalDate.now();
+        SortedSet<Long> roomIds = new TreeSet<>();
+        for (Row row : rows) {
+            if (row.reservationDTO != null) {
+                roomIds.add(row.reservationDTO.getRoomId());
+            }
+        }
+        List<Row> accepted = new ArrayList<>();
+        List<Reservation> reservations = new ArrayList<>();
+        List<Booking> bookings = new ArrayList<>();
+        try {
+            transactionTemplate.execute(status -> {
+                Map<Long, Room> rooms = new HashMap<>();
+                if (!roomIds.isEmpty()) {
+                    for (Room room : roomRepository.findAllForUpdate(roomIds)) {
+                        rooms.put(room.getId(), room);
+                    }
+                }
+                Map<Long, TreeMap<Long, Long>> storedBookings = readStoredBookings(rows, rooms.keySet(), today);
+                check(rows, rooms, storedBookings, today, report, accepted, reservations, bookings);
+
+                reservationRepository.insertAll(reservations);
+                for (int i = 0; i < reservations.size(); i++) {
+                    if (bookings.get(i) != null) {
+                        availabilityIndex.commitAfterTransaction(bookings.get(i), reservations.get(i).getId());
+                    }
+                }
+                resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.RESERVATIONS);
+                return null;
+            });
+            report.setImported(report.getImported() + reservations.size());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to save chunk of {} imported reservations, releasing booked date ranges", reservations.size(), e);
+            for (Booking booking : bookings) {
+                if (booking != null) {
+                    availabilityIndex.release(booking);
+                }
+            }
+            for (Row row : accepted) {
+                reject(report, row.line, String.format(CHUNK_FAILED, e.getMessage()));
+            }
+        }
+        report.setRowsRead(report.getRowsRead() + rows.size());
+        report.setChunks(report.getChunks() + 1);
+        LOGGER.info("Imported chunk {}: {} rows read, {} imported and {} rejected so far", report.getChunks(),
+                report.getRowsRead(), report.getImported(), report.getRejected());
+    }
+
+    private void check(List<Row> rows, Map<Long, Room> rooms, Map<Long, TreeMap<Long, Long>> storedBookings,
+                       LocalDate today, ImportReportDTO report, List<Row> accepted, List<Reservation> reservations,
+                       List<Booking> bookings) {
+        for (Row row : rows) {
+            ReservationDTO reservationDTO = row.reservationDTO;
+            if (reservationDTO == null) {
+                reject(report, row.line, row.error);
+                continue;
+            }
+            Room room = rooms.get(reservationDTO.getRoomId());
+            if (room == null) {
+                reject(report, row.line, String.format(ROOM_NOT_FOUND, reservationDTO.getRoomId()));
+                continue;
+            }
+            TreeMap<Long, Long> roomStoredBookings = storedBookings.get(reservationDTO.getRoomId());
+            long startDay = reservationDTO.getStartDate().toEpochDay();
+            long endDay = reservationDTO.getEndDate().toEpochDay();
+            if (roomStoredBookings != null && overlaps(roomStoredBookings, startDay, endDay)) {
+                reject(report, row.line, OVERLAP);
+                continue;
+            }
+            Booking booking = null;
+            if (reservationDTO.getEndDate().isAfter(today)) {
+                booking = availabilityIndex.tryBook(reservationDTO.getRoomId(), reservationDTO.getStartDate(),
+                        reservationDTO.getEndDate(), null);
+                if (booking == null) {
+                    reject(report, row.line, OVERLAP);
+                    continue;
+                }
+            }
+            if (roomStoredBookings != null) {
+                roomStoredBookings.put(startDay, endDay);
+            }
+            accepted.add(row);
+            reservations.add(toReservation(reservationDTO, room));
+            bookings.add(booking);
+        }
+    }
+
+    /**
+     * @return bookings of the locked rooms of rows checked in the database, overlapping the date range those rows
+     * span - read with a locking read, see {@link ReservationRepository#findBookingsOverlappingForUpdate}
+     */
+    private Map<Long, TreeMap<Long, Long>> readStoredBookings(List<Row> rows, Set<Long> existingRoomIds, LocalDate today) {
+        Set<Long> roomIds = new HashSet<>();
+        LocalDate from = null;
+        LocalDate to = null;
+        for (Row row : rows) {
+            ReservationDTO reservationDTO = row.reservationDTO;
+            if (reservationDTO != null && (checksDatabase || reservationDTO.getStartDate().isBefore(today))
+                    && existingRoomIds.contains(reservationDTO.getRoomId())) {
+                roomIds.add(reservationDTO.getRoomId());
+                from = from == null || reservationDTO.getStartDate().isBefore(from) ? reservationDTO.getStartDate() : from;
+                to = to == null || reservationDTO.getEndDate().isAfter(to) ? reservationDTO.getEndDate() : to;
+            }
+        }
+        Map<Long, TreeMap<Long, Long>> bookings = new HashMap<>();
+        if (roomIds.isEmpty()) {
+            return bookings;
+        }
+        for (Long roomId : roomIds) {
+            bookings.put(roomId, new TreeMap<>());
+        }
+        for (Booking booking : reservationRepository.findBookingsOverlappingForUpdate(roomIds, from, to)) {
+            bookings.get(booking.getRoomId()).put(booking.getStartDay(), booking.getEndDay());
+        }
+        return bookings;
+    }
+
+    //bookings of a room don't overlap, so only the closest one starting before the end of the range can
+    private static boolean overlaps(TreeMap<Long, Long> bookings, long startDay, long endDay) {
+        Map.Entry<Long, Long> closest = bookings.lowerEntry(endDay);
+        return closest != null && closest.getValue() > startDay;
+    }
+
+    private void reject(ImportReportDTO report, long line, String message) {
+        report.setRejected(report.getRejected() + 1);
+        if (report.getRejections().size() < maxReportedRejections) {
+            report.getRejections().add(new ImportRejectionDTO(line, message));
+        }
+    }
+
+    private static Reservation toReservation(ReservationDTO reservationDTO, Room room) {
+        Reservation reservation = new Reservation();
+        reservation.setStartDate(reservationDTO.getStartDate());
+        reservation.setEndDate(reservationDTO.getEndDate());
+        reservation.setMail(reservationDTO.getMail());
+        reservation.setRoom(room);
+        return reservation;
+    }
+
+    private static final class Line {
+
+        private final long number;
+        private final String text;
+
+        private Line(long number, String text) {
+            this.number = number;
+            this.text = text;
+        }
+    }
+
+    private static final class Row {
+
+        private final long line;
+        private final ReservationDTO reservationDTO;
+        private final String error;
+
+        private Row(long line, ReservationDTO reservationDTO, String error) {
+            this.line = line;
+            this.reservationDTO = reservationDTO;
+            this.error = error;
+        }
+
+        private static Row rejected(long line, String error) {
+            return new Row(line, null, error);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.kisielewicz.finanteq.service;
+
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.datasource.ShardContext;
+import com.kisielewicz.finanteq.dto.OccupancyDTO;
+import com.kisielewicz.finanteq.exceptions.ConflictException;
+import com.kisielewicz.finanteq.repository.ReservationRepository;
+import com.kisielewicz.finanteq.repository.RoomRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.time.temporal.ChronoUnit.DAYS;
+
+/**
+ * Computes per-day and per-room occupancy in a single pass over the reservations overlapping a window.
+ * Every reservation only marks its first and last day in a difference array, which is turned into per-day counts
+ * with prefix sums at the end. Days occupied by every room are marked in a bitmap of its own, handed out as runs
+ * of consecutive days, so clients can draw a room by day heatmap without a response of rooms times days.
+ * Large windows are split into partitions of rooms read and counted in parallel, each in a read-only transaction
+ * of its own.
+ */
+@Service
+public class OccupancyService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OccupancyService.class);
+
+    private static final String WRONG_DATE_RANGE = "Date range input is wrong.";
+    private static final String WINDOW_TOO_LONG = "Occupancy window can't be longer than %s days.";
+
+    private final ReservationRepository reservationRepository;
+    private final RoomRepository roomRepository;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int partitions;
+    private final int parallelThresholdDays;
+    private final int maxDays;
+    private final ExecutorService executor;
+
+    @Autowired
+    public OccupancyService(ReservationRepository reservationRepository, RoomRepository roomRepository,
+                            PlatformTransactionManager transactionManager,
+                            @Value("${occupancy.partitions:4}") int partitions,
+                            @Value("${occupancy.parallel-threshold-days:90}") int parallelThresholdDays,
+                            @Value("${occupancy.max-days:3660}") int maxDays) {
+        this.reservationRepository = reservationRepository;
+        this.roomRepository = roomRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.partitions = partitions;
+        this.parallelThresholdDays = parallelThresholdDays;
+        this.maxDays = maxDays;
+        this.executor = Executors.newFixedThreadPool(partitions);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public OccupancyDTO getOccupancy(LocalDate from, LocalDate to) {
+        LOGGER.info("Getting occupancy from: {} to: {}", from, to);
+        if (!from.isBefore(to)) {
+            LOGGER.info("From {} is not before to {}, throwing ConflictException", from, to);
+            throw new ConflictException(WRONG_DATE_RANGE);
+        }
+        int days = (int) Math.min(DAYS.between(from, to), Integer.MAX_VALUE);
+        if (days > maxDays) {
+            LOGGER.info("Window of {} days is too long, throwing ConflictException", days);
+            throw new ConflictException(String.format(WINDOW_TOO_LONG, maxDays));
+        }
+
+        long[] roomIds = readOnlyTransaction.execute(status -> roomRepository.findAllIds()).stream()
+                .mapToLong(Long::longValue).sorted().toArray();
+        OccupancyCounter counter;
+        if (days < parallelThresholdDays || roomIds.length < 2 * partitions) {
+            counter = count(from, to, roomIds, 0, roomIds.length);
+        } else {
+            LOGGER.info("Counting occupancy of {} rooms in {} partitions", roomIds.length, partitions);
+            counter = countInParallel(from, to, roomIds);
+        }
+        return counter.toDTO(from, to);
+    }
+
+    private OccupancyCounter countInParallel(LocalDate from, LocalDate to, long[] roomIds) {
+        List<Future<OccupancyCounter>> futures = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            int firstRoom = (int) ((long) roomIds.length * i / partitions);
+            int endRoom = (int) ((long) roomIds.length * (i + 1) / partitions);
+            Supplier<OccupancyCounter> partition = ShardContext.bound(() -> count(from, to, roomIds, firstRoom, endRoom));
+            futures.add(executor.submit(partition::get));
+        }
+        OccupancyCounter total = null;
+        try {
+            for (Future<OccupancyCounter> future : futures) {
+                OccupancyCounter counter = future.get();
+                total = total == null ? counter : total.add(counter);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while counting occupancy", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to count occupancy", e.getCause());
+        }
+        return total;
+    }
+
+    /**
+     * Counts reservations of rooms roomIds[firstRoom] to roomIds[endRoom - 1].
+     */
+    private OccupancyCounter count(LocalDate from, LocalDate to, long[] roomIds, int firstRoom, int endRoom) {
+        OccupancyCounter counter = new OccupancyCounter(from.toEpochDay(), to.toEpochDay(), roomIds);
+        if (firstRoom == endRoom) {
+            return counter;
+        }
+        return readOnlyTransaction.execute(status -> {
+            try (Stream<Booking> bookings = reservationRepository.streamBookingsOverlapping(from, to,
+                    roomIds[firstRoom], roomIds[endRoom - 1])) {
+                bookings.forEach(counter::add);
+            }
+            return counter;
+        });
+    }
+
+    static final class OccupancyCounter {
+
+        private final long firstDay;
+        private final long endDay;
+        private final long[] roomIds;
+        private final int[] dayDifferences;
+        private final int[] nightsPerRoom;
+        private final BitSet[] daysPerRoom;
+
+        OccupancyCounter(long firstDay, long endDay, long[] roomIds) {
+            this.firstDay = firstDay;
+            this.endDay = endDay;
+            this.roomIds = roomIds;
+            this.dayDifferences = new int[(int) (endDay - firstDay) + 1];
+            this.nightsPerRoom = new int[roomIds.length];
+            this.daysPerRoom = new BitSet[roomIds.length];
+        }
+
+        void add(Booking booking) {
+            long startDay = Math.max(booking.getStartDay(), firstDay);
+            long endDay = Math.min(booking.getEndDay(), this.endDay);
+            if (startDay >= endDay) {
+                return;
+            }
+            int room = Arrays.binarySearch(roomIds, booking.getRoomId());
+            // rooms created after their ids were read are left out of both per-day and per-room counts
+            if (room < 0) {
+                return;
+            }
+            dayDifferences[(int) (startDay - firstDay)]++;
+            dayDifferences[(int) (endDay - firstDay)]--;
+            nightsPerRoom[room] += (int) (endDay - startDay);
+            if (daysPerRoom[room] == null) {
+                daysPerRoom[room] = new BitSet();
+            }
+            daysPerRoom[room].set((int) (startDay - firstDay), (int) (endDay - firstDay));
+        }
+
+        OccupancyCounter add(OccupancyCounter other) {
+            for (int i = 0; i < dayDifferences.length; i++) {
+                dayDifferences[i] += other.dayDifferences[i];
+            }
+            for (int i = 0; i < nightsPerRoom.length; i++) {
+                nightsPerRoom[i] += other.nightsPerRoom[i];
+                if (other.daysPerRoom[i] == null) {
+                    continue;
+                }
+                if (daysPerRoom[i] == null) {
+                    daysPerRoom[i] = other.daysPerRoom[i];
+                } else {
+                    daysPerRoom[i].or(other.daysPerRoom[i]);
+                }
+            }
+            return this;
+        }
+
+        OccupancyDTO toDTO(LocalDate from, LocalDate to) {
+            int[] occupiedRoomsPerDay = new int[dayDifferences.length - 1];
+            int occupied = 0;
+            for (int day = 0; day < occupiedRoomsPerDay.length; day++) {
+                occupied += dayDifferences[day];
+                occupiedRoomsPerDay[day] = occupied;
+            }
+            OccupancyDTO occupancyDTO = new OccupancyDTO();
+            occupancyDTO.setFrom(from);
+            occupancyDTO.setTo(to);
+            occupancyDTO.setOccupiedRoomsPerDay(occupiedRoomsPerDay);
+            occupancyDTO.setRoomIds(roomIds);
+            occupancyDTO.setOccupiedNightsPerRoom(nightsPerRoom);
+            int[][] occupiedDayRunsPerRoom = new int[daysPerRoom.length][];
+            for (int room = 0; room < daysPerRoom.length; room++) {
+                occupiedDayRunsPerRoom[room] = runsOf(daysPerRoom[room]);
+            }
+            occupancyDTO.setOccupiedDayRunsPerRoom(occupiedDayRunsPerRoom);
+            return occupancyDTO;
+        }
+
+        /**
+         * @return first day and end day of every run of occupied days, flattened
+         */
+        private static int[] runsOf(BitSet days) {
+            if (days == null) {
+                return new int[0];
+            }
+            List<Integer> runs = new ArrayList<>();
+            for (int start = days.nextSetBit(0); start >= 0; start = days.nextSetBit(runs.get(runs.size() - 1))) {
+                runs.add(start);
+                runs.add(days.nextClearBit(start));
+            }
+            return runs.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+}
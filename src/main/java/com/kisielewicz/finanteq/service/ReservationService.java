@@ -1,24 +1,46 @@
 package com.kisielewicz.finanteq.service;
 
+import com.kisielewicz.finanteq.availability.Booking;
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex;
+import com.kisielewicz.finanteq.datasource.ShardContext;
+import com.kisielewicz.finanteq.datasource.ShardRouter;
 import com.kisielewicz.finanteq.domain.Reservation;
 import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.dto.BatchReservationResultDTO;
 import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO;
+import com.kisielewicz.finanteq.dto.RevisionReportDTO;
 import com.kisielewicz.finanteq.exceptions.ConflictException;
 import com.kisielewicz.finanteq.exceptions.NotFoundException;
+import com.kisielewicz.finanteq.helpers.JobPartitions;
+import com.kisielewicz.finanteq.helpers.MailDispatcher;
+import com.kisielewicz.finanteq.helpers.ResourceVersions;
 import com.kisielewicz.finanteq.repository.ReservationRepository;
 import com.kisielewicz.finanteq.repository.RoomRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-import static com.kisielewicz.finanteq.helpers.Mailer.mail;
 import static java.time.temporal.ChronoUnit.DAYS;
 
 @Service
@@ -31,20 +53,83 @@ public class ReservationService {
     private static final String ROOM_NOT_FOUND = "No room by id:%s found.";
     private static final String RESERVATION_NOT_FOUND = "No reservation by id:%s found.";
     private static final String RESERVATION_START_DATE_TOO_EARLY = "Can't make reservation with start date before today.";
+    private static final String NO_ROOM_FREE_IN_DATE_RANGE = "There is no room free for desired date range.";
+
+    static final String CONFLICT_DATE_RANGE_COUNTER = "reservation.conflict.date-range";
+    static final String CONFLICT_START_DATE_COUNTER = "reservation.conflict.start-date";
+    static final String CONFLICT_OVERLAP_COUNTER = "reservation.conflict.overlap";
+    static final String CONFLICT_NO_FREE_ROOM_COUNTER = "reservation.conflict.no-free-room";
+
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    static final String MAIL_JOB = "mail-reservations-starting-tomorrow";
 
     private final ReservationRepository reservationRepository;
     private final RoomRepository roomRepository;
+    private final RoomAvailabilityIndex availabilityIndex;
+    private final EntityManager entityManager;
+    private final MailDispatcher mailDispatcher;
+    private final RoomService roomService;
+    private final CounterService counterService;
+    private final ResourceVersions resourceVersions;
+    private final ShardRouter shardRouter;
+    private final JobPartitions jobPartitions;
+    private final int mailChunkSize;
+    private final boolean checksDatabase;
 
     @Autowired
-    public ReservationService(ReservationRepository reservationRepository, RoomRepository roomRepository) {
+    public ReservationService(ReservationRepository reservationRepository, RoomRepository roomRepository,
+                              RoomAvailabilityIndex availabilityIndex, EntityManager entityManager,
+                              MailDispatcher mailDispatcher, RoomService roomService, CounterService counterService,
+                              ResourceVersions resourceVersions, ShardRouter shardRouter, JobPartitions jobPartitions,
+                              @Value("${reservation.mail.chunk-size:1000}") int mailChunkSize,
+                              @Value("${reservation.multi-node:false}") boolean multiNode) {
         this.reservationRepository = reservationRepository;
         this.roomRepository = roomRepository;
+        this.availabilityIndex = availabilityIndex;
+        this.entityManager = entityManager;
+        this.mailDispatcher = mailDispatcher;
+        this.roomService = roomService;
+        this.counterService = counterService;
+        this.resourceVersions = resourceVersions;
+        this.shardRouter = shardRouter;
+        this.jobPartitions = jobPartitions;
+        this.mailChunkSize = mailChunkSize;
+        // a single node sees every write in its index, so only other nodes or shards make the database re-check worth it
+        this.checksDatabase = multiNode || shardRouter.isSharded();
+    }
+
+    @PostConstruct
+    public void registerJobs() {
+        jobPartitions.register(MAIL_JOB, mailChunkSize, this::queueMails);
     }
 
     @Transactional(readOnly = true)
-    public Iterable<Reservation> getAllReservations() {
+    public List<ReservationSummaryDTO> getAllReservations() {
         LOGGER.info("Getting all reservations");
-        return reservationRepository.findAll();
+        return reservationRepository.findAllSummaries();
+    }
+
+    @Transactional(readOnly = true)
+    public List<ReservationSummaryDTO> getAllReservations(long afterId, int limit) {
+        LOGGER.info("Getting {} reservations after id: {}", limit, afterId);
+        return reservationRepository.findSummariesAfter(afterId, page(limit));
+    }
+
+    /**
+     * Passes all reservations to the consumer one by one, as they are read from the database. Every reservation
+     * is detached after being consumed, so memory use doesn't depend on number of reservations.
+     */
+    @Transactional(readOnly = true)
+    public void exportReservations(Consumer<Reservation> consumer) {
+        LOGGER.info("Exporting all reservations");
+        try (Stream<Reservation> reservations = reservationRepository.streamAll()) {
+            reservations.forEach(reservation -> {
+                consumer.accept(reservation);
+                entityManager.detach(reservation);
+            });
+        }
+        LOGGER.info("Finished exporting all reservations");
     }
 
     @Transactional(readOnly = true)
@@ -54,29 +139,47 @@ public class ReservationService {
     }
 
     @Transactional(readOnly = true)
-    public Iterable<Reservation> getAllReservationsForRoom(long roomId) {
+    public List<ReservationSummaryDTO> getAllReservationsForRoom(long roomId) {
         LOGGER.info("Getting all reservations for room for id: {}", roomId);
-        return reservationRepository.findAllByRoom_Id(roomId);
+        return reservationRepository.findSummariesForRoom(roomId);
+    }
+
+    @Transactional(readOnly = true)
+    public List<ReservationSummaryDTO> getAllReservationsForRoom(long roomId, long afterId, int limit) {
+        LOGGER.info("Getting {} reservations for room for id: {} after id: {}", limit, roomId, afterId);
+        return reservationRepository.findSummariesForRoomAfter(roomId, afterId, page(limit));
     }
 
     @Transactional(readOnly = true)
-    public Iterable<Reservation> getUpcomingReservations(LocalDate localDate) {
+    public List<ReservationSummaryDTO> getUpcomingReservations(LocalDate localDate) {
         LOGGER.info("Getting all reservations for start date after: {}", localDate);
-        return reservationRepository.findAllByStartDateAfter(localDate.minusDays(1));
+        return reservationRepository.findSummariesStartingAfter(localDate.minusDays(1));
     }
 
     @Transactional(readOnly = true)
-    public Iterable<Reservation> getUpcomingReservationsForRoom(LocalDate localDate, long roomId) {
+    public List<ReservationSummaryDTO> getUpcomingReservations(LocalDate localDate, long afterId, int limit) {
+        LOGGER.info("Getting {} reservations for start date after: {} after id: {}", limit, localDate, afterId);
+        return reservationRepository.findSummariesStartingAfter(
+                localDate.minusDays(1), afterId, page(limit));
+    }
+
+    @Transactional(readOnly = true)
+    public List<ReservationSummaryDTO> getUpcomingReservationsForRoom(LocalDate localDate, long roomId) {
         LOGGER.info("Getting all reservations for room for id: {} and start date after: {}",roomId , localDate);
-        return reservationRepository.findAllByStartDateAfterAndRoom_Id(localDate.minusDays(1), roomId);
+        return reservationRepository.findSummariesForRoomStartingAfter(roomId, localDate.minusDays(1));
     }
 
-    @Transactional(isolation = Isolation.SERIALIZABLE)
+    @Transactional
     public void cancelReservation(long reservationId) {
         LOGGER.info("Canceling reservation for id: {}", reservationId);
-        if (reservationExists(reservationId)) {
+        Long roomId = reservationRepository.lockReservation(reservationId);
+        if (roomId != null) {
+            // serialized with other writes of the room, as cancelling may also change whether it's reserved
+            lockRooms(null, roomId);
             isReservationStartingToday(reservationId);
             reservationRepository.delete(reservationId);
+            availabilityIndex.removeAfterTransaction(reservationId);
+            resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.RESERVATIONS);
             LOGGER.info("Successfully cancelled reservation for id: {}", reservationId);
         } else {
             LOGGER.info("Unable to find reservation for id: {}, throwing 404 exception", reservationId);
@@ -84,93 +187,333 @@ public class ReservationService {
         }
     }
 
-    @Transactional(isolation = Isolation.SERIALIZABLE)
+    @Transactional
     public Reservation makeReservation(ReservationDTO reservationDTO) {
         LOGGER.info("Making reservation for room: {}, startDate: {}, endDate: {} and mail: {}",
                 reservationDTO.getRoomId(), reservationDTO.getStartDate(),
                 reservationDTO.getEndDate(), reservationDTO.getMail());
         validateReservationDTO(reservationDTO);
+        lockRooms(null, reservationDTO.getRoomId());
         Reservation reservation = new Reservation();
 
         return parseDTOToReservationAndSave(reservationDTO, reservation);
     }
 
-    @Transactional(isolation = Isolation.SERIALIZABLE)
+    /**
+     * Makes reservation in a room picked from the rooms free in the date range - the one the range fits best, see
+     * {@link RoomAvailabilityIndex#findFreeRoomsBestFit}. Room id of the DTO is ignored. A room booked by a concurrent
+     * request in the meantime is skipped for the next best one before any room is locked. Only the picked room
+     * is locked, so allocations can't deadlock with other writes - when it turns out to be booked through another
+     * node the request fails instead of locking more rooms, and can be retried by the client.
+     */
+    @Transactional
+    public Reservation allocateReservation(ReservationDTO reservationDTO) {
+        LOGGER.info("Allocating room for startDate: {}, endDate: {} and mail: {}", reservationDTO.getStartDate(),
+                reservationDTO.getEndDate(), reservationDTO.getMail());
+        validateReservationDTO(reservationDTO);
+        // the index holds rooms of every shard
+        List<Long> roomIds = availabilityIndex.findFreeRoomsBestFit(reservationDTO.getStartDate(), reservationDTO.getEndDate(),
+                shardRouter.isSharded() ? ShardContext.currentPropertyOrDefault() : null);
+        for (Long roomId : roomIds) {
+            Booking booking = availabilityIndex.tryBook(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null);
+            if (booking == null) {
+                continue;
+            }
+            // a room which is gone leaves no lock behind
+            if (roomRepository.lockRoom(roomId) == null) {
+                availabilityIndex.release(booking);
+                continue;
+            }
+            if (isBookedInDatabase(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)) {
+                LOGGER.info("Allocated room: {} was booked through another node - throwing ConflictException", roomId);
+                availabilityIndex.release(booking);
+                counterService.increment(CONFLICT_OVERLAP_COUNTER);
+                throw new ConflictException(RESERVATION_ALREADY_DONE_IN_DATE_RANGE);
+            }
+            LOGGER.info("Allocated room: {}, saving reservation", roomId);
+            Reservation reservation = new Reservation();
+            reservation.setStartDate(reservationDTO.getStartDate());
+            reservation.setEndDate(reservationDTO.getEndDate());
+            reservation.setMail(reservationDTO.getMail());
+            reservation.setRoom(roomRepository.findOne(roomId));
+            return saveReservation(reservation, booking);
+        }
+        LOGGER.info("No room is free in date range - throwing ConflictException");
+        counterService.increment(CONFLICT_NO_FREE_ROOM_COUNTER);
+        throw new ConflictException(NO_ROOM_FREE_IN_DATE_RANGE);
+    }
+
+    /**
+     * Books the date range of the room as pending in the availability index, without writing anything to the database.
+     * Until the booking is confirmed with {@link #confirmHold} or released it blocks the range for every other request.
+     */
+    public Booking holdDateRange(ReservationDTO reservationDTO) {
+        LOGGER.info("Holding room: {}, startDate: {}, endDate: {}", reservationDTO.getRoomId(),
+                reservationDTO.getStartDate(), reservationDTO.getEndDate());
+        validateReservationDTO(reservationDTO);
+        if (roomRepository.findOne(reservationDTO.getRoomId()) == null) {
+            LOGGER.info("Didn't find a room for id: {}, returning 404 exception.", reservationDTO.getRoomId());
+            throw new NotFoundException(String.format(ROOM_NOT_FOUND, reservationDTO.getRoomId()));
+        }
+        Booking booking = availabilityIndex.tryBook(reservationDTO.getRoomId(), reservationDTO.getStartDate(),
+                reservationDTO.getEndDate(), null);
+        if (booking == null) {
+            LOGGER.info("Hold is not possible - throwing ConflictException");
+            counterService.increment(CONFLICT_OVERLAP_COUNTER);
+            throw new ConflictException(RESERVATION_ALREADY_DONE_IN_DATE_RANGE);
+        }
+        return booking;
+    }
+
+    /**
+     * Saves reservation booked as pending by {@link #holdDateRange}. The booking is committed with the transaction,
+     * or released when it fails.
+     */
+    @Transactional
+    public Reservation confirmHold(ReservationDTO reservationDTO, Booking pending) {
+        LOGGER.info("Confirming hold of room: {}, startDate: {}, endDate: {} and mail: {}", reservationDTO.getRoomId(),
+                reservationDTO.getStartDate(), reservationDTO.getEndDate(), reservationDTO.getMail());
+        Reservation reservation = new Reservation();
+        try {
+            lockRooms(null, reservationDTO.getRoomId());
+            parametersFromDTO(reservation, reservationDTO);
+        } catch (RuntimeException e) {
+            availabilityIndex.release(pending);
+            throw e;
+        }
+        if (isBookedInDatabase(reservationDTO.getRoomId(), reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)) {
+            LOGGER.info("Held date range was booked through another node - throwing ConflictException");
+            availabilityIndex.release(pending);
+            counterService.increment(CONFLICT_OVERLAP_COUNTER);
+            throw new ConflictException(RESERVATION_ALREADY_DONE_IN_DATE_RANGE);
+        }
+        return saveReservation(reservation, pending);
+    }
+
+    @Transactional
     public Reservation editReservation(ReservationDTO reservationDTO) {
         LOGGER.info("Editing reservation for id: {}, setting new room: {}, startDate: {}, endDate: {} and mail: {}",
                 reservationDTO.getRoomId(), reservationDTO.getRoomId(), reservationDTO.getStartDate(),
                 reservationDTO.getEndDate(), reservationDTO.getMail());
 
         validateReservationDTO(reservationDTO);
+        // rooms are locked before anything is read, so reads see what was committed before the locks were taken
+        lockRooms(reservationRepository.lockReservation(reservationDTO.getReservationId()), reservationDTO.getRoomId());
         Reservation reservation = reservationRepository.findOne(reservationDTO.getReservationId());
 
         return parseDTOToReservationAndSave(reservationDTO, reservation);
     }
 
+    @Transactional
+    public List<BatchReservationResultDTO> makeReservations(List<ReservationDTO> reservationDTOs) {
+        LOGGER.info("Making batch of {} reservations", reservationDTOs.size());
+        List<BatchReservationResultDTO> results = new ArrayList<>(reservationDTOs.size());
+        ReservationDTO[] validDTOs = new ReservationDTO[reservationDTOs.size()];
+        SortedSet<Long> roomIds = new TreeSet<>();
+        for (int i = 0; i < reservationDTOs.size(); i++) {
+            ReservationDTO reservationDTO = reservationDTOs.get(i);
+            try {
+                validateReservationDTO(reservationDTO);
+                validDTOs[i] = reservationDTO;
+                roomIds.add(reservationDTO.getRoomId());
+                results.add(null);
+            } catch (ConflictException e) {
+                results.add(BatchReservationResultDTO.failed(i, BatchReservationResultDTO.Status.CONFLICT, e.getMessage()));
+            }
+        }
+
+        LOGGER.info("Looking for and locking {} rooms referenced in batch", roomIds.size());
+        Map<Long, Room> rooms = new HashMap<>();
+        if (!roomIds.isEmpty()) {
+            for (Room room : roomRepository.findAllForUpdate(roomIds)) {
+                rooms.put(room.getId(), room);
+            }
+        }
+
+        Map<Long, List<Booking>> storedBookings = findStoredBookings(rooms.keySet(), validDTOs);
+        List<Reservation> accepted = new ArrayList<>();
+        List<Booking> bookings = new ArrayList<>();
+        for (int i = 0; i < reservationDTOs.size(); i++) {
+            ReservationDTO reservationDTO = validDTOs[i];
+            if (reservationDTO == null) {
+                continue;
+            }
+            Room room = rooms.get(reservationDTO.getRoomId());
+            if (room == null) {
+                results.set(i, BatchReservationResultDTO.failed(i, BatchReservationResultDTO.Status.NOT_FOUND,
+                        String.format(ROOM_NOT_FOUND, reservationDTO.getRoomId())));
+                continue;
+            }
+            Booking booking = availabilityIndex.tryBook(room.getId(), reservationDTO.getStartDate(),
+                    reservationDTO.getEndDate(), null);
+            if (booking != null && overlapsAny(booking, storedBookings.get(room.getId()))) {
+                availabilityIndex.release(booking);
+                booking = null;
+            }
+            if (booking == null) {
+                counterService.increment(CONFLICT_OVERLAP_COUNTER);
+                results.set(i, BatchReservationResultDTO.failed(i, BatchReservationResultDTO.Status.CONFLICT,
+                        RESERVATION_ALREADY_DONE_IN_DATE_RANGE));
+                continue;
+            }
+            Reservation reservation = new Reservation();
+            reservation.setStartDate(reservationDTO.getStartDate());
+            reservation.setEndDate(reservationDTO.getEndDate());
+            reservation.setMail(reservationDTO.getMail());
+            reservation.setRoom(room);
+            accepted.add(reservation);
+            bookings.add(booking);
+            results.set(i, BatchReservationResultDTO.created(i, reservation));
+        }
+
+        LOGGER.info("Saving {} accepted reservations from batch", accepted.size());
+        try {
+            reservationRepository.insertAll(accepted);
+        } catch (RuntimeException e) {
+            LOGGER.info("Failed to save batch of reservations, releasing booked date ranges");
+            bookings.forEach(availabilityIndex::release);
+            throw e;
+        }
+        for (int i = 0; i < accepted.size(); i++) {
+            availabilityIndex.commitAfterTransaction(bookings.get(i), accepted.get(i).getId());
+        }
+        resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.RESERVATIONS);
+        return results;
+    }
+
+    //not transactional - mails are read in chunks of rooms shared with other nodes, each in a transaction of its own
     @Scheduled(cron = "0 0 14 * * *")
-    @Transactional(readOnly = true)
     public void setReservedForRooms() {
         LOGGER.info("Starting mailing about reservations which start tomorrow.");
-        Iterable<Reservation> reservations = reservationRepository.findAllByStartDate(LocalDate.now().plusDays(1));
-        for(Reservation reservation : reservations) {
-            mail(reservation.getMail());
+        LocalDate tomorrow = LocalDate.now().plusDays(1);
+        List<Integer> queued = new ArrayList<>();
+        shardRouter.fanOut(() -> jobPartitions.<Integer>run(MAIL_JOB, tomorrow, roomRepository.findMaxId()))
+                .forEach(queued::addAll);
+        LOGGER.info("Finished queueing {} mails about reservations which start tomorrow.",
+                queued.stream().mapToInt(Integer::intValue).sum());
+    }
+
+    // mails are only queued here, so a chunk rolled back after losing its lease may get its mails sent twice
+    int queueMails(LocalDate startDate, long fromRoomId, long toRoomId) {
+        int queued = 0;
+        for (String mail : reservationRepository.findMailsByStartDateForRooms(startDate, fromRoomId, toRoomId)) {
+            if (mailDispatcher.dispatch(mail)) {
+                queued++;
+            }
         }
-        LOGGER.info("Finished mailing about reservations which start tomorrow.");
+        return queued;
     }
 
     @Scheduled(cron = "0 1 0 * * *")
-    @Transactional(isolation = Isolation.SERIALIZABLE)
-    public void reviseRoomsAvailability() {
+    public RevisionReportDTO reviseRoomsAvailability() {
         LOGGER.info("Revising room availability");
-        Iterable<Reservation> endingReservations = reservationRepository.findAllByEndDate(LocalDate.now());
-        for(Reservation reservation : endingReservations) {
-            reservation.getRoom().setIsReserved(false);
-            roomRepository.save(reservation.getRoom());
-        }
-        Iterable<Reservation> startingReservations = reservationRepository.findAllByStartDate(LocalDate.now());
-        for(Reservation reservation : startingReservations) {
-            reservation.getRoom().setIsReserved(true);
-            roomRepository.save(reservation.getRoom());
-        }
+        LocalDate today = LocalDate.now();
+        RevisionReportDTO report = shardRouter.fanOut(() -> roomService.reviseAvailability(today)).stream()
+                .reduce(ReservationService::combine)
+                .orElseThrow(IllegalStateException::new);
+        int evicted = availabilityIndex.evictEndedBy(today);
+        LOGGER.info("Evicted {} ended reservations from availability index", evicted);
         LOGGER.info("Ended revising room availability");
+        return report;
+    }
+
+    private static RevisionReportDTO combine(RevisionReportDTO first, RevisionReportDTO second) {
+        RevisionReportDTO report = new RevisionReportDTO();
+        report.setDate(first.getDate());
+        report.setRoomsReleased(first.getRoomsReleased() + second.getRoomsReleased());
+        report.setRoomsReserved(first.getRoomsReserved() + second.getRoomsReserved());
+        report.setChunks(first.getChunks() + second.getChunks());
+        // shards are revised in parallel
+        report.setElapsedMillis(Math.max(first.getElapsedMillis(), second.getElapsedMillis()));
+        return report;
     }
 
     private Reservation parseDTOToReservationAndSave(ReservationDTO reservationDTO, Reservation reservation) {
         LOGGER.info("Parsing reservationDTO to entity");
+        Long editedReservationId = reservation.getId();
         parametersFromDTO(reservation, reservationDTO);
 
-        if (isReservationPossibleForInput(reservation)) {
+        Booking booking = isReservationPossibleForInput(reservation, editedReservationId);
+        if (booking != null) {
             LOGGER.info("Reservation is possible - saving reservation");
-            return saveReservation(reservation);
+            return saveReservation(reservation, booking);
         } else {
             LOGGER.info("Reservation is not possible - throwing ConflictException");
+            counterService.increment(CONFLICT_OVERLAP_COUNTER);
             throw new ConflictException(RESERVATION_ALREADY_DONE_IN_DATE_RANGE);
         }
     }
 
+    // bookings of the locked rooms in the date range the batch spans, see isBookedInDatabase
+    private Map<Long, List<Booking>> findStoredBookings(Collection<Long> roomIds, ReservationDTO[] reservationDTOs) {
+        LocalDate from = null;
+        LocalDate to = null;
+        for (ReservationDTO reservationDTO : reservationDTOs) {
+            if (reservationDTO != null && roomIds.contains(reservationDTO.getRoomId())) {
+                from = from == null || reservationDTO.getStartDate().isBefore(from) ? reservationDTO.getStartDate() : from;
+                to = to == null || reservationDTO.getEndDate().isAfter(to) ? reservationDTO.getEndDate() : to;
+            }
+        }
+        Map<Long, List<Booking>> bookingsByRoom = new HashMap<>();
+        if (checksDatabase && from != null) {
+            for (Booking booking : reservationRepository.findBookingsOverlappingForUpdate(roomIds, from, to)) {
+                bookingsByRoom.computeIfAbsent(booking.getRoomId(), roomId -> new ArrayList<>()).add(booking);
+            }
+        }
+        return bookingsByRoom;
+    }
+
+    private static boolean overlapsAny(Booking booking, List<Booking> stored) {
+        return stored != null && stored.stream().anyMatch(other -> other.overlaps(booking.getStartDay(), booking.getEndDay()));
+    }
+
     private void validateReservationDTO(ReservationDTO reservationDTO) {
         LOGGER.info("Validating reservationDTO");
 
         if (!reservationDTO.getStartDate().isBefore(reservationDTO.getEndDate())) {
             LOGGER.info("StartDate {} is after endDate {}, throwing ConflictException", reservationDTO.getStartDate(),
                     reservationDTO.getEndDate());
+            counterService.increment(CONFLICT_DATE_RANGE_COUNTER);
             throw new ConflictException(WRONG_DATE_RANGE);
         }
 
         if (DAYS.between(LocalDate.now(), reservationDTO.getStartDate()) < 0) {
             LOGGER.info("StartDate {} is before today, throwing ConflictException", reservationDTO.getStartDate());
+            counterService.increment(CONFLICT_START_DATE_COUNTER);
             throw new ConflictException(RESERVATION_START_DATE_TOO_EARLY);
         }
     }
 
-    private boolean isReservationPossibleForInput(Reservation reservation) {
+    private Booking isReservationPossibleForInput(Reservation reservation, Long editedReservationId) {
         LOGGER.info("Checking if reservation is possible - " +
                 "if there is no other reservations in the time period for the room specified");
-        Iterable<Reservation> reservationsForRoomAndDate =
-                reservationRepository.findAllByRoomAndStartDateBeforeAndEndDateAfter(
-                        reservation.getRoom(), reservation.getEndDate(), reservation.getStartDate());
+        Booking booking = availabilityIndex.tryBook(reservation.getRoom().getId(), reservation.getStartDate(),
+                reservation.getEndDate(), editedReservationId);
+        if (booking != null && isBookedInDatabase(reservation.getRoom().getId(), reservation.getStartDate(),
+                reservation.getEndDate(), editedReservationId)) {
+            availabilityIndex.release(booking);
+            return null;
+        }
+        return booking;
+    }
 
-        return !reservationsForRoomAndDate.iterator().hasNext();
+    /**
+     * The index only sees writes made through this node, so when other nodes write too, once the room is locked
+     * the overlap is checked again against reservations of every node stored in the database. The read is a locking one - a plain read could see
+     * a snapshot taken before the room was locked and miss a reservation committed by another node in between.
+     */
+    private boolean isBookedInDatabase(long roomId, LocalDate startDate, LocalDate endDate, Long ignoredReservationId) {
+        if (!checksDatabase) {
+            return false;
+        }
+        for (Booking booking : reservationRepository.findBookingsOverlappingForUpdate(Collections.singleton(roomId),
+                startDate, endDate)) {
+            if (!booking.getReservationId().equals(ignoredReservationId)) {
+                LOGGER.info("Room: {} is booked by reservation: {} the index doesn't know of", roomId, booking.getReservationId());
+                return true;
+            }
+        }
+        return false;
     }
 
     private void isReservationStartingToday(long reservationId) {
@@ -180,17 +523,21 @@ public class ReservationService {
             LOGGER.info("Reservation pending cancellation starts today, setting room of cancelled reservation to available");
             reservation.getRoom().setIsReserved(false);
             roomRepository.save(reservation.getRoom());
+            resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.ROOMS);
         }
     }
 
-    private Reservation saveReservation(Reservation reservation) {
+    private Reservation saveReservation(Reservation reservation, Booking booking) {
         try {
             LOGGER.info("Attempting to save reservation");
-            return reservationRepository.save(reservation);
-        } catch (CannotAcquireLockException e) {
-            LOGGER.info("Failed to save reservation because of lock on database, " +
-                    "some thread already saved the data with this date range.");
-            throw new ConflictException(RESERVATION_ALREADY_DONE_IN_DATE_RANGE);
+            Reservation saved = reservationRepository.save(reservation);
+            availabilityIndex.commitAfterTransaction(booking, saved.getId());
+            resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.RESERVATIONS);
+            return saved;
+        } catch (RuntimeException e) {
+            LOGGER.info("Failed to save reservation, releasing booked date range");
+            availabilityIndex.release(booking);
+            throw e;
         }
     }
 
@@ -211,7 +558,23 @@ public class ReservationService {
         }
     }
 
-    private boolean reservationExists(long reservationId) {
-        return reservationRepository.exists(reservationId);
+    private void lockRooms(Long currentRoomId, Long requestedRoomId) {
+        SortedSet<Long> roomIds = new TreeSet<>();
+        roomIds.add(requestedRoomId);
+        if (currentRoomId != null) {
+            roomIds.add(currentRoomId);
+        }
+        // always lock in ascending id order, so moving reservations between rooms can't deadlock
+        for (Long roomId : roomIds) {
+            LOGGER.info("Locking room for id: {}", roomId);
+            if (roomRepository.lockRoom(roomId) == null && roomId.equals(requestedRoomId)) {
+                LOGGER.info("Didn't find a room for id: {}, returning 404 exception.", roomId);
+                throw new NotFoundException(String.format(ROOM_NOT_FOUND, roomId));
+            }
+        }
+    }
+
+    private PageRequest page(int limit) {
+        return new PageRequest(0, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
     }
 }
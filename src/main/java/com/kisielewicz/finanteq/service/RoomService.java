@@ -1,27 +1,57 @@
 package com.kisielewicz.finanteq.service;
 
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex;
+import com.kisielewicz.finanteq.datasource.ShardContext;
 import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.dto.RevisionReportDTO;
+import com.kisielewicz.finanteq.exceptions.ConflictException;
 import com.kisielewicz.finanteq.exceptions.NotFoundException;
+import com.kisielewicz.finanteq.helpers.JobPartitions;
+import com.kisielewicz.finanteq.helpers.ResourceVersions;
 import com.kisielewicz.finanteq.repository.RoomRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Isolation;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+
 @Service
 public class RoomService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RoomService.class);
 
     private static final String ROOM_NOT_FOUND = "No room by id:%s found.";
+    private static final String WRONG_DATE_RANGE = "Date range input is wrong.";
+
+    static final String REVISION_JOB = "revise-rooms-availability";
 
     private final RoomRepository roomRepository;
+    private final RoomAvailabilityIndex availabilityIndex;
+    private final JobPartitions jobPartitions;
+    private final int revisionChunkSize;
+    private final ResourceVersions resourceVersions;
 
     @Autowired
-    public RoomService(RoomRepository roomRepository) {
+    public RoomService(RoomRepository roomRepository, RoomAvailabilityIndex availabilityIndex,
+                       JobPartitions jobPartitions,
+                       @Value("${rooms.revision.chunk-size:1000}") int revisionChunkSize,
+                       ResourceVersions resourceVersions) {
         this.roomRepository = roomRepository;
+        this.availabilityIndex = availabilityIndex;
+        this.jobPartitions = jobPartitions;
+        this.revisionChunkSize = revisionChunkSize;
+        this.resourceVersions = resourceVersions;
+    }
+
+    @PostConstruct
+    public void registerJobs() {
+        jobPartitions.register(REVISION_JOB, revisionChunkSize, this::reviseChunk);
     }
 
     @Transactional(readOnly = true)
@@ -36,19 +66,39 @@ public class RoomService {
         return roomRepository.findAllByIsReserved(isReserved);
     }
 
-    @Transactional(isolation = Isolation.SERIALIZABLE)
+    @Transactional(readOnly = true)
+    public Iterable<Room> getFreeRooms(LocalDate from, LocalDate to) {
+        LOGGER.info("Getting all rooms free from: {} to: {}", from, to);
+        if (!from.isBefore(to)) {
+            LOGGER.info("From {} is not before to {}, throwing ConflictException", from, to);
+            throw new ConflictException(WRONG_DATE_RANGE);
+        }
+        List<Long> freeRoomIds = availabilityIndex.findFreeRooms(from, to);
+        LOGGER.info("Found {} free rooms", freeRoomIds.size());
+        return freeRoomIds.isEmpty() ? Collections.emptyList() : roomRepository.findAll(freeRoomIds);
+    }
+
+    @Transactional
     public Room addNewRoom() {
         LOGGER.info("Creating new room");
         Room newRoom = new Room();
         newRoom.setIsReserved(false);
-        return roomRepository.save(newRoom);
+        long propertyId = ShardContext.currentPropertyOrDefault();
+        newRoom.setPropertyId(propertyId);
+        Room room = roomRepository.save(newRoom);
+        availabilityIndex.addRoomAfterTransaction(room.getId(), propertyId);
+        resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.ROOMS);
+        return room;
     }
 
-    @Transactional(isolation = Isolation.SERIALIZABLE)
+    @Transactional
     public void deleteRoom(long roomId) {
         LOGGER.info("Deleting a room with id: {}", roomId);
         if (roomExists(roomId)) {
             roomRepository.delete(roomId);
+            availabilityIndex.removeRoomAfterTransaction(roomId);
+            // reservations of the room are deleted along with it
+            resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.ROOMS, ResourceVersions.Resource.RESERVATIONS);
             LOGGER.info("Successfully deleted a room");
         } else {
             LOGGER.info("Didn't find a room for id: {}, returning 404 exception.", roomId);
@@ -56,12 +106,13 @@ public class RoomService {
         }
     }
 
-    @Transactional(isolation = Isolation.SERIALIZABLE)
+    @Transactional
     public Room setAvailability(long roomId, boolean available) {
         LOGGER.info("setting room availability to {}", available);
-        if (roomExists(roomId)) {
-            Room room = roomRepository.findOne(roomId);
+        Room room = roomRepository.findOneForUpdate(roomId);
+        if (room != null) {
             room.setIsReserved(!available);
+            resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.ROOMS);
             LOGGER.info("Successfully set availability");
             return roomRepository.save(room);
         } else {
@@ -71,8 +122,42 @@ public class RoomService {
 
     }
 
+    /**
+     * Sets rooms with reservations ending on the date as available and rooms with reservations starting on it
+     * as reserved. Rooms are updated with bulk updates over ranges of room ids, each in a short transaction
+     * of its own, so no room stays locked for the whole revision. The ranges are shared with other nodes through
+     * {@link JobPartitions}, so the report covers the chunks revised by this node only.
+     */
+    public RevisionReportDTO reviseAvailability(LocalDate date) {
+        LOGGER.info("Revising room availability for date: {} in chunks of {} rooms", date, revisionChunkSize);
+        long start = System.currentTimeMillis();
+        RevisionReportDTO report = new RevisionReportDTO();
+        report.setDate(date);
+        List<RevisionReportDTO> chunks = jobPartitions.run(REVISION_JOB, date, roomRepository.findMaxId());
+        for (RevisionReportDTO chunk : chunks) {
+            report.setRoomsReleased(report.getRoomsReleased() + chunk.getRoomsReleased());
+            report.setRoomsReserved(report.getRoomsReserved() + chunk.getRoomsReserved());
+            report.setChunks(report.getChunks() + 1);
+        }
+        report.setElapsedMillis(System.currentTimeMillis() - start);
+        resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.ROOMS);
+        LOGGER.info("Revised room availability: {}", report);
+        return report;
+    }
+
+    // runs in the transaction of the chunk
+    RevisionReportDTO reviseChunk(LocalDate date, long fromId, long toId) {
+        RevisionReportDTO chunk = new RevisionReportDTO();
+        chunk.setDate(date);
+        // releasing goes first, so a room handed over on the same day ends up reserved
+        chunk.setRoomsReleased(roomRepository.releaseRoomsWithReservationsEndingOn(date, fromId, toId));
+        chunk.setRoomsReserved(roomRepository.reserveRoomsWithReservationsStartingOn(date, fromId, toId));
+        chunk.setChunks(1);
+        return chunk;
+    }
+
     private boolean roomExists(long roomId) {
-        LOGGER.info("Checking if room for id: {} exists.", roomId);
-        return roomRepository.exists(roomId);
+        LOGGER.info("Checking if room for id: {} exists and locking it.", roomId);
+        return roomRepository.lockRoom(roomId) != null;
     }
 }
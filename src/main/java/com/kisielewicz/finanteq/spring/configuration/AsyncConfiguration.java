@@ -0,0 +1,31 @@
+package com.kisielewicz.finanteq.spring.configuration;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class AsyncConfiguration {
+
+    public static final String RESERVATION_WRITE_EXECUTOR = "reservationWriteExecutor";
+
+    /**
+     * Runs reservation writes off the request threads, which are left free for reads. When all threads are busy
+     * and the queue is full writes are rejected right away instead of waiting, and answered with 503.
+     */
+    @Bean(name = RESERVATION_WRITE_EXECUTOR)
+    public ThreadPoolTaskExecutor reservationWriteExecutor(@Value("${reservation.writes.threads:8}") int threads,
+                                                           @Value("${reservation.writes.queue-capacity:100}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("reservation-write-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+}
@@ -0,0 +1,23 @@
+package com.kisielewicz.finanteq.spring.configuration;
+
+import com.kisielewicz.finanteq.repository.RoomRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.EnableCaching;
+import org.springframework.cache.caffeine.CaffeineCacheManager;
+import org.springframework.cache.transaction.TransactionAwareCacheManagerProxy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableCaching
+public class CacheConfiguration {
+
+    @Bean
+    public CacheManager cacheManager(@Value("${rooms.cache.spec:maximumSize=10000,expireAfterWrite=60s,recordStats}") String spec) {
+        CaffeineCacheManager cacheManager = new CaffeineCacheManager(RoomRepository.ROOM_CACHE, RoomRepository.ROOMS_CACHE);
+        cacheManager.setCacheSpecification(spec);
+        // evictions are applied once the transaction commits, so other requests can't cache the state being replaced
+        return new TransactionAwareCacheManagerProxy(cacheManager);
+    }
+}
@@ -0,0 +1,65 @@
+package com.kisielewicz.finanteq.spring.configuration;
+
+import com.kisielewicz.finanteq.datasource.ReplicaRoutingDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Sends read-only transactions to a replica when datasource.replica.enabled is set. The primary is still configured
+ * with spring.datasource properties, the replica with datasource.replica ones. Both pools are built here rather than
+ * being beans of their own, so the only DataSource bean JPA and Flyway see is the routing one.
+ */
+@Configuration
+@ConditionalOnProperty(name = "datasource.replica.enabled", havingValue = "true")
+public class ReplicaDataSourceConfiguration implements ApplicationListener<ApplicationReadyEvent> {
+
+    private ReplicaRoutingDataSource routingDataSource;
+    private long heartbeatIntervalMillis;
+
+    @Bean
+    public DataSource dataSource(DataSourceProperties properties,
+                                 @Value("${datasource.replica.url}") String replicaUrl,
+                                 @Value("${datasource.replica.username}") String replicaUsername,
+                                 @Value("${datasource.replica.password}") String replicaPassword,
+                                 @Value("${datasource.replica.driver-class-name}") String replicaDriverClassName,
+                                 @Value("${datasource.replica.retry-interval-ms:30000}") long retryIntervalMillis,
+                                 @Value("${datasource.replica.heartbeat-interval-ms:500}") long heartbeatIntervalMillis,
+                                 @Value("${datasource.replica.max-lag-ms:5000}") long maxLagMillis,
+                                 @Value("${datasource.replica.clock-skew-ms:100}") long clockSkewMillis) {
+        DataSource primary = properties.initializeDataSourceBuilder().build();
+        DataSource replica = DataSourceBuilder.create()
+                .url(replicaUrl)
+                .username(replicaUsername)
+                .password(replicaPassword)
+                .driverClassName(replicaDriverClassName)
+                .build();
+        routingDataSource = new ReplicaRoutingDataSource(primary, replica, ManagementFactory.getRuntimeMXBean().getName(),
+                retryIntervalMillis, maxLagMillis, clockSkewMillis);
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        return new LazyConnectionDataSourceProxy(routingDataSource);
+    }
+
+    //once migrations created the heartbeat table, until then reads go to the primary
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        routingDataSource.start(heartbeatIntervalMillis);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (routingDataSource != null) {
+            routingDataSource.stop();
+        }
+    }
+}
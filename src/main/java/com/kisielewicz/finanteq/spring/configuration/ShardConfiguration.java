@@ -0,0 +1,97 @@
+package com.kisielewicz.finanteq.spring.configuration;
+
+import com.kisielewicz.finanteq.datasource.ShardRouter;
+import com.kisielewicz.finanteq.datasource.ShardRoutingDataSource;
+import org.flywaydb.core.Flyway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits rooms and reservations of properties between databases when shards.enabled is set. Without it there is
+ * a single shard - the spring.datasource database - holding the default property only.
+ */
+@Configuration
+@EnableConfigurationProperties(ShardProperties.class)
+public class ShardConfiguration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardConfiguration.class);
+
+    @Bean
+    public ShardRouter shardRouter(ShardProperties properties,
+                                   @Value("${datasource.replica.enabled:false}") boolean replicaEnabled) {
+        if (!properties.isEnabled()) {
+            return ShardRouter.single();
+        }
+        if (replicaEnabled) {
+            throw new IllegalStateException("Replica routing and sharding can't be enabled together");
+        }
+        Map<Long, String> shardByProperty = new LinkedHashMap<>();
+        properties.getNodes().forEach((shard, node) -> {
+            for (Long propertyId : node.getProperties()) {
+                if (shardByProperty.put(propertyId, shard) != null) {
+                    throw new IllegalStateException("Property " + propertyId + " is assigned to more than one shard");
+                }
+            }
+        });
+        LOGGER.info("Routing properties to shards: {}", shardByProperty);
+        return new ShardRouter(shardByProperty);
+    }
+
+    /**
+     * Flyway of Spring Boot migrates the shard of the default property, used by threads working for no property,
+     * the other shards are migrated here. A shard created from scratch drops the sample rooms and reservations
+     * the migrations insert, as they belong to the default property.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "shards.enabled", havingValue = "true")
+    public DataSource dataSource(ShardProperties properties, ShardRouter router) {
+        Map<String, DataSource> shards = new LinkedHashMap<>();
+        properties.getNodes().forEach((shard, node) -> shards.put(shard, build(node)));
+        shards.forEach((shard, dataSource) -> {
+            if (!shard.equals(router.defaultShard())) {
+                LOGGER.info("Migrating shard: {}", shard);
+                Flyway flyway = new Flyway();
+                flyway.setDataSource(dataSource);
+                flyway.setValidateOnMigrate(true);
+                boolean created = flyway.info().applied().length == 0;
+                flyway.migrate();
+                if (created) {
+                    deleteRowsOfOtherShards(dataSource, properties.getNodes().get(shard).getProperties());
+                }
+            }
+        });
+        return new ShardRoutingDataSource(router, shards);
+    }
+
+    private static void deleteRowsOfOtherShards(DataSource dataSource, List<Long> propertyIds) {
+        NamedParameterJdbcTemplate jdbcTemplate = new NamedParameterJdbcTemplate(dataSource);
+        Map<String, List<Long>> parameters = Collections.singletonMap("propertyIds", propertyIds);
+        jdbcTemplate.update("DELETE FROM reservation WHERE property_id NOT IN (:propertyIds)", parameters);
+        jdbcTemplate.update("DELETE FROM room WHERE property_id NOT IN (:propertyIds)", parameters);
+    }
+
+    private static DataSource build(ShardProperties.Node node) {
+        org.apache.tomcat.jdbc.pool.DataSource dataSource = (org.apache.tomcat.jdbc.pool.DataSource) DataSourceBuilder.create()
+                .type(org.apache.tomcat.jdbc.pool.DataSource.class)
+                .url(node.getUrl())
+                .username(node.getUsername())
+                .password(node.getPassword())
+                .driverClassName(node.getDriverClassName())
+                .build();
+        dataSource.setInitSQL(node.getInitSql());
+        return dataSource;
+    }
+}
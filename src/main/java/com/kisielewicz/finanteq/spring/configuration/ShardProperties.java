@@ -0,0 +1,34 @@
+package com.kisielewicz.finanteq.spring.configuration;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Databases of shards and the property each of them holds, configured as shards.nodes.[name].*. Every property needs
+ * a shard of its own, see {@link com.kisielewicz.finanteq.datasource.ShardRouter}. Room and reservation
+ * ids have to be unique across shards, as the availability index of every node holds rooms of all of them -
+ * give each shard ids of its own, e.g. with MySQL auto_increment_offset and auto_increment_increment set in init-sql.
+ */
+@Data
+@ConfigurationProperties(prefix = "shards")
+public class ShardProperties {
+
+    private boolean enabled;
+    private Map<String, Node> nodes = new LinkedHashMap<>();
+
+    @Data
+    public static class Node {
+
+        private String url;
+        private String username;
+        private String password;
+        private String driverClassName;
+        private String initSql;
+        private List<Long> properties = new ArrayList<>();
+    }
+}
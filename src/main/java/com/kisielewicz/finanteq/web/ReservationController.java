@@ -1,74 +1,330 @@
 package com.kisielewicz.finanteq.web;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.kisielewicz.finanteq.datasource.ShardContext;
+import com.kisielewicz.finanteq.datasource.ShardRouter;
 import com.kisielewicz.finanteq.domain.Reservation;
+import com.kisielewicz.finanteq.dto.BatchReservationResultDTO;
+import com.kisielewicz.finanteq.dto.HoldDTO;
+import com.kisielewicz.finanteq.dto.ImportReportDTO;
+import com.kisielewicz.finanteq.dto.OccupancyDTO;
 import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO;
+import com.kisielewicz.finanteq.dto.RevisionReportDTO;
+import com.kisielewicz.finanteq.exceptions.BadRequestException;
+import com.kisielewicz.finanteq.helpers.IdempotencyStore;
+import com.kisielewicz.finanteq.helpers.ResourceVersions;
+import com.kisielewicz.finanteq.service.HoldService;
+import com.kisielewicz.finanteq.service.ImportService;
+import com.kisielewicz.finanteq.service.OccupancyService;
 import com.kisielewicz.finanteq.service.ReservationService;
+import com.kisielewicz.finanteq.spring.configuration.AsyncConfiguration;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/reservations")
 public class ReservationController {
 
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    private static final String PROPERTY_REQUIRED = "Property-Id header is required, as properties are kept in separate shards.";
+    private static final Comparator<ReservationSummaryDTO> BY_ID = Comparator.comparing(ReservationSummaryDTO::getId);
+    private static final Comparator<Reservation> BY_RESERVATION_ID = Comparator.comparing(Reservation::getId);
+
     private final ReservationService reservationService;
+    private final ObjectWriter exportWriter;
+    private final ResourceVersions resourceVersions;
+    private final OccupancyService occupancyService;
+    private final Executor writeExecutor;
+    private final IdempotencyStore idempotencyStore;
+    private final HoldService holdService;
+    private final ImportService importService;
+    private final ShardRouter shardRouter;
 
     @Autowired
-    public ReservationController(ReservationService reservationService) {
+    public ReservationController(ReservationService reservationService, ObjectMapper objectMapper,
+                                 ResourceVersions resourceVersions, OccupancyService occupancyService,
+                                 @Qualifier(AsyncConfiguration.RESERVATION_WRITE_EXECUTOR) Executor writeExecutor,
+                                 IdempotencyStore idempotencyStore, HoldService holdService,
+                                 ImportService importService, ShardRouter shardRouter) {
         this.reservationService = reservationService;
+        this.resourceVersions = resourceVersions;
+        this.occupancyService = occupancyService;
+        this.writeExecutor = writeExecutor;
+        this.idempotencyStore = idempotencyStore;
+        this.holdService = holdService;
+        this.importService = importService;
+        this.shardRouter = shardRouter;
+        this.exportWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
     }
 
+    //pages are requested with id of the last reservation already received - without any paging parameters all are returned
+    //lists are answered as columns instead of objects when the client accepts ColumnarResponseAdvice.COLUMNAR_JSON_VALUE
+    //requests without Property-Id header read reservations of all properties, except for export and occupancy,
+    //which need it when properties are sharded
     @GetMapping("/all")
     public @ResponseBody
-    Iterable<Reservation> getAllReservations() {
-        return reservationService.getAllReservations();
+    List<ReservationSummaryDTO> getAllReservations(@RequestParam(required = false) Long after,
+                                                   @RequestParam(required = false) Integer limit,
+                                                   WebRequest request) {
+        if (notModified(request)) {
+            return null;
+        }
+        if (isPaged(after, limit)) {
+            return shardRouter.readMerged(() -> reservationService.getAllReservations(afterId(after), pageSize(limit)),
+                    BY_ID, pageSize(limit));
+        }
+        return shardRouter.readMerged(reservationService::getAllReservations, BY_ID, Integer.MAX_VALUE);
+    }
+
+    @GetMapping(value = "/export", produces = MediaType.APPLICATION_JSON_VALUE)
+    public void exportReservations(HttpServletResponse response) throws IOException {
+        requireProperty();
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        try (JsonGenerator generator = exportWriter.getFactory().createGenerator(response.getOutputStream())) {
+            // an export failing halfway leaves the array open, so the client can tell it's incomplete
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+            generator.writeStartArray();
+            reservationService.exportReservations(reservation -> {
+                try {
+                    exportWriter.writeValue(generator, reservation);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            generator.writeEndArray();
+        }
+    }
+
+    @GetMapping("/occupancy")
+    public @ResponseBody OccupancyDTO getOccupancy(@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                   @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                                                   WebRequest request) {
+        requireProperty();
+        //occupancy lists every room, so adding one modifies it too
+        if (notModified(request, ResourceVersions.Resource.RESERVATIONS, ResourceVersions.Resource.ROOMS)) {
+            return null;
+        }
+        return occupancyService.getOccupancy(from, to);
     }
 
     @GetMapping("/{reservationId}")
-    public @ResponseBody Reservation getReservationDetails(@PathVariable long reservationId) {
-        return reservationService.getReservation(reservationId);
+    public @ResponseBody Reservation getReservationDetails(@PathVariable long reservationId, WebRequest request) {
+        //the reservation is returned with its room, so a change of either makes it modified
+        if (notModified(request, ResourceVersions.Resource.RESERVATIONS, ResourceVersions.Resource.ROOMS)) {
+            return null;
+        }
+        // ids are unique across shards, so at most one of them has the reservation
+        return shardRouter.readMerged(() -> {
+            Reservation reservation = reservationService.getReservation(reservationId);
+            return reservation == null ? Collections.<Reservation>emptyList() : Collections.singletonList(reservation);
+        }, BY_RESERVATION_ID, 1).stream().findFirst().orElse(null);
     }
 
     @GetMapping("/room/{roomId}")
     public @ResponseBody
-    Iterable<Reservation> getReservationsForRoom(@PathVariable long roomId) {
-        return reservationService.getAllReservationsForRoom(roomId);
+    List<ReservationSummaryDTO> getReservationsForRoom(@PathVariable long roomId,
+                                                       @RequestParam(required = false) Long after,
+                                                       @RequestParam(required = false) Integer limit,
+                                                       WebRequest request) {
+        if (notModified(request)) {
+            return null;
+        }
+        if (isPaged(after, limit)) {
+            return shardRouter.readMerged(() -> reservationService.getAllReservationsForRoom(roomId, afterId(after), pageSize(limit)),
+                    BY_ID, pageSize(limit));
+        }
+        return shardRouter.readMerged(() -> reservationService.getAllReservationsForRoom(roomId), BY_ID, Integer.MAX_VALUE);
     }
 
     @GetMapping("/upcoming/date/{forDate}")
-    public @ResponseBody Iterable<Reservation> getUpcomingReservations(@PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate forDate) {
-        return reservationService.getUpcomingReservations(forDate);
+    public @ResponseBody List<ReservationSummaryDTO> getUpcomingReservations(@PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate forDate,
+                                                                             @RequestParam(required = false) Long after,
+                                                                             @RequestParam(required = false) Integer limit,
+                                                                             WebRequest request) {
+        if (notModified(request)) {
+            return null;
+        }
+        if (isPaged(after, limit)) {
+            return shardRouter.readMerged(() -> reservationService.getUpcomingReservations(forDate, afterId(after), pageSize(limit)),
+                    BY_ID, pageSize(limit));
+        }
+        return shardRouter.readMerged(() -> reservationService.getUpcomingReservations(forDate), BY_ID, Integer.MAX_VALUE);
     }
 
     @GetMapping("/upcoming/room/{roomId}/date/{forDate}")
-    public @ResponseBody Iterable<Reservation> getUpcomingReservationsForRoom(@PathVariable long roomId,
-                                                                              @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate forDate) {
-        return reservationService.getUpcomingReservationsForRoom(forDate, roomId);
+    public @ResponseBody List<ReservationSummaryDTO> getUpcomingReservationsForRoom(@PathVariable long roomId,
+                                                                                    @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate forDate,
+                                                                                    WebRequest request) {
+        if (notModified(request)) {
+            return null;
+        }
+        return shardRouter.readMerged(() -> reservationService.getUpcomingReservationsForRoom(forDate, roomId),
+                BY_ID, Integer.MAX_VALUE);
     }
 
+    //writes run on the write executor, releasing the request thread until they complete
+    //retries sent with the same Idempotency-Key get the response of the first request instead of running again
     @PostMapping("/make")
-    public @ResponseBody Reservation makeReservation(@RequestBody ReservationDTO reservationDTO) {
-        return reservationService.makeReservation(reservationDTO);
+    public @ResponseBody CompletableFuture<Reservation> makeReservation(@RequestBody ReservationDTO reservationDTO,
+                                                                        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotentWrite("make", idempotencyKey, reservationDTO, Reservation.class,
+                () -> reservationService.makeReservation(reservationDTO));
+    }
+
+    //the room is picked by the server, so clients don't race each other for the same one
+    @PostMapping("/allocate")
+    public @ResponseBody CompletableFuture<Reservation> allocateReservation(@RequestBody ReservationDTO reservationDTO,
+                                                                            @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotentWrite("allocate", idempotencyKey, reservationDTO, Reservation.class,
+                () -> reservationService.allocateReservation(reservationDTO));
+    }
+
+    @PostMapping("/batch")
+    public @ResponseBody CompletableFuture<List<BatchReservationResultDTO>> makeReservations(@RequestBody List<ReservationDTO> reservationDTOs) {
+        return write(() -> reservationService.makeReservations(reservationDTOs));
+    }
+
+    //rows are read as they arrive - CSV lines of roomId,startDate,endDate,mail or JSON lines of reservations
+    @PostMapping(value = "/import", consumes = {"text/csv", NDJSON_VALUE})
+    public @ResponseBody ImportReportDTO importReservations(HttpServletRequest request) throws IOException {
+        ImportService.Format format = MediaType.parseMediaType(request.getContentType())
+                .isCompatibleWith(MediaType.parseMediaType(NDJSON_VALUE)) ? ImportService.Format.JSONL : ImportService.Format.CSV;
+        return importService.importReservations(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8), format);
     }
 
     @DeleteMapping("/cancel/{reservationId}")
     public @ResponseBody
-    ResponseEntity cancelReservation(@PathVariable long reservationId) {
-        reservationService.cancelReservation(reservationId);
-        return new ResponseEntity<>(HttpStatus.OK);
+    CompletableFuture<ResponseEntity> cancelReservation(@PathVariable long reservationId,
+                                                        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        CompletableFuture<Void> cancelled = idempotentWrite("cancel", idempotencyKey, reservationId, Void.class, () -> {
+            reservationService.cancelReservation(reservationId);
+            return null;
+        });
+        CompletableFuture<ResponseEntity> response = new CompletableFuture<>();
+        cancelled.whenComplete((done, e) -> {
+            if (e != null) {
+                response.completeExceptionally(e);
+            } else {
+                response.complete(new ResponseEntity<>(HttpStatus.OK));
+            }
+        });
+        return response;
     }
 
     @PutMapping("/edit")
-    public @ResponseBody Reservation editReservation(@RequestBody ReservationDTO toEdit) {
-        return reservationService.editReservation(toEdit);
+    public @ResponseBody CompletableFuture<Reservation> editReservation(@RequestBody ReservationDTO toEdit,
+                                                                        @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotentWrite("edit", idempotencyKey, toEdit, Reservation.class,
+                () -> reservationService.editReservation(toEdit));
+    }
+
+    //holds block the date range in memory only, until confirmed as a reservation, released or expired
+    @PostMapping("/hold")
+    public @ResponseBody HoldDTO holdReservation(@RequestBody ReservationDTO reservationDTO) {
+        return holdService.hold(reservationDTO);
+    }
+
+    @PutMapping("/hold/{holdId}/confirm")
+    public @ResponseBody CompletableFuture<Reservation> confirmHold(@PathVariable String holdId,
+                                                                    @RequestHeader(value = IDEMPOTENCY_KEY, required = false) String idempotencyKey) {
+        return idempotentWrite("confirm", idempotencyKey, holdId, Reservation.class, () -> holdService.confirm(holdId));
+    }
+
+    @DeleteMapping("/hold/{holdId}/release")
+    public @ResponseBody ResponseEntity releaseHold(@PathVariable String holdId) {
+        holdService.release(holdId);
+        return new ResponseEntity<>(HttpStatus.OK);
     }
 
     @GetMapping("/mail")
     public void mailReservationEmails() {
         reservationService.setReservedForRooms();
     }
+
+    //bulk updates of every shard, so it's a POST - crawlers, prefetching and retries don't trigger it and it's admitted
+    //like other writes
+    @PostMapping("/revise")
+    public @ResponseBody RevisionReportDTO reviseRoomsAvailability() {
+        return reservationService.reviseRoomsAvailability();
+    }
+
+    private <T> CompletableFuture<T> idempotentWrite(String operation, String idempotencyKey, Object request,
+                                                     Class<T> resultType, Supplier<T> action) {
+        if (idempotencyKey == null) {
+            return write(action);
+        }
+        return idempotencyStore.execute(operation, idempotencyKey, request, resultType, () -> write(action));
+    }
+
+    /**
+     * Failures complete the future with the exception thrown by the service, not wrapped,
+     * so it's handled by {@link com.kisielewicz.finanteq.helpers.ErrorsHandler} like a synchronous one.
+     * A full executor throws {@link java.util.concurrent.RejectedExecutionException} right away.
+     */
+    private <T> CompletableFuture<T> write(Supplier<T> action) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Supplier<T> boundAction = ShardContext.bound(action);
+        writeExecutor.execute(() -> {
+            try {
+                result.complete(boundAction.get());
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    //summaries carry only the room id, so only reservation writes modify them
+    private boolean notModified(WebRequest request) {
+        return notModified(request, ResourceVersions.Resource.RESERVATIONS);
+    }
+
+    private boolean notModified(WebRequest request, ResourceVersions.Resource... resources) {
+        return request.checkNotModified(resourceVersions.etag(resources));
+    }
+
+    // reads which can't be merged across shards are refused rather than answered from one of them
+    private void requireProperty() {
+        if (shardRouter.isSharded() && ShardContext.currentProperty() == null) {
+            throw new BadRequestException(PROPERTY_REQUIRED);
+        }
+    }
+
+    private static boolean isPaged(Long after, Integer limit) {
+        return after != null || limit != null;
+    }
+
+    private static long afterId(Long after) {
+        return after != null ? after : 0L;
+    }
+
+    private static int pageSize(Integer limit) {
+        return Math.max(1, Math.min(limit != null ? limit : DEFAULT_PAGE_SIZE, ReservationService.MAX_PAGE_SIZE));
+    }
 }
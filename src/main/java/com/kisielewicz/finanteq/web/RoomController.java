@@ -1,32 +1,66 @@
 package com.kisielewicz.finanteq.web;
 
+import com.kisielewicz.finanteq.datasource.ShardRouter;
 import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.helpers.ResourceVersions;
 import com.kisielewicz.finanteq.service.RoomService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 @RestController
 @RequestMapping("/rooms")
 public class RoomController {
 
+    private static final Comparator<Room> BY_ID = Comparator.comparing(Room::getId);
+
     private final RoomService roomService;
+    private final ResourceVersions resourceVersions;
+    private final ShardRouter shardRouter;
 
     @Autowired
-    public RoomController(RoomService roomService) {
+    public RoomController(RoomService roomService, ResourceVersions resourceVersions, ShardRouter shardRouter) {
         this.roomService = roomService;
+        this.resourceVersions = resourceVersions;
+        this.shardRouter = shardRouter;
     }
 
+    //reads answer 304 Not Modified, without touching the service, when If-None-Match holds the current version
+    //requests without Property-Id header list rooms of all properties
     @GetMapping("/all")
-    public @ResponseBody Iterable<Room> getAllRooms() {
-        return roomService.getAllRooms();
+    public @ResponseBody Iterable<Room> getAllRooms(WebRequest request) {
+        if (request.checkNotModified(resourceVersions.etag(ResourceVersions.Resource.ROOMS))) {
+            return null;
+        }
+        return shardRouter.readMerged(() -> list(roomService.getAllRooms()), BY_ID, Integer.MAX_VALUE);
     }
 
     @GetMapping("/available/{available}")
     //isReserved is !available
-    public @ResponseBody Iterable<Room> getAllRoomsBasedOnAvailability(@PathVariable Boolean available) {
-        return roomService.getAllRoomsBasedOnReservation(!available);
+    public @ResponseBody Iterable<Room> getAllRoomsBasedOnAvailability(@PathVariable Boolean available, WebRequest request) {
+        if (request.checkNotModified(resourceVersions.etag(ResourceVersions.Resource.ROOMS))) {
+            return null;
+        }
+        return shardRouter.readMerged(() -> list(roomService.getAllRoomsBasedOnReservation(!available)), BY_ID, Integer.MAX_VALUE);
+    }
+
+    @GetMapping("/free")
+    public @ResponseBody Iterable<Room> getFreeRooms(@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                                     @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                                                     WebRequest request) {
+        if (request.checkNotModified(resourceVersions.etag(ResourceVersions.Resource.ROOMS,
+                ResourceVersions.Resource.RESERVATIONS))) {
+            return null;
+        }
+        return roomService.getFreeRooms(from, to);
     }
 
     @PostMapping("/add")
@@ -49,4 +83,10 @@ public class RoomController {
     public @ResponseBody Room makeRoomUnavailable(@PathVariable long roomId) {
         return roomService.setAvailability(roomId, false);
     }
+
+    private static List<Room> list(Iterable<Room> rooms) {
+        List<Room> list = new ArrayList<>();
+        rooms.forEach(list::add);
+        return list;
+    }
 }
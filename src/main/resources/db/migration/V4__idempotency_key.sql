@@ -0,0 +1,10 @@
+CREATE TABLE idempotency_key (
+  idempotency_key VARCHAR(255) NOT NULL,
+  request_hash INT NOT NULL,
+  status INT NOT NULL,
+  body TEXT,
+  created_at BIGINT(20) NOT NULL,
+  PRIMARY KEY (idempotency_key)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE INDEX idx_idempotency_key_created_at ON idempotency_key (created_at);
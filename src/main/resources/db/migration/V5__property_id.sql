@@ -0,0 +1,9 @@
+ALTER TABLE room ADD COLUMN property_id BIGINT(20) NOT NULL DEFAULT 1;
+
+ALTER TABLE reservation ADD COLUMN property_id BIGINT(20) NOT NULL DEFAULT 1;
+
+UPDATE reservation SET property_id = (SELECT room.property_id FROM room WHERE room.id = reservation.room_id);
+
+CREATE INDEX idx_room_property_id ON room (property_id);
+
+CREATE INDEX idx_reservation_property_id ON reservation (property_id);
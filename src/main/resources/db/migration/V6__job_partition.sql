@@ -0,0 +1,15 @@
+CREATE TABLE job_partition (
+  id BIGINT(20) NOT NULL AUTO_INCREMENT,
+  job_name VARCHAR(100) NOT NULL,
+  run_date DATE NOT NULL,
+  from_id BIGINT(20) NOT NULL,
+  to_id BIGINT(20) NOT NULL,
+  checkpoint_id BIGINT(20) NOT NULL,
+  owner VARCHAR(255),
+  lease_until BIGINT(20) NOT NULL DEFAULT 0,
+  done BIT NOT NULL DEFAULT 0,
+  PRIMARY KEY (id),
+  UNIQUE KEY uk_job_partition_range (job_name, run_date, from_id)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE INDEX idx_job_partition_run_date ON job_partition (run_date);
@@ -0,0 +1,7 @@
+CREATE TABLE resource_version (
+  resource VARCHAR(32) NOT NULL,
+  version BIGINT(20) NOT NULL,
+  PRIMARY KEY (resource)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+INSERT INTO resource_version (resource, version) VALUES ('ROOMS', 0), ('RESERVATIONS', 0);
@@ -0,0 +1,5 @@
+CREATE TABLE replica_heartbeat (
+  node VARCHAR(255) NOT NULL,
+  beat_at BIGINT(20) NOT NULL,
+  PRIMARY KEY (node)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
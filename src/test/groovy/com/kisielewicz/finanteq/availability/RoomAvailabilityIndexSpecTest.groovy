@@ -0,0 +1,320 @@
+package com.kisielewicz.finanteq.availability
+
+import com.kisielewicz.finanteq.datasource.ShardRouter
+import com.kisielewicz.finanteq.repository.ReservationRepository
+import com.kisielewicz.finanteq.repository.RoomRepository
+import org.junit.Rule
+import org.junit.rules.TemporaryFolder
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+class RoomAvailabilityIndexSpecTest extends Specification {
+
+    private final ReservationRepository reservationRepository = Mock(ReservationRepository)
+    private final RoomRepository roomRepository = Mock(RoomRepository)
+
+    private final RoomAvailabilityIndex availabilityIndex = new RoomAvailabilityIndex(reservationRepository, roomRepository, 30)
+
+    private final LocalDate today = LocalDate.now()
+
+    def "should load bookings which didn't end yet from database"() {
+        given:
+        Iterable<Booking> bookings = new ArrayList<>()
+        for (int i = 0; i < 3; i++) {
+            bookings.add(new Booking(i, 1L, today.plusDays(i * 5), today.plusDays(i * 5 + 2)))
+        }
+        when:
+        availabilityIndex.loadFromDatabase()
+        then:
+        1*roomRepository.findAllIds() >> [1L, 2L]
+        1*reservationRepository.findAllBookingsEndingAfter(today) >> bookings
+        availabilityIndex.size() == 3
+        availabilityIndex.findFreeRooms(today, today.plusDays(2)) == [2L]
+        !availabilityIndex.isFree(1, today.plusDays(6), today.plusDays(7), null)
+        availabilityIndex.isFree(1, today.plusDays(7), today.plusDays(10), null)
+    }
+
+    def "should load rooms of every shard and refuse ids used by more than one"() {
+        given:
+        ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+        RoomAvailabilityIndex shardedIndex = new RoomAvailabilityIndex(reservationRepository, roomRepository, 30,
+                ReservationJournal.disabled(), router)
+        when:
+        shardedIndex.loadFromDatabase()
+        then:
+        2*roomRepository.findAllIds() >> [1L] >> [2L]
+        2*reservationRepository.findAllBookingsEndingAfter(today) >> [new Booking(1L, 1L, today, today.plusDays(2))] >> []
+        shardedIndex.findFreeRooms(today, today.plusDays(2)) == [2L]
+        shardedIndex.findFreeRoomsBestFit(today.plusDays(2), today.plusDays(4), 1L) == [1L]
+        shardedIndex.findFreeRoomsBestFit(today.plusDays(2), today.plusDays(4), 2L) == [2L]
+        when:
+        shardedIndex.loadFromDatabase()
+        then:
+        2*roomRepository.findAllIds() >> [1L] >> [1L]
+        2*reservationRepository.findAllBookingsEndingAfter(today) >> []
+        thrown(IllegalStateException)
+        cleanup:
+        router.stop()
+    }
+
+    def "should order free rooms by how tightly date range fills gap between their bookings"() {
+        given:
+        availabilityIndex.load([1L, 2L, 3L, 4L, 5L], [new Booking(1L, 1L, today, today.plusDays(2)),
+                                                      new Booking(2L, 1L, today.plusDays(5), today.plusDays(9)),
+                                                      new Booking(3L, 2L, today, today.plusDays(1)),
+                                                      new Booking(4L, 2L, today.plusDays(7), today.plusDays(10)),
+                                                      new Booking(5L, 3L, today.plusDays(10), today.plusDays(12)),
+                                                      new Booking(6L, 5L, today.plusDays(3), today.plusDays(4)),
+                                                      new Booking(7L, 6L, today, today.plusDays(1))])
+        expect:
+        availabilityIndex.findFreeRoomsBestFit(today.plusDays(2), today.plusDays(5)) == [1L, 2L, 3L, 6L, 4L]
+    }
+
+    def "should treat date ranges as half open"() {
+        given:
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(new Booking(1L, 1L, today.plusDays(2), today.plusDays(4))))
+        expect:
+        availabilityIndex.isFree(1, today.plusDays(startDay), today.plusDays(endDay), null) == free
+        where:
+        startDay | endDay | free
+        0        | 2      | true
+        4        | 6      | true
+        1        | 3      | false
+        3        | 5      | false
+        0        | 10     | false
+        2        | 4      | false
+    }
+
+    def "should not report conflicts between different rooms"() {
+        given:
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(new Booking(1L, 1L, today, today.plusDays(4))))
+        expect:
+        availabilityIndex.isFree(2, today, today.plusDays(4), null)
+    }
+
+    def "should ignore booking of edited reservation"() {
+        given:
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(new Booking(1L, 1L, today, today.plusDays(4))))
+        expect:
+        !availabilityIndex.isFree(1, today.plusDays(1), today.plusDays(5), null)
+        availabilityIndex.isFree(1, today.plusDays(1), today.plusDays(5), 1L)
+    }
+
+    def "should make pending booking unavailable for others until released"() {
+        when:
+        Booking pending = availabilityIndex.tryBook(1, today, today.plusDays(3), null)
+        then:
+        pending != null
+        availabilityIndex.tryBook(1, today.plusDays(1), today.plusDays(2), null) == null
+        when:
+        availabilityIndex.release(pending)
+        then:
+        availabilityIndex.tryBook(1, today.plusDays(1), today.plusDays(2), null) != null
+        availabilityIndex.size() == 0
+    }
+
+    def "should replace previous booking of reservation when committing edit"() {
+        given:
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(new Booking(1L, 1L, today, today.plusDays(4))))
+        when:
+        Booking pending = availabilityIndex.tryBook(2, today.plusDays(1), today.plusDays(3), 1L)
+        availabilityIndex.commit(pending, 1L)
+        then:
+        availabilityIndex.size() == 1
+        availabilityIndex.isFree(1, today, today.plusDays(4), null)
+        !availabilityIndex.isFree(2, today, today.plusDays(2), null)
+    }
+
+    def "should remove cancelled reservation and bookings of deleted room"() {
+        given:
+        Iterable<Booking> bookings = new ArrayList<>()
+        bookings.add(new Booking(1L, 1L, today, today.plusDays(4)))
+        bookings.add(new Booking(2L, 2L, today, today.plusDays(4)))
+        bookings.add(new Booking(3L, 2L, today.plusDays(6), today.plusDays(8)))
+        availabilityIndex.load(Collections.emptyList(), bookings)
+        when:
+        availabilityIndex.remove(1L)
+        availabilityIndex.removeRoom(2L)
+        then:
+        availabilityIndex.size() == 0
+        availabilityIndex.isFree(1, today, today.plusDays(4), null)
+        availabilityIndex.isFree(2, today, today.plusDays(8), null)
+    }
+
+    def "should evict bookings which ended"() {
+        given:
+        Iterable<Booking> bookings = new ArrayList<>()
+        bookings.add(new Booking(1L, 1L, today.minusDays(3), today))
+        bookings.add(new Booking(2L, 1L, today, today.plusDays(2)))
+        availabilityIndex.load(Collections.emptyList(), bookings)
+        when:
+        int evicted = availabilityIndex.evictEndedBy(today)
+        then:
+        evicted == 1
+        availabilityIndex.size() == 1
+    }
+
+    def "should find free rooms from calendar inside horizon and from schedules outside of it"() {
+        given:
+        Iterable<Booking> bookings = new ArrayList<>()
+        bookings.add(new Booking(1L, 1L, today.plusDays(2), today.plusDays(4)))
+        bookings.add(new Booking(2L, 2L, today.plusDays(3), today.plusDays(40)))
+        availabilityIndex.load([1L, 2L, 3L], bookings)
+        expect:
+        availabilityIndex.findFreeRooms(today.plusDays(startDay), today.plusDays(endDay)) as Set == freeRooms as Set
+        where:
+        startDay | endDay | freeRooms
+        0        | 2      | [1L, 2L, 3L]
+        1        | 3      | [2L, 3L]
+        3        | 4      | [3L]
+        4        | 20     | [1L, 3L]
+        25       | 35     | [1L, 3L]
+        35       | 45     | [1L, 3L]
+        40       | 45     | [1L, 2L, 3L]
+    }
+
+    def "should keep calendar in sync with committed and removed bookings"() {
+        given:
+        availabilityIndex.load([1L, 2L], Collections.emptyList())
+        when:
+        Booking pending = availabilityIndex.tryBook(1, today, today.plusDays(3), null)
+        then:
+        availabilityIndex.findFreeRooms(today, today.plusDays(3)) as Set == [1L, 2L] as Set
+        when:
+        availabilityIndex.commit(pending, 5L)
+        then:
+        availabilityIndex.findFreeRooms(today, today.plusDays(3)) == [2L]
+        when:
+        availabilityIndex.remove(5L)
+        availabilityIndex.removeRoom(2L)
+        availabilityIndex.addRoom(3L, 1L)
+        then:
+        availabilityIndex.findFreeRooms(today, today.plusDays(3)) as Set == [1L, 3L] as Set
+    }
+
+    def "should fill days entering calendar horizon when advancing it"() {
+        given:
+        availabilityIndex.load([1L], Collections.singletonList(new Booking(1L, 1L, today.plusDays(25), today.plusDays(40))))
+        when:
+        availabilityIndex.evictEndedBy(today.plusDays(10))
+        then:
+        availabilityIndex.findFreeRooms(today.plusDays(10), today.plusDays(25)) == [1L]
+        availabilityIndex.findFreeRooms(today.plusDays(35), today.plusDays(36)) == []
+    }
+
+    def "should restore index from journal snapshot and records appended after it"() {
+        given:
+        1*roomRepository.findAllIds() >> [1L, 2L]
+        1*reservationRepository.findAllBookingsEndingAfter(today) >> [
+                new Booking(1L, 1L, today, today.plusDays(2)),
+                new Booking(2L, 2L, today.plusDays(10), today.plusDays(12))]
+        RoomAvailabilityIndex journaledIndex = indexWithJournal(1024)
+        journaledIndex.loadFromDatabase()
+        journaledIndex.commit(journaledIndex.tryBook(2, today, today.plusDays(3), null), 7L)
+        journaledIndex.commit(journaledIndex.tryBook(1, today.plusDays(5), today.plusDays(6), 1L), 1L)
+        journaledIndex.remove(2L)
+        journaledIndex.addRoom(3L, 1L)
+        RoomAvailabilityIndex restoredIndex = indexWithJournal(1024)
+        when:
+        restoredIndex.loadFromDatabase()
+        then:
+        1*roomRepository.checksumRooms() >> StateChecksum.ofRooms([1L, 2L, 3L])
+        1*reservationRepository.checksumBookingsEndingAfter(today) >> StateChecksum.ofBookings([
+                new Booking(1L, 1L, today.plusDays(5), today.plusDays(6)),
+                new Booking(7L, 2L, today, today.plusDays(3))])
+        restoredIndex.size() == 2
+        restoredIndex.findFreeRooms(today, today.plusDays(2)) as Set == [1L, 3L] as Set
+        !restoredIndex.isFree(1, today.plusDays(5), today.plusDays(6), null)
+        restoredIndex.isFree(2, today.plusDays(10), today.plusDays(12), null)
+    }
+
+    def "should start new journal generation when segment is full"() {
+        given:
+        1*roomRepository.findAllIds() >> [1L]
+        1*reservationRepository.findAllBookingsEndingAfter(today) >> []
+        RoomAvailabilityIndex journaledIndex = indexWithJournal(4 + 2 * JournalRecord.SIZE)
+        journaledIndex.loadFromDatabase()
+        for (long i = 1; i <= 5; i++) {
+            journaledIndex.commit(journaledIndex.tryBook(1, today.plusDays(i), today.plusDays(i + 1), null), i)
+        }
+        RoomAvailabilityIndex restoredIndex = indexWithJournal(4 + 2 * JournalRecord.SIZE)
+        when:
+        restoredIndex.loadFromDatabase()
+        then:
+        1*roomRepository.checksumRooms() >> StateChecksum.ofRooms([1L])
+        1*reservationRepository.checksumBookingsEndingAfter(today) >> StateChecksum.ofBookings((1..5).collect {
+            new Booking(it as long, 1L, today.plusDays(it), today.plusDays(it + 1))
+        })
+        restoredIndex.size() == 5
+        temporaryFolder.root.list().findAll { it.startsWith("snapshot-") }.size() == 1
+    }
+
+    def "should load from database when journal doesn't match it"() {
+        given:
+        1*roomRepository.findAllIds() >> [1L]
+        1*reservationRepository.findAllBookingsEndingAfter(today) >> []
+        RoomAvailabilityIndex journaledIndex = indexWithJournal(1024)
+        journaledIndex.loadFromDatabase()
+        journaledIndex.commit(journaledIndex.tryBook(1, today, today.plusDays(3), null), 1L)
+        RoomAvailabilityIndex restoredIndex = indexWithJournal(1024)
+        when:
+        restoredIndex.loadFromDatabase()
+        then:
+        1*roomRepository.findAllIds() >> [1L]
+        1*roomRepository.checksumRooms() >> StateChecksum.ofRooms([1L])
+        1*reservationRepository.checksumBookingsEndingAfter(today) >> StateChecksum.ofBookings([
+                new Booking(1L, 1L, today, today.plusDays(4))])
+        1*reservationRepository.findAllBookingsEndingAfter(today) >> [new Booking(1L, 1L, today, today.plusDays(4))]
+        restoredIndex.size() == 1
+        !restoredIndex.isFree(1, today.plusDays(3), today.plusDays(4), null)
+    }
+
+    def "should load from database when journal puts room in property other than of its shard"() {
+        given:
+        ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+        2*roomRepository.findAllIds() >> [1L] >> [2L]
+        2*reservationRepository.findAllBookingsEndingAfter(today) >> []
+        RoomAvailabilityIndex journaledIndex = new RoomAvailabilityIndex(reservationRepository, roomRepository, 30,
+                new ReservationJournal(true, temporaryFolder.root.path, 1024), router)
+        journaledIndex.loadFromDatabase()
+        journaledIndex.addRoom(3L, 1L)
+        RoomAvailabilityIndex restoredIndex = new RoomAvailabilityIndex(reservationRepository, roomRepository, 30,
+                new ReservationJournal(true, temporaryFolder.root.path, 1024), router)
+        when:
+        restoredIndex.loadFromDatabase()
+        then:
+        2*roomRepository.checksumRooms() >> StateChecksum.ofRooms([1L]) >> StateChecksum.ofRooms([2L, 3L])
+        2*reservationRepository.checksumBookingsEndingAfter(today) >> StateChecksum.ofBookings([])
+        2*roomRepository.findAllIds() >> [1L] >> [2L, 3L]
+        2*reservationRepository.findAllBookingsEndingAfter(today) >> []
+        restoredIndex.findFreeRoomsBestFit(today, today.plusDays(1), 2L) == [2L, 3L]
+        cleanup:
+        router.stop()
+    }
+
+    def "should change checksum when reservations move room or swap dates"() {
+        given:
+        StateChecksum checksum = StateChecksum.ofBookings([
+                new Booking(1L, 1L, today, today.plusDays(2)),
+                new Booking(2L, 2L, today.plusDays(5), today.plusDays(7))])
+        expect:
+        checksum != StateChecksum.ofBookings([
+                new Booking(1L, 2L, today, today.plusDays(2)),
+                new Booking(2L, 1L, today.plusDays(5), today.plusDays(7))])
+        checksum != StateChecksum.ofBookings([
+                new Booking(1L, 1L, today.plusDays(5), today.plusDays(7)),
+                new Booking(2L, 2L, today, today.plusDays(2))])
+        checksum != StateChecksum.ofBookings([
+                new Booking(1L, 1L, today.plusDays(5), today.plusDays(2)),
+                new Booking(2L, 2L, today, today.plusDays(7))])
+    }
+
+    @Rule
+    TemporaryFolder temporaryFolder = new TemporaryFolder()
+
+    private RoomAvailabilityIndex indexWithJournal(int segmentSize) {
+        ReservationJournal journal = new ReservationJournal(true, temporaryFolder.root.path, segmentSize)
+        return new RoomAvailabilityIndex(reservationRepository, roomRepository, 30, journal)
+    }
+}
@@ -0,0 +1,126 @@
+package com.kisielewicz.finanteq.datasource
+
+import org.h2.jdbcx.JdbcDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DataSourceTransactionManager
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy
+import org.springframework.transaction.support.TransactionTemplate
+import spock.lang.Specification
+
+import javax.sql.DataSource
+import java.sql.SQLException
+
+class ReplicaRoutingDataSourceSpecTest extends Specification {
+
+    private final DataSource primary = database("primary")
+    private final DataSource replica = database("replica")
+    private long now = 10_000
+
+    private ReplicaRoutingDataSource routingDataSource
+    private JdbcTemplate jdbcTemplate
+    private TransactionTemplate writeTransaction
+    private TransactionTemplate readOnlyTransaction
+
+    private void routing(DataSource replicaDataSource) {
+        routingDataSource = new ReplicaRoutingDataSource(primary, replicaDataSource, "node", 30_000, 5_000, 100, { now })
+        DataSource dataSource = new LazyConnectionDataSourceProxy(routingDataSource)
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource)
+        jdbcTemplate = new JdbcTemplate(dataSource)
+        writeTransaction = new TransactionTemplate(transactionManager)
+        readOnlyTransaction = new TransactionTemplate(transactionManager)
+        readOnlyTransaction.setReadOnly(true)
+    }
+
+    private String readName(TransactionTemplate transaction) {
+        transaction.execute { jdbcTemplate.queryForObject("select name from node", String) }
+    }
+
+    def "should send read-only transactions to replica and other ones to primary"() {
+        given:
+        routing(replica)
+        heartbeatReplicated()
+        expect:
+        readName(readOnlyTransaction) == "replica"
+        readName(writeTransaction) == "primary"
+        jdbcTemplate.queryForObject("select name from node", String) == "primary"
+    }
+
+    def "should read from primary until heartbeat tells replica doesn't lag too far"() {
+        given:
+        routing(replica)
+        expect:
+        readName(readOnlyTransaction) == "primary"
+        when:
+        heartbeatReplicated()
+        then:
+        readName(readOnlyTransaction) == "replica"
+        routingDataSource.getLagMillis() == 0
+        when:
+        now += 5_001
+        routingDataSource.heartbeat()
+        then:
+        readName(readOnlyTransaction) == "primary"
+    }
+
+    def "should read from primary for client whose last write replica may not have yet"() {
+        given:
+        routing(replica)
+        heartbeatReplicated()
+        when:
+        now += 1_000
+        ReplicaContext.setLastWrite(now)
+        String beforeCaughtUp = readName(readOnlyTransaction)
+        ReplicaContext.setLastWrite(null)
+        String otherClient = readName(readOnlyTransaction)
+        then:
+        beforeCaughtUp == "primary"
+        otherClient == "replica"
+        when:
+        long lastWrite = now
+        now += 100
+        heartbeatReplicated()
+        ReplicaContext.setLastWrite(lastWrite)
+        String afterCaughtUp = readName(readOnlyTransaction)
+        then:
+        afterCaughtUp == "replica"
+        cleanup:
+        ReplicaContext.setLastWrite(null)
+    }
+
+    def "should fall back to primary while replica is unavailable"() {
+        given:
+        DataSource unavailable = Mock(DataSource)
+        routing(unavailable)
+        when:
+        heartbeatReplicated()
+        String first = readName(readOnlyTransaction)
+        String second = readName(readOnlyTransaction)
+        then:
+        2*unavailable.getConnection() >> replica.getConnection() >> { throw new SQLException("Connection refused") }
+        first == "primary"
+        second == "primary"
+        when:
+        now += 30_000
+        heartbeatReplicated()
+        String retried = readName(readOnlyTransaction)
+        then:
+        2*unavailable.getConnection() >> { replica.getConnection() }
+        retried == "replica"
+    }
+
+    // runs the heartbeat with its beat already on the replica, as if replication didn't lag at all
+    private void heartbeatReplicated() {
+        new JdbcTemplate(replica).update("merge into replica_heartbeat key (node) values ('node', ?)", now)
+        routingDataSource.heartbeat()
+    }
+
+    private static DataSource database(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource()
+        dataSource.setURL("jdbc:h2:mem:" + name + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource)
+        jdbcTemplate.execute("create table node (name varchar(20))")
+        jdbcTemplate.update("insert into node values (?)", name)
+        jdbcTemplate.execute("create table replica_heartbeat (node varchar(255) primary key, beat_at bigint not null)")
+        dataSource
+    }
+}
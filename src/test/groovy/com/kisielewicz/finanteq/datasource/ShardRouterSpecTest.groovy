@@ -0,0 +1,83 @@
+package com.kisielewicz.finanteq.datasource
+
+import spock.lang.Specification
+
+class ShardRouterSpecTest extends Specification {
+
+    private final ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+
+    def cleanup() {
+        router.stop()
+        ShardContext.setProperty(null)
+    }
+
+    def "should run action once on every shard for its property"() {
+        when:
+        List<Long> properties = router.fanOut { ShardContext.currentProperty() }
+        then:
+        properties == [1L, 2L]
+        ShardContext.currentProperty() == null
+    }
+
+    def "should merge reads of every shard in order and limit them"() {
+        given:
+        Map<Long, List<Integer>> rows = [1L: [1, 4, 5], 2L: [2, 3, 6]]
+        expect:
+        router.readMerged({ rows[ShardContext.currentProperty()] }, Comparator.naturalOrder(), 4) == [1, 2, 3, 4]
+    }
+
+    def "should read only shard of property the thread works for"() {
+        given:
+        Map<Long, List<Integer>> rows = [1L: [1, 4, 5], 2L: [2, 3, 6]]
+        ShardContext.setProperty(2L)
+        expect:
+        router.readMerged({ rows[ShardContext.currentProperty()] }, Comparator.naturalOrder(), 4) == [2, 3, 6]
+    }
+
+    def "should rethrow failure of action run on a shard"() {
+        when:
+        router.fanOut {
+            if (ShardContext.currentProperty() == 2L) {
+                throw new IllegalArgumentException("shard down")
+            }
+            "ok"
+        }
+        then:
+        IllegalArgumentException e = thrown()
+        e.getMessage() == "shard down"
+    }
+
+    def "should not route unknown property"() {
+        expect:
+        router.shardOf(2L) == "b"
+        router.shardOf(null) == "a"
+        !router.hasProperty(4L)
+        when:
+        router.shardOf(4L)
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "should require shard of default property"() {
+        when:
+        new ShardRouter([2L: "b"])
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "should not let shard hold more than one property"() {
+        when:
+        new ShardRouter([1L: "a", 2L: "b", 3L: "a"])
+        then:
+        IllegalStateException e = thrown()
+        e.getMessage().startsWith("Shard: a")
+    }
+
+    def "should run action in place when there is a single shard"() {
+        given:
+        ShardRouter single = ShardRouter.single()
+        expect:
+        !single.isSharded()
+        single.fanOut { Thread.currentThread() } == [Thread.currentThread()]
+    }
+}
@@ -0,0 +1,53 @@
+package com.kisielewicz.finanteq.datasource
+
+import org.h2.jdbcx.JdbcDataSource
+import org.springframework.jdbc.core.JdbcTemplate
+import spock.lang.Specification
+
+import javax.sql.DataSource
+
+class ShardRoutingDataSourceSpecTest extends Specification {
+
+    private final ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(
+            new ShardRoutingDataSource(router, [a: database("a"), b: database("b")]))
+
+    def cleanup() {
+        router.stop()
+        ShardContext.setProperty(null)
+    }
+
+    private String readName() {
+        jdbcTemplate.queryForObject("select name from node", String)
+    }
+
+    def "should connect to shard of current property"() {
+        expect:
+        readName() == "a"
+        ShardContext.callForProperty(2L, { readName() }) == "b"
+        ShardContext.callForProperty(1L, { readName() }) == "a"
+    }
+
+    def "should read every shard when fanning out"() {
+        expect:
+        router.fanOut { readName() } == ["a", "b"]
+    }
+
+    def "should fail to connect for unknown property"() {
+        given:
+        ShardContext.setProperty(3L)
+        when:
+        readName()
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private static DataSource database(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource()
+        dataSource.setURL("jdbc:h2:mem:" + name + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1")
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource)
+        jdbcTemplate.execute("create table node (name varchar(20))")
+        jdbcTemplate.update("insert into node values (?)", name)
+        dataSource
+    }
+}
@@ -0,0 +1,127 @@
+package com.kisielewicz.finanteq.helpers
+
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.mock.web.MockAsyncContext
+import org.springframework.mock.web.MockFilterChain
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import spock.lang.Specification
+
+import javax.servlet.FilterChain
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+
+class AdmissionFilterSpecTest extends Specification {
+
+    private final CounterService counterService = Mock(CounterService)
+    private final ConcurrencyLimit concurrencyLimit = new ConcurrencyLimit(2, 1, 10, 2.0)
+    private long now = 0
+
+    private final AdmissionFilter admissionFilter = new AdmissionFilter(counterService, true, "X-Forwarded-For",
+            new ClientRateLimiter(1, 2, 100, { now }), concurrencyLimit, { now })
+
+    def "should reject writes of client above its rate with retry after"() {
+        when:
+        List<MockHttpServletResponse> responses = (1..3).collect { filter(write("10.0.0.1")) }
+        then:
+        responses*.status == [200, 200, 429]
+        responses[2].getHeader("Retry-After") == "1"
+        1*counterService.increment(AdmissionFilter.REJECTED_RATE_COUNTER)
+        filter(write("10.0.0.2")).status == 200
+        filter(write("10.0.0.2, 192.168.0.1")).status == 200
+        filter(write("10.0.0.2")).status == 429
+    }
+
+    def "should reject writes above concurrency limit until async ones complete"() {
+        given:
+        MockHttpServletRequest first = write("10.0.0.1")
+        MockHttpServletRequest second = write("10.0.0.2")
+        when:
+        filter(first, new AsyncChain())
+        filter(second, new AsyncChain())
+        MockHttpServletResponse rejected = filter(write("10.0.0.3"))
+        then:
+        rejected.status == 429
+        rejected.getHeader("Retry-After") == "1"
+        1*counterService.increment(AdmissionFilter.REJECTED_CONCURRENCY_COUNTER)
+        concurrencyLimit.getInFlight() == 2
+        when:
+        (first.getAsyncContext() as MockAsyncContext).complete()
+        then:
+        concurrencyLimit.getInFlight() == 1
+        filter(write("10.0.0.3")).status == 200
+    }
+
+    def "should release place of write which failed"() {
+        when:
+        filter(write("10.0.0.1"), { req, res -> throw new IllegalStateException("failed") } as FilterChain)
+        then:
+        thrown(IllegalStateException)
+        concurrencyLimit.getInFlight() == 0
+    }
+
+    def "should not limit reads or other paths"() {
+        given:
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path)
+        request.setServletPath(path)
+        expect:
+        (1..5).every { filter(request).status == 200 }
+        where:
+        method | path
+        "GET"  | "/reservations/all"
+        "POST" | "/health"
+    }
+
+    def "should only rate limit writes which don't work on database"() {
+        given:
+        filter(write("10.0.0.1"), new AsyncChain())
+        filter(write("10.0.0.2"), new AsyncChain())
+        MockHttpServletRequest hold = write("10.0.0.3")
+        hold.setServletPath("/reservations/hold")
+        expect:
+        filter(hold).status == 200
+        concurrencyLimit.getInFlight() == 2
+    }
+
+    def "should key database writes by endpoint without ids"() {
+        expect:
+        AdmissionFilter.databaseEndpointOf(path) == endpoint
+        where:
+        path                                                       | endpoint
+        "/reservations/make"                                       | "/reservations/make"
+        "/reservations/cancel/15"                                  | "/reservations/cancel/{id}"
+        "/reservations/hold/0b8a1c2e-3f4d-4e5f-8a9b-0c1d2e3f4a5b/confirm" | "/reservations/hold/{id}/confirm"
+        "/reservations/hold/0b8a1c2e-3f4d-4e5f-8a9b-0c1d2e3f4a5b/release" | null
+        "/reservations/import"                                     | null
+        "/rooms/7/makeAvailable"                                   | "/rooms/{id}/makeAvailable"
+    }
+
+    def "should require header telling clients apart when enabled"() {
+        when:
+        new AdmissionFilter(counterService, true, "", new ClientRateLimiter(1, 2, 100, { now }), concurrencyLimit, { now })
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private static MockHttpServletRequest write(String forwardedFor) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/reservations/make")
+        request.setServletPath("/reservations/make")
+        request.addHeader("X-Forwarded-For", forwardedFor)
+        request.setAsyncSupported(true)
+        request
+    }
+
+    private MockHttpServletResponse filter(MockHttpServletRequest request, FilterChain chain = new MockFilterChain()) {
+        MockHttpServletResponse response = new MockHttpServletResponse()
+        admissionFilter.doFilter(request, response, chain)
+        response
+    }
+
+    private static class AsyncChain implements FilterChain {
+
+        @Override
+        void doFilter(ServletRequest request, ServletResponse response) {
+            request.startAsync(request, response)
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.kisielewicz.finanteq.helpers
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ClientRateLimiterSpecTest extends Specification {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1)
+
+    private long now = 1_000 * SECOND
+    private final ClientRateLimiter rateLimiter = new ClientRateLimiter(2, 3, 100, { now })
+
+    def "should let burst through and then wait for refilled tokens"() {
+        expect:
+        (1..3).collect { rateLimiter.tryAcquire("client") } == [0L, 0L, 0L]
+        rateLimiter.tryAcquire("client") == SECOND / 2
+        when:
+        now += SECOND / 4
+        then:
+        rateLimiter.tryAcquire("client") == SECOND / 4
+        when:
+        now += SECOND / 4
+        then:
+        rateLimiter.tryAcquire("client") == 0L
+        rateLimiter.tryAcquire("client") == SECOND / 2
+    }
+
+    def "should not collect tokens above burst while client is idle"() {
+        given:
+        rateLimiter.tryAcquire("client")
+        now += 60 * SECOND
+        expect:
+        (1..4).collect { rateLimiter.tryAcquire("client") } == [0L, 0L, 0L, SECOND / 2]
+    }
+
+    def "should keep separate bucket for every client"() {
+        given:
+        (1..3).each { rateLimiter.tryAcquire("first") }
+        expect:
+        rateLimiter.tryAcquire("first") > 0
+        rateLimiter.tryAcquire("second") == 0L
+        rateLimiter.size() == 2
+    }
+
+    def "should hand out exactly burst tokens to concurrent requests"() {
+        given:
+        ClientRateLimiter limiter = new ClientRateLimiter(1, 500, 100, { now })
+        def executor = Executors.newFixedThreadPool(8)
+        CountDownLatch start = new CountDownLatch(1)
+        AtomicInteger acquired = new AtomicInteger()
+        when:
+        def futures = (1..8).collect {
+            executor.submit {
+                start.await()
+                200.times { if (limiter.tryAcquire("client") == 0L) acquired.incrementAndGet() }
+            }
+        }
+        start.countDown()
+        futures*.get()
+        then:
+        acquired.get() == 500
+        cleanup:
+        executor.shutdown()
+    }
+}
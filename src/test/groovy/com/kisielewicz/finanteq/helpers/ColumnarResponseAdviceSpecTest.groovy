@@ -0,0 +1,58 @@
+package com.kisielewicz.finanteq.helpers
+
+import com.kisielewicz.finanteq.dto.ReservationColumnsDTO
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO
+import com.kisielewicz.finanteq.web.ReservationController
+import org.springframework.core.MethodParameter
+import org.springframework.http.MediaType
+import org.springframework.http.converter.StringHttpMessageConverter
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter
+import org.springframework.http.server.ServerHttpRequest
+import org.springframework.http.server.ServletServerHttpResponse
+import org.springframework.mock.web.MockHttpServletResponse
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+class ColumnarResponseAdviceSpecTest extends Specification {
+
+    private final ColumnarResponseAdvice advice = new ColumnarResponseAdvice()
+    private final ServletServerHttpResponse response = new ServletServerHttpResponse(new MockHttpServletResponse())
+
+    private final List<ReservationSummaryDTO> reservations = [
+            new ReservationSummaryDTO(3L, 1L, LocalDate.ofEpochDay(100), LocalDate.ofEpochDay(102)),
+            new ReservationSummaryDTO(5L, 2L, LocalDate.ofEpochDay(101), LocalDate.ofEpochDay(104))]
+
+    private static MethodParameter returnType(String method) {
+        new MethodParameter(ReservationController.methods.find { it.name == method }, -1)
+    }
+
+    def "should apply only to reservation lists written as json"() {
+        expect:
+        advice.supports(returnType("getAllReservations"), MappingJackson2HttpMessageConverter)
+        !advice.supports(returnType("getAllReservations"), StringHttpMessageConverter)
+        !advice.supports(returnType("getReservationDetails"), MappingJackson2HttpMessageConverter)
+    }
+
+    def "should write reservations as columns when client accepts them"() {
+        when:
+        Object body = advice.beforeBodyWrite(reservations, returnType("getAllReservations"),
+                ColumnarResponseAdvice.COLUMNAR_JSON, MappingJackson2HttpMessageConverter, Mock(ServerHttpRequest), response)
+        then:
+        body instanceof ReservationColumnsDTO
+        body.ids == [3L, 5L] as long[]
+        body.roomIds == [1L, 2L] as long[]
+        body.startDays == [100, 101] as int[]
+        body.endDays == [102, 104] as int[]
+        response.getHeaders().getVary() == ["Accept"]
+    }
+
+    def "should leave reservations as objects for plain json"() {
+        when:
+        Object body = advice.beforeBodyWrite(reservations, returnType("getAllReservations"),
+                MediaType.APPLICATION_JSON_UTF8, MappingJackson2HttpMessageConverter, Mock(ServerHttpRequest), response)
+        then:
+        body.is(reservations)
+        response.getHeaders().getVary() == ["Accept"]
+    }
+}
@@ -0,0 +1,87 @@
+package com.kisielewicz.finanteq.helpers
+
+import spock.lang.Specification
+
+class ConcurrencyLimitSpecTest extends Specification {
+
+    private static final long FAST = 10_000_000
+    private static final long SLOW = 100_000_000
+
+    private final ConcurrencyLimit concurrencyLimit = new ConcurrencyLimit(4, 2, 10, 2.0)
+
+    def "should admit writes up to limit"() {
+        expect:
+        (1..5).collect { concurrencyLimit.tryAcquire() } == [true, true, true, true, false]
+        concurrencyLimit.getInFlight() == 4
+        when:
+        concurrencyLimit.release("make", FAST)
+        then:
+        concurrencyLimit.getInFlight() == 3
+        concurrencyLimit.tryAcquire()
+    }
+
+    def "should grow limit while it's used and writes stay fast"() {
+        when:
+        50.times {
+            while (concurrencyLimit.tryAcquire()) {
+            }
+            concurrencyLimit.release("make", FAST)
+        }
+        then:
+        concurrencyLimit.getLimit() == 10
+    }
+
+    def "should not grow limit while most of it is unused"() {
+        when:
+        20.times {
+            concurrencyLimit.tryAcquire()
+            concurrencyLimit.release("make", FAST)
+        }
+        then:
+        concurrencyLimit.getLimit() == 4
+    }
+
+    def "should shrink limit down to minimum when writes get slower than tolerated"() {
+        given:
+        concurrencyLimit.tryAcquire()
+        concurrencyLimit.release("make", FAST)
+        when:
+        concurrencyLimit.tryAcquire()
+        concurrencyLimit.release("make", SLOW)
+        then:
+        concurrencyLimit.getLimit() == 3
+        when:
+        20.times {
+            concurrencyLimit.tryAcquire()
+            concurrencyLimit.release("make", SLOW)
+        }
+        then:
+        concurrencyLimit.getLimit() == 2
+    }
+
+    def "should compare every endpoint with its own fastest writes"() {
+        given:
+        ConcurrencyLimit limit = new ConcurrencyLimit(20, 2, 100, 2.0)
+        when:
+        1000.times { int i ->
+            while (limit.tryAcquire()) {
+            }
+            limit.release(i % 5 == 0 ? "hold/confirm" : "make", i % 5 == 0 ? 300_000 : 15_000_000)
+        }
+        then:
+        limit.getLimit() == 100
+    }
+
+    def "should not adjust limit to writes which failed"() {
+        when:
+        concurrencyLimit.tryAcquire()
+        concurrencyLimit.release("make", FAST)
+        20.times {
+            concurrencyLimit.tryAcquire()
+            concurrencyLimit.release()
+        }
+        then:
+        concurrencyLimit.getLimit() == 4
+        concurrencyLimit.getInFlight() == 0
+    }
+}
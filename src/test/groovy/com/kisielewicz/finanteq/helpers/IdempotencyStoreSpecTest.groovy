@@ -0,0 +1,170 @@
+package com.kisielewicz.finanteq.helpers
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.kisielewicz.finanteq.datasource.ShardContext
+import com.kisielewicz.finanteq.datasource.ShardRouter
+import com.kisielewicz.finanteq.domain.IdempotencyRecord
+import com.kisielewicz.finanteq.domain.Reservation
+import com.kisielewicz.finanteq.dto.ReservationDTO
+import com.kisielewicz.finanteq.exceptions.ConflictException
+import com.kisielewicz.finanteq.repository.IdempotencyRecordRepository
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.dao.PessimisticLockingFailureException
+import spock.lang.Specification
+
+import java.time.LocalDate
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.RejectedExecutionException
+
+class IdempotencyStoreSpecTest extends Specification {
+
+    private final IdempotencyRecordRepository recordRepository = Mock(IdempotencyRecordRepository)
+    private final CounterService counterService = Mock(CounterService)
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+
+    private final IdempotencyStore idempotencyStore = store(false)
+
+    private final ReservationDTO reservationDTO = reservationDTO(1L)
+
+    def "should run write once and replay its result for repeated key"() {
+        given:
+        CompletableFuture<Reservation> write = new CompletableFuture<>()
+        Reservation reservation = new Reservation()
+        int writes = 0
+        when:
+        CompletableFuture<Reservation> first = idempotencyStore.execute("make", "key", reservationDTO, Reservation, { writes++; write })
+        CompletableFuture<Reservation> inFlight = idempotencyStore.execute("make", "key", reservationDTO(1L), Reservation, { writes++; write })
+        write.complete(reservation)
+        CompletableFuture<Reservation> completed = idempotencyStore.execute("make", "key", reservationDTO, Reservation, { writes++; write })
+        then:
+        writes == 1
+        first.get() == reservation
+        inFlight.get() == reservation
+        completed.get() == reservation
+        2*counterService.increment(IdempotencyStore.REPLAYED_COUNTER)
+    }
+
+    def "should keep keys of different operations apart"() {
+        given:
+        int writes = 0
+        when:
+        idempotencyStore.execute("make", "key", reservationDTO, Reservation, { writes++; CompletableFuture.completedFuture(new Reservation()) })
+        idempotencyStore.execute("edit", "key", reservationDTO, Reservation, { writes++; CompletableFuture.completedFuture(new Reservation()) })
+        then:
+        writes == 2
+    }
+
+    def "should reject key reused for different request"() {
+        given:
+        idempotencyStore.execute("make", "key", reservationDTO, Reservation, { CompletableFuture.completedFuture(new Reservation()) })
+        when:
+        idempotencyStore.execute("make", "key", reservationDTO(2L), Reservation, { CompletableFuture.completedFuture(new Reservation()) })
+        then:
+        ConflictException e = thrown()
+        e.getMessage() == "Idempotency key was already used for a different request."
+    }
+
+    def "should replay conflict of original request"() {
+        given:
+        CompletableFuture<Reservation> failed = new CompletableFuture<>()
+        failed.completeExceptionally(new ConflictException("Reservation for this room is already created for desired date range."))
+        idempotencyStore.execute("make", "key", reservationDTO, Reservation, { failed })
+        when:
+        idempotencyStore.execute("make", "key", reservationDTO, Reservation, { throw new IllegalStateException("run again") }).get()
+        then:
+        ExecutionException e = thrown()
+        e.getCause() instanceof ConflictException
+    }
+
+    def "should run write again after failure which retry can fix"() {
+        given:
+        CompletableFuture<Reservation> failed = new CompletableFuture<>()
+        failed.completeExceptionally(new PessimisticLockingFailureException("lock timeout"))
+        idempotencyStore.execute("make", "key", reservationDTO, Reservation, { failed })
+        try {
+            idempotencyStore.execute("make", "other", reservationDTO, Reservation, { throw new RejectedExecutionException("full") })
+        } catch (RejectedExecutionException ignored) {
+        }
+        Reservation reservation = new Reservation()
+        expect:
+        idempotencyStore.execute("make", "key", reservationDTO, Reservation, { CompletableFuture.completedFuture(reservation) }).get() == reservation
+        idempotencyStore.execute("make", "other", reservationDTO, Reservation, { CompletableFuture.completedFuture(reservation) }).get() == reservation
+    }
+
+    def "should persist result and replay it from database when key isn't in memory"() {
+        given:
+        IdempotencyRecord saved = null
+        Reservation reservation = new Reservation()
+        reservation.setId(5L)
+        reservation.setStartDate(LocalDate.of(2030, 1, 1))
+        when:
+        store(true).execute("make", "key", reservationDTO, Reservation, { CompletableFuture.completedFuture(reservation) })
+        then:
+        1*recordRepository.findOne("make:key") >> null
+        1*recordRepository.save(_) >> { IdempotencyRecord record -> saved = record }
+        saved.getStatus() == 200
+        when:
+        Reservation replayed = store(true).execute("make", "key", reservationDTO, Reservation, { throw new IllegalStateException("run again") }).get()
+        then:
+        1*recordRepository.findOne("make:key") >> saved
+        replayed == reservation
+    }
+
+    def "should persist key on shard of property of request even when write completes on other thread"() {
+        given:
+        ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+        IdempotencyStore shardedStore = new IdempotencyStore(recordRepository, objectMapper, counterService, router, 100, 3600, true)
+        IdempotencyStore restartedStore = new IdempotencyStore(recordRepository, objectMapper, counterService, router, 100, 3600, true)
+        Map<Long, IdempotencyRecord> savedByProperty = [:]
+        recordRepository.save(_) >> { IdempotencyRecord record -> savedByProperty[ShardContext.currentProperty()] = record }
+        recordRepository.findOne("make:key") >> { savedByProperty[ShardContext.currentProperty()] }
+        CompletableFuture<Reservation> write = new CompletableFuture<>()
+        Reservation reservation = new Reservation()
+        reservation.setId(5L)
+        when:
+        ShardContext.callForProperty(2L, { shardedStore.execute("make", "key", reservationDTO, Reservation, { write }) })
+        Thread completing = new Thread({ write.complete(reservation) })
+        completing.start()
+        completing.join()
+        then:
+        savedByProperty.keySet() == [2L] as Set
+        when:
+        Reservation replayed = ShardContext.callForProperty(2L, {
+            restartedStore.execute("make", "key", reservationDTO, Reservation, { throw new IllegalStateException("run again") })
+        }).get()
+        then:
+        replayed.id == 5L
+        cleanup:
+        router.stop()
+    }
+
+    def "should not replay expired persisted result"() {
+        given:
+        IdempotencyRecord record = new IdempotencyRecord()
+        record.setKey("make:key")
+        record.setRequestHash(reservationDTO.hashCode())
+        record.setStatus(409)
+        record.setBody("conflict")
+        record.setCreatedAt(System.currentTimeMillis() - 3_600_001)
+        Reservation reservation = new Reservation()
+        when:
+        Reservation result = store(true).execute("make", "key", reservationDTO, Reservation, { CompletableFuture.completedFuture(reservation) }).get()
+        then:
+        1*recordRepository.findOne("make:key") >> record
+        result == reservation
+    }
+
+    private IdempotencyStore store(boolean persistent) {
+        return new IdempotencyStore(recordRepository, objectMapper, counterService, ShardRouter.single(), 100, 3600, persistent)
+    }
+
+    private static ReservationDTO reservationDTO(Long roomId) {
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setRoomId(roomId)
+        reservationDTO.setStartDate(LocalDate.of(2030, 1, 1))
+        reservationDTO.setEndDate(LocalDate.of(2030, 1, 3))
+        return reservationDTO
+    }
+}
@@ -0,0 +1,128 @@
+package com.kisielewicz.finanteq.helpers
+
+import com.kisielewicz.finanteq.datasource.ShardRouter
+import com.kisielewicz.finanteq.domain.JobPartition
+import com.kisielewicz.finanteq.repository.JobPartitionRepository
+import org.springframework.dao.DataIntegrityViolationException
+import org.springframework.transaction.PlatformTransactionManager
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+class JobPartitionsSpecTest extends Specification {
+
+    private static final String JOB = "job"
+    private static final LocalDate DATE = LocalDate.of(2030, 1, 1)
+
+    private final JobPartitionRepository partitionRepository = Mock(JobPartitionRepository)
+    private final PlatformTransactionManager transactionManager = Mock(PlatformTransactionManager)
+    private long now = 10_000
+
+    private final JobPartitions jobPartitions = new JobPartitions(partitionRepository, transactionManager,
+            ShardRouter.single(), "node", 100, 1_000, 7, { now })
+
+    private final List<String> chunks = []
+
+    def setup() {
+        jobPartitions.register(JOB, 40, { date, fromId, toId ->
+            String chunk = "$fromId-$toId"
+            chunks << chunk
+            chunk
+        })
+    }
+
+    def "should split job into partitions and process them in chunks committed with checkpoints"() {
+        when:
+        List<String> results = jobPartitions.run(JOB, DATE, 150L)
+        then:
+        1*partitionRepository.findByJobNameAndRunDateOrderByFromId(JOB, DATE) >> []
+        1*partitionRepository.save({ it*.fromId == [1L, 101L] && it*.toId == [100L, 150L] && it*.checkpointId == [0L, 100L] }) >> { args ->
+            args[0].eachWithIndex { JobPartition partition, int i -> partition.setId(i + 1L) }
+            args[0]
+        }
+        1*partitionRepository.claim(1L, "node", 10_000, 11_000) >> 1
+        1*partitionRepository.claim(2L, "node", 10_000, 11_000) >> 1
+        1*partitionRepository.findCheckpoint(1L) >> 0L
+        1*partitionRepository.findCheckpoint(2L) >> 100L
+        1*partitionRepository.checkpoint(1L, "node", 40L, false, 11_000) >> 1
+        1*partitionRepository.checkpoint(1L, "node", 80L, false, 11_000) >> 1
+        1*partitionRepository.checkpoint(1L, "node", 100L, true, 11_000) >> 1
+        1*partitionRepository.checkpoint(2L, "node", 140L, false, 11_000) >> 1
+        1*partitionRepository.checkpoint(2L, "node", 150L, true, 11_000) >> 1
+        6*transactionManager.getTransaction(_)
+        6*transactionManager.commit(_)
+        results.toSet() == ["1-40", "41-80", "81-100", "101-140", "141-150"] as Set
+    }
+
+    def "should skip partitions which are done or leased by other node"() {
+        when:
+        List<String> results = jobPartitions.run(JOB, DATE, 300L)
+        then:
+        1*partitionRepository.findByJobNameAndRunDateOrderByFromId(JOB, DATE) >>
+                [partition(1L, 1L, 100L, 100L, true), partition(2L, 101L, 200L, 100L, false), partition(3L, 201L, 300L, 200L, false)]
+        0*partitionRepository.claim(1L, *_)
+        1*partitionRepository.claim(2L, *_) >> 0
+        1*partitionRepository.claim(3L, *_) >> 1
+        1*partitionRepository.findCheckpoint(3L) >> 280L
+        1*partitionRepository.checkpoint(3L, "node", 300L, true, _) >> 1
+        0*partitionRepository.save(_)
+        results == ["281-300"]
+    }
+
+    def "should use partitions of node which split job first"() {
+        when:
+        List<String> results = jobPartitions.run(JOB, DATE, 100L)
+        then:
+        2*partitionRepository.findByJobNameAndRunDateOrderByFromId(JOB, DATE) >> [] >> [partition(1L, 1L, 100L, 100L, true)]
+        1*partitionRepository.save(_) >> { throw new DataIntegrityViolationException("duplicate") }
+        0*partitionRepository.claim(*_)
+        results == []
+    }
+
+    def "should roll back chunk and leave partition when lease was lost"() {
+        when:
+        List<String> results = jobPartitions.run(JOB, DATE, 100L)
+        then:
+        1*partitionRepository.findByJobNameAndRunDateOrderByFromId(JOB, DATE) >> [partition(1L, 1L, 100L, 0L, false)]
+        1*partitionRepository.claim(1L, *_) >> 1
+        1*partitionRepository.findCheckpoint(1L) >> 0L
+        1*partitionRepository.checkpoint(1L, "node", 40L, false, _) >> 0
+        1*transactionManager.rollback(_)
+        0*transactionManager.commit(_)
+        chunks == ["1-40"]
+        results == []
+    }
+
+    def "should resume abandoned partitions of registered jobs from checkpoint"() {
+        when:
+        jobPartitions.resumeAbandoned()
+        then:
+        1*partitionRepository.findAbandonedOfNewestRuns(LocalDate.now().minusDays(1), 10_000) >>
+                [partition(1L, 1L, 100L, 80L, false), partition(2L, 1L, 100L, 0L, false, "unknown")]
+        1*partitionRepository.claim(1L, "node", *_) >> 1
+        0*partitionRepository.claim(2L, *_)
+        1*partitionRepository.findCheckpoint(1L) >> 80L
+        1*partitionRepository.checkpoint(1L, "node", 100L, true, _) >> 1
+        1*partitionRepository.deleteRunBefore(LocalDate.now().minusDays(7))
+        chunks == ["81-100"]
+    }
+
+    def "should not run job which wasn't registered"() {
+        when:
+        jobPartitions.run("other", DATE, 100L)
+        then:
+        thrown(IllegalStateException)
+    }
+
+    private static JobPartition partition(long id, long fromId, long toId, long checkpointId, boolean done, String jobName = JOB) {
+        JobPartition partition = new JobPartition()
+        partition.setId(id)
+        partition.setJobName(jobName)
+        partition.setRunDate(DATE)
+        partition.setFromId(fromId)
+        partition.setToId(toId)
+        partition.setCheckpointId(checkpointId)
+        partition.setDone(done)
+        partition
+    }
+}
@@ -0,0 +1,163 @@
+package com.kisielewicz.finanteq.helpers
+
+import org.springframework.boot.actuate.metrics.GaugeService
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import javax.mail.Address
+import javax.mail.Message
+import javax.mail.MessagingException
+import javax.mail.Transport
+import javax.mail.internet.InternetAddress
+import java.util.concurrent.CopyOnWriteArrayList
+
+class MailDispatcherSpecTest extends Specification {
+
+    private final Mailer mailer = Mock(Mailer)
+    private final GaugeService gaugeService = Mock(GaugeService)
+    private final Transport transport = Mock(Transport)
+    private final List<String> delivered = new CopyOnWriteArrayList<>()
+
+    private final PollingConditions conditions = new PollingConditions(timeout: 5)
+
+    private MailDispatcher mailDispatcher
+
+    def setup() {
+        mailer.compose(_) >> { String to ->
+            Message message = Mock(Message)
+            message.getAllRecipients() >> ([new InternetAddress(to)] as Address[])
+            message
+        }
+    }
+
+    def cleanup() {
+        mailDispatcher.stop()
+    }
+
+    def "should send all queued mails reusing SMTP connection"() {
+        given:
+        int connections = 0
+        mailer.connect() >> {
+            connections++
+            transport
+        }
+        transport.isConnected() >> true
+        transport.sendMessage(_, _) >> { Message message, Address[] recipients -> delivered.add(recipients[0].toString()) }
+        mailDispatcher = new MailDispatcher(mailer, gaugeService, 100, 1, 50, 3, 10, 1000)
+        when:
+        for (int i = 0; i < 20; i++) {
+            mailDispatcher.dispatch("guest" + i + "@test.com")
+        }
+        mailDispatcher.start()
+        then:
+        conditions.eventually {
+            assert mailDispatcher.getSentCount() == 20
+        }
+        delivered.size() == 20
+        delivered.contains("guest19@test.com")
+        connections == 1
+    }
+
+    def "should retry failed mails with backoff"() {
+        given:
+        int failures = 0
+        mailer.connect() >> transport
+        transport.isConnected() >> true
+        transport.sendMessage(_, _) >> { Message message, Address[] recipients ->
+            if (failures++ < 2) {
+                throw new MessagingException("Connection reset")
+            }
+            delivered.add(recipients[0].toString())
+        }
+        mailDispatcher = new MailDispatcher(mailer, gaugeService, 100, 1, 50, 3, 10, 1000)
+        when:
+        mailDispatcher.start()
+        mailDispatcher.dispatch("guest@test.com")
+        then:
+        conditions.eventually {
+            assert mailDispatcher.getSentCount() == 1
+        }
+        mailDispatcher.getRetriedCount() == 2
+        mailDispatcher.getFailedCount() == 0
+        delivered == ["guest@test.com"]
+    }
+
+    def "should give up on mail after max attempts"() {
+        given:
+        mailer.connect() >> { throw new MessagingException("Unknown host") }
+        mailDispatcher = new MailDispatcher(mailer, gaugeService, 100, 1, 50, 2, 10, 1000)
+        when:
+        mailDispatcher.start()
+        mailDispatcher.dispatch("guest@test.com")
+        then:
+        conditions.eventually {
+            assert mailDispatcher.getFailedCount() == 1
+        }
+        mailDispatcher.getRetriedCount() == 1
+        mailDispatcher.getSentCount() == 0
+    }
+
+    def "should retry mail whose composing fails with runtime exception and keep worker alive"() {
+        given:
+        int failures = 0
+        Mailer failingMailer = Mock(Mailer)
+        failingMailer.connect() >> transport
+        failingMailer.compose(_) >> { String to ->
+            if (failures++ < 1) {
+                throw new IllegalStateException("Template missing")
+            }
+            Message message = Mock(Message)
+            message.getAllRecipients() >> ([new InternetAddress(to)] as Address[])
+            message
+        }
+        transport.isConnected() >> true
+        transport.sendMessage(_, _) >> { Message message, Address[] recipients -> delivered.add(recipients[0].toString()) }
+        mailDispatcher = new MailDispatcher(failingMailer, gaugeService, 100, 1, 50, 3, 10, 1000)
+        when:
+        mailDispatcher.start()
+        mailDispatcher.dispatch("guest@test.com")
+        mailDispatcher.dispatch("other@test.com")
+        then:
+        conditions.eventually {
+            assert mailDispatcher.getSentCount() == 2
+        }
+        mailDispatcher.getRetriedCount() == 1
+        delivered.toSet() == ["guest@test.com", "other@test.com"] as Set
+    }
+
+    def "should send queued mails before stopping"() {
+        given:
+        mailer.connect() >> transport
+        transport.isConnected() >> true
+        transport.sendMessage(_, _) >> { Message message, Address[] recipients -> delivered.add(recipients[0].toString()) }
+        mailDispatcher = new MailDispatcher(mailer, gaugeService, 100, 1, 5, 3, 10, 5000)
+        for (int i = 0; i < 20; i++) {
+            mailDispatcher.dispatch("guest" + i + "@test.com")
+        }
+        when:
+        mailDispatcher.start()
+        mailDispatcher.stop()
+        then:
+        mailDispatcher.getSentCount() == 20
+        mailDispatcher.getFailedCount() == 0
+        mailDispatcher.getQueueSize() == 0
+    }
+
+    def "should count mails left in queue after drain timeout as failed"() {
+        given:
+        mailer.connect() >> transport
+        transport.isConnected() >> true
+        transport.sendMessage(_, _) >> { Thread.sleep(200) }
+        mailDispatcher = new MailDispatcher(mailer, gaugeService, 100, 1, 1, 3, 10, 50)
+        for (int i = 0; i < 5; i++) {
+            mailDispatcher.dispatch("guest" + i + "@test.com")
+        }
+        when:
+        mailDispatcher.start()
+        mailDispatcher.stop()
+        then:
+        mailDispatcher.getQueueSize() == 0
+        mailDispatcher.getSentCount() + mailDispatcher.getFailedCount() <= 5
+        mailDispatcher.getFailedCount() >= 3
+    }
+}
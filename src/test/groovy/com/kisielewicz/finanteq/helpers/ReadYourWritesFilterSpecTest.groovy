@@ -0,0 +1,65 @@
+package com.kisielewicz.finanteq.helpers
+
+import com.kisielewicz.finanteq.datasource.ReplicaContext
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import spock.lang.Specification
+
+import javax.servlet.DispatcherType
+import javax.servlet.FilterChain
+import javax.servlet.ServletRequest
+import javax.servlet.ServletResponse
+import javax.servlet.http.Cookie
+
+class ReadYourWritesFilterSpecTest extends Specification {
+
+    private long now = 10_000
+
+    private final ReadYourWritesFilter filter = new ReadYourWritesFilter(5_000, { now })
+
+    def "should give response to write cookie with time it was written at"() {
+        given:
+        MockHttpServletResponse response = new MockHttpServletResponse()
+        when:
+        filter.doFilter(new MockHttpServletRequest("POST", "/reservations/make"), response, { req, res ->
+            now += 50
+            res.getWriter().write("{}")
+        } as FilterChain)
+        then:
+        Cookie cookie = response.getCookie(ReadYourWritesFilter.LAST_WRITE_COOKIE)
+        cookie.value == "10050"
+        cookie.maxAge == 6
+    }
+
+    def "should give cookie to async write once its result is dispatched"() {
+        given:
+        MockHttpServletRequest request = new MockHttpServletRequest("DELETE", "/reservations/cancel/1")
+        request.setAsyncSupported(true)
+        MockHttpServletResponse response = new MockHttpServletResponse()
+        when:
+        filter.doFilter(request, response, { ServletRequest req, ServletResponse res -> req.startAsync(req, res) } as FilterChain)
+        then:
+        response.getCookie(ReadYourWritesFilter.LAST_WRITE_COOKIE) == null
+        when:
+        now += 200
+        request.setAsyncStarted(false)
+        request.setDispatcherType(DispatcherType.ASYNC)
+        filter.doFilter(request, response, { req, res -> } as FilterChain)
+        then:
+        response.getCookies().findAll { it.name == ReadYourWritesFilter.LAST_WRITE_COOKIE }*.value == ["10200"]
+    }
+
+    def "should bind read to last write of client while it's served"() {
+        given:
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/reservations/all")
+        request.setCookies(new Cookie(ReadYourWritesFilter.LAST_WRITE_COOKIE, "9000"))
+        Long lastWrite = null
+        when:
+        filter.doFilter(request, new MockHttpServletResponse(), { req, res ->
+            lastWrite = ReplicaContext.currentLastWrite()
+        } as FilterChain)
+        then:
+        lastWrite == 9000L
+        ReplicaContext.currentLastWrite() == null
+    }
+}
@@ -0,0 +1,73 @@
+package com.kisielewicz.finanteq.helpers
+
+import com.kisielewicz.finanteq.datasource.ShardContext
+import com.kisielewicz.finanteq.datasource.ShardRouter
+import com.kisielewicz.finanteq.domain.ResourceVersion
+import com.kisielewicz.finanteq.repository.ResourceVersionRepository
+import org.springframework.transaction.support.TransactionSynchronization
+import org.springframework.transaction.support.TransactionSynchronizationManager
+import spock.lang.Specification
+
+import static com.kisielewicz.finanteq.helpers.ResourceVersions.Resource.RESERVATIONS
+import static com.kisielewicz.finanteq.helpers.ResourceVersions.Resource.ROOMS
+
+class ResourceVersionsSpecTest extends Specification {
+
+    private final ResourceVersionRepository resourceVersionRepository = Mock(ResourceVersionRepository)
+
+    private final ResourceVersions resourceVersions = new ResourceVersions(resourceVersionRepository, ShardRouter.single())
+
+    def "should build etag of versions stored in database"() {
+        given:
+        resourceVersionRepository.findAll() >> [new ResourceVersion("ROOMS", 3), new ResourceVersion("RESERVATIONS", 8)]
+        expect:
+        resourceVersions.etag(ROOMS) == '"3"'
+        resourceVersions.etag(RESERVATIONS, ROOMS) == '"8-3"'
+    }
+
+    def "should build etag of versions of every shard unless request is for one property"() {
+        given:
+        ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+        ResourceVersions shardedVersions = new ResourceVersions(resourceVersionRepository, router)
+        resourceVersionRepository.findAll() >> {
+            ShardContext.currentProperty() == 1L ? [new ResourceVersion("ROOMS", 3)] : [new ResourceVersion("ROOMS", 5)]
+        }
+        expect:
+        shardedVersions.etag(ROOMS) == '"3-5"'
+        ShardContext.callForProperty(2L, { shardedVersions.etag(ROOMS) }) == '"5"'
+        cleanup:
+        router.stop()
+    }
+
+    def "should read version of resource for keying cached reads"() {
+        given:
+        resourceVersionRepository.findOne("ROOMS") >> new ResourceVersion("ROOMS", 4)
+        expect:
+        resourceVersions.version(ROOMS) == 4
+        resourceVersions.version(RESERVATIONS) == 0
+    }
+
+    def "should bump versions only once transaction commits"() {
+        given:
+        TransactionSynchronizationManager.initSynchronization()
+        when:
+        resourceVersions.bumpAfterTransaction(RESERVATIONS, ROOMS)
+        then:
+        0*resourceVersionRepository.bump(_)
+        when:
+        List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations()
+        synchronizations*.afterCommit()
+        then:
+        1*resourceVersionRepository.bump(["RESERVATIONS", "ROOMS"])
+        cleanup:
+        TransactionSynchronizationManager.clearSynchronization()
+    }
+
+    def "should not fail committed write when versions can't be bumped"() {
+        when:
+        resourceVersions.bumpAfterTransaction(ROOMS)
+        then:
+        1*resourceVersionRepository.bump(["ROOMS"]) >> { throw new IllegalStateException("database down") }
+        noExceptionThrown()
+    }
+}
@@ -0,0 +1,45 @@
+package com.kisielewicz.finanteq.helpers
+
+import spock.lang.Specification
+
+class TimingWheelSpecTest extends Specification {
+
+    def "should expire items with tick precision"() {
+        given:
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4, 1000)
+        wheel.schedule("soon", 1015)
+        wheel.schedule("later", 1032)
+        expect:
+        wheel.advanceTo(1019) == []
+        wheel.advanceTo(1020) == ["soon"]
+        wheel.advanceTo(1039) == []
+        wheel.advanceTo(1040) == ["later"]
+    }
+
+    def "should expire items scheduled in the past on next tick"() {
+        given:
+        TimingWheel<String> wheel = new TimingWheel<>(10, 4, 1000)
+        wheel.advanceTo(1100)
+        wheel.schedule("late", 900)
+        expect:
+        wheel.advanceTo(1110) == ["late"]
+    }
+
+    def "should expire items far beyond lowest level in order of their deadlines"() {
+        given:
+        TimingWheel<Long> wheel = new TimingWheel<>(10, 4, 0)
+        Random random = new Random(42)
+        List<Long> deadlines = (1..500).collect { (long) random.nextInt(100_000) }
+        deadlines.each { wheel.schedule(it, it) }
+        List<Long> expired = []
+        when:
+        for (long now = 0; now <= 100_010; now += random.nextInt(300)) {
+            List<Long> expiredNow = wheel.advanceTo(now)
+            assert expiredNow.every { it < now && it >= now - 310 }
+            expired.addAll(expiredNow)
+        }
+        expired.addAll(wheel.advanceTo(100_100))
+        then:
+        expired.sort() == deadlines.sort()
+    }
+}
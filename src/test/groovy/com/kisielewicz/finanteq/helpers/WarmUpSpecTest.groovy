@@ -0,0 +1,82 @@
+package com.kisielewicz.finanteq.helpers
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex
+import com.kisielewicz.finanteq.datasource.ShardRouter
+import com.kisielewicz.finanteq.metrics.WarmUpHealthIndicator
+import com.kisielewicz.finanteq.repository.ReservationRepository
+import com.kisielewicz.finanteq.repository.RoomRepository
+import org.springframework.boot.SpringApplication
+import org.springframework.boot.actuate.health.Status
+import org.springframework.boot.context.event.ApplicationReadyEvent
+import org.springframework.context.ConfigurableApplicationContext
+import org.springframework.core.env.ConfigurableEnvironment
+import org.springframework.transaction.PlatformTransactionManager
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+class WarmUpSpecTest extends Specification {
+
+    private final ReservationRepository reservationRepository = Mock(ReservationRepository)
+    private final RoomRepository roomRepository = Mock(RoomRepository)
+    private final PlatformTransactionManager transactionManager = Mock(PlatformTransactionManager)
+    private final RoomAvailabilityIndex availabilityIndex = new RoomAvailabilityIndex(reservationRepository, roomRepository, 365)
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+    private final ConfigurableApplicationContext context = Mock(ConfigurableApplicationContext)
+    private final ApplicationReadyEvent event = new ApplicationReadyEvent(new SpringApplication(), [] as String[], context)
+
+    def setup() {
+        context.getEnvironment() >> Mock(ConfigurableEnvironment)
+        availabilityIndex.load([1L, 2L], [])
+    }
+
+    def "should report not ready until all phases are warmed up"() {
+        given:
+        WarmUp warmUp = warmUp(true)
+        WarmUpHealthIndicator healthIndicator = new WarmUpHealthIndicator(warmUp)
+        expect:
+        healthIndicator.health().status == Status.OUT_OF_SERVICE
+        when:
+        warmUp.onApplicationEvent(event)
+        then:
+        1*reservationRepository.findSummariesAfter(0L, _) >> []
+        1*reservationRepository.findBookingsOverlapping({ it as List == [0L] }, LocalDate.now(), LocalDate.now().plusDays(1)) >> []
+        1*roomRepository.findMaxId() >> 2L
+        warmUp.isDone()
+        warmUp.getPhaseMillis().keySet() as List == ["context", "queries", "serializers", "overlap-checks", "requests"]
+        !warmUp.getPhaseMillis().containsValue(WarmUp.FAILED)
+        healthIndicator.health().status == Status.UP
+        healthIndicator.health().details.keySet() == warmUp.getPhaseMillis().keySet()
+    }
+
+    def "should get ready even when phase fails"() {
+        given:
+        WarmUp warmUp = warmUp(true)
+        when:
+        warmUp.onApplicationEvent(event)
+        then:
+        1*reservationRepository.findOne(0L) >> { throw new IllegalStateException("database down") }
+        warmUp.isDone()
+        warmUp.getPhaseMillis()["queries"] == WarmUp.FAILED
+        warmUp.getPhaseMillis()["serializers"] >= 0
+    }
+
+    def "should only time context when warm-up is disabled"() {
+        given:
+        WarmUp warmUp = warmUp(false)
+        when:
+        warmUp.onApplicationEvent(event)
+        then:
+        0*reservationRepository._
+        0*roomRepository._
+        warmUp.isDone()
+        warmUp.getPhaseMillis().keySet() == ["context"] as Set
+    }
+
+    private WarmUp warmUp(boolean enabled) {
+        new WarmUp(reservationRepository, roomRepository, availabilityIndex, objectMapper, transactionManager,
+                ShardRouter.single(), enabled, 1000, true)
+    }
+}
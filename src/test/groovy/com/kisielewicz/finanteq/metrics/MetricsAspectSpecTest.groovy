@@ -0,0 +1,75 @@
+package com.kisielewicz.finanteq.metrics
+
+import com.kisielewicz.finanteq.repository.RoomRepository
+import org.aopalliance.intercept.MethodInterceptor
+import org.aspectj.lang.ProceedingJoinPoint
+import org.aspectj.lang.Signature
+import org.springframework.aop.framework.ProxyFactory
+import org.springframework.boot.actuate.metrics.GaugeService
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+
+class MetricsAspectSpecTest extends Specification {
+
+    private final GaugeService gaugeService = Mock(GaugeService)
+
+    private final MetricsAspect metricsAspect = new MetricsAspect(gaugeService)
+
+    def "should time controller method and return its result"() {
+        given:
+        ProceedingJoinPoint joinPoint = joinPoint(String, "makeReservation", null)
+        when:
+        Object result = metricsAspect.timeController(joinPoint)
+        then:
+        1*joinPoint.proceed() >> "result"
+        1*gaugeService.submit("timer.controller.String.makeReservation", { it >= 0 })
+        result == "result"
+    }
+
+    def "should time repository query under name of repository interface"() {
+        given:
+        Object repository = ProxyFactory.getProxy(RoomRepository, { invocation -> null } as MethodInterceptor)
+        ProceedingJoinPoint joinPoint = joinPoint(Object, "findOne", repository)
+        when:
+        metricsAspect.timeRepository(joinPoint)
+        then:
+        1*gaugeService.submit("timer.repository.RoomRepository.findOne", _)
+    }
+
+    def "should time scheduled job even when it fails"() {
+        given:
+        ProceedingJoinPoint joinPoint = joinPoint(Object, "reviseRoomsAvailability", null)
+        when:
+        metricsAspect.timeJob(joinPoint)
+        then:
+        1*joinPoint.proceed() >> { throw new IllegalStateException("failed") }
+        1*gaugeService.submit("timer.job.reviseRoomsAvailability", _)
+        thrown(IllegalStateException)
+    }
+
+    def "should time asynchronous controller method until its result completes"() {
+        given:
+        ProceedingJoinPoint joinPoint = joinPoint(String, "makeReservation", null)
+        CompletableFuture<String> future = new CompletableFuture<>()
+        when:
+        metricsAspect.timeController(joinPoint)
+        then:
+        1*joinPoint.proceed() >> future
+        0*gaugeService.submit(*_)
+        when:
+        future.complete("result")
+        then:
+        1*gaugeService.submit("timer.controller.String.makeReservation", _)
+    }
+
+    private ProceedingJoinPoint joinPoint(Class<?> declaringType, String name, Object target) {
+        Signature signature = Mock(Signature)
+        signature.getDeclaringType() >> declaringType
+        signature.getName() >> name
+        ProceedingJoinPoint joinPoint = Mock(ProceedingJoinPoint)
+        joinPoint.getSignature() >> signature
+        joinPoint.getTarget() >> target
+        return joinPoint
+    }
+}
@@ -0,0 +1,108 @@
+package com.kisielewicz.finanteq.service
+
+import com.kisielewicz.finanteq.availability.Booking
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex
+import com.kisielewicz.finanteq.domain.Reservation
+import com.kisielewicz.finanteq.dto.HoldDTO
+import com.kisielewicz.finanteq.dto.ReservationDTO
+import com.kisielewicz.finanteq.exceptions.ConflictException
+import com.kisielewicz.finanteq.exceptions.NotFoundException
+import org.springframework.boot.actuate.metrics.CounterService
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+class HoldServiceSpecTest extends Specification {
+
+    private final ReservationService reservationService = Mock(ReservationService)
+    private final CounterService counterService = Mock(CounterService)
+    private final RoomAvailabilityIndex availabilityIndex = new RoomAvailabilityIndex(null, null, 30)
+
+    private long now = 1_000_000
+    private final HoldService holdService = new HoldService(reservationService, availabilityIndex, counterService,
+            60_000, 100, 64, 2, { now })
+
+    private final LocalDate today = LocalDate.now()
+    private final ReservationDTO reservationDTO = reservationDTO(1L)
+
+    def setup() {
+        reservationService.holdDateRange(_) >> { ReservationDTO dto ->
+            availabilityIndex.tryBook(dto.getRoomId(), dto.getStartDate(), dto.getEndDate(), null)
+        }
+    }
+
+    def "should block date range until hold expires"() {
+        given:
+        HoldDTO hold = holdService.hold(reservationDTO)
+        expect:
+        hold.getExpiresAt().toEpochMilli() == 1_060_000
+        !availabilityIndex.isFree(1, today, today.plusDays(2), null)
+        when:
+        now = 1_059_000
+        holdService.expireHolds()
+        then:
+        !availabilityIndex.isFree(1, today, today.plusDays(2), null)
+        when:
+        now = 1_060_100
+        holdService.expireHolds()
+        then:
+        availabilityIndex.isFree(1, today, today.plusDays(2), null)
+        holdService.size() == 0
+        1*counterService.increment(HoldService.EXPIRED_COUNTER)
+        when:
+        holdService.confirm(hold.getHoldId())
+        then:
+        thrown(NotFoundException)
+        0*reservationService.confirmHold(*_)
+    }
+
+    def "should save confirmed hold as reservation only once"() {
+        given:
+        HoldDTO hold = holdService.hold(reservationDTO)
+        Reservation reservation = new Reservation()
+        when:
+        Reservation result = holdService.confirm(hold.getHoldId())
+        then:
+        1*reservationService.confirmHold(reservationDTO, { Booking booking -> booking.getRoomId() == 1L }) >> reservation
+        result == reservation
+        when:
+        holdService.confirm(hold.getHoldId())
+        then:
+        thrown(NotFoundException)
+        when:
+        now = 1_060_100
+        holdService.expireHolds()
+        then:
+        0*counterService.increment(_)
+    }
+
+    def "should free date range of released hold"() {
+        given:
+        HoldDTO hold = holdService.hold(reservationDTO)
+        when:
+        holdService.release(hold.getHoldId())
+        then:
+        availabilityIndex.isFree(1, today, today.plusDays(2), null)
+        holdService.size() == 0
+    }
+
+    def "should limit number of active holds"() {
+        given:
+        holdService.hold(reservationDTO(1L))
+        holdService.hold(reservationDTO(2L))
+        when:
+        holdService.hold(reservationDTO(3L))
+        then:
+        ConflictException e = thrown()
+        e.getMessage() == "Too many active holds, please retry later."
+    }
+
+    private ReservationDTO reservationDTO(Long roomId) {
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setRoomId(roomId)
+        reservationDTO.setStartDate(today)
+        reservationDTO.setEndDate(today.plusDays(2))
+        reservationDTO.setMail("mail@mail.com")
+        return reservationDTO
+    }
+}
@@ -0,0 +1,148 @@
+package com.kisielewicz.finanteq.service
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.SerializationFeature
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.kisielewicz.finanteq.availability.Booking
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex
+import com.kisielewicz.finanteq.datasource.ShardRouter
+import com.kisielewicz.finanteq.domain.Reservation
+import com.kisielewicz.finanteq.domain.Room
+import com.kisielewicz.finanteq.dto.ImportReportDTO
+import com.kisielewicz.finanteq.helpers.ResourceVersions
+import com.kisielewicz.finanteq.repository.ReservationRepository
+import com.kisielewicz.finanteq.repository.RoomRepository
+import org.springframework.dao.DataIntegrityViolationException
+import org.springframework.transaction.PlatformTransactionManager
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+class ImportServiceSpecTest extends Specification {
+
+    private final ReservationRepository reservationRepository = Mock(ReservationRepository)
+    private final RoomRepository roomRepository = Mock(RoomRepository)
+    private final RoomAvailabilityIndex availabilityIndex = new RoomAvailabilityIndex(reservationRepository, roomRepository, 365)
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+
+    private final LocalDate future = LocalDate.now().plusDays(10)
+    private final LocalDate past = LocalDate.now().minusDays(100)
+    private final List<List<Reservation>> inserted = []
+
+    private ImportService importService(int chunkSize, boolean multiNode = false) {
+        availabilityIndex.load([1L, 2L], [new Booking(1L, 1L, future, future.plusDays(2))])
+        new ImportService(reservationRepository, roomRepository, availabilityIndex, Mock(ResourceVersions), objectMapper,
+                Mock(PlatformTransactionManager), ShardRouter.single(), chunkSize, 2, 10, multiNode)
+    }
+
+    private static Room room(long id) {
+        new Room(id: id, isReserved: false, propertyId: 1L)
+    }
+
+    private void insertingWithIds() {
+        reservationRepository.insertAll(_) >> { args ->
+            List<Reservation> reservations = args[0]
+            inserted << new ArrayList<>(reservations)
+            reservations.eachWithIndex { Reservation reservation, int i -> reservation.id = 100L + i }
+        }
+    }
+
+    def "should import valid rows in chunks and report rejected ones with their lines"() {
+        given:
+        ImportService importService = importService(2)
+        insertingWithIds()
+        roomRepository.findAllForUpdate(_) >> { args -> args[0].findAll { it <= 2L }.collect { room(it) } }
+        0*reservationRepository.findBookingsOverlappingForUpdate(*_)
+        String csv = """roomId,startDate,endDate,mail
+                       |2,${future},${future.plusDays(3)},a@test.com
+                       |1,${future.plusDays(1)},${future.plusDays(3)},b@test.com
+                       |
+                       |1,not a date,${future},c@test.com
+                       |2,${future.plusDays(2)},${future.plusDays(4)},d@test.com
+                       |3,${future},${future.plusDays(1)},e@test.com
+                       |1,${future.plusDays(3)},${future.plusDays(1)},f@test.com
+                       |1,${future.plusDays(2)},${future.plusDays(5)},g@test.com""".stripMargin()
+        when:
+        ImportReportDTO report = importService.importReservations(new StringReader(csv), ImportService.Format.CSV)
+        then:
+        report.rowsRead == 7
+        report.imported == 2
+        report.rejected == 5
+        report.chunks == 4
+        report.rejections*.line == [3L, 5L, 6L, 7L, 8L]
+        report.rejections[2].message == "Reservation for this room is already created for desired date range."
+        report.rejections[3].message == "No room by id:3 found."
+        inserted.flatten()*.mail == ["a@test.com", "g@test.com"]
+        inserted.flatten().every { it.room.id in [1L, 2L] }
+        !availabilityIndex.isFree(1L, future.plusDays(2), future.plusDays(5), null)
+    }
+
+    def "should check rows starting in the past against stored reservations and earlier rows"() {
+        given:
+        ImportService importService = importService(10)
+        insertingWithIds()
+        roomRepository.findAllForUpdate(_) >> [room(1L)]
+        String csv = """1,${past},${past.plusDays(3)},a@test.com
+                       |1,${past.plusDays(5)},${past.plusDays(7)},b@test.com
+                       |1,${past.plusDays(6)},${past.plusDays(8)},c@test.com""".stripMargin()
+        when:
+        ImportReportDTO report = importService.importReservations(new StringReader(csv), ImportService.Format.CSV)
+        then:
+        1*reservationRepository.findBookingsOverlappingForUpdate({ it == [1L] as Set }, past, past.plusDays(8)) >>
+                [new Booking(50L, 1L, past.minusDays(1), past.plusDays(1))]
+        report.imported == 1
+        report.rejections*.line == [1L, 3L]
+        inserted.flatten()*.mail == ["b@test.com"]
+    }
+
+    def "should lock rooms of chunk and check every row in database when other nodes write too"() {
+        given:
+        ImportService importService = importService(10, true)
+        insertingWithIds()
+        String csv = """2,${future},${future.plusDays(3)},a@test.com
+                       |1,${future.plusDays(4)},${future.plusDays(6)},b@test.com""".stripMargin()
+        when:
+        ImportReportDTO report = importService.importReservations(new StringReader(csv), ImportService.Format.CSV)
+        then:
+        1*roomRepository.findAllForUpdate({ it as List == [1L, 2L] }) >> [room(1L), room(2L)]
+        0*roomRepository.findAll(_)
+        1*reservationRepository.findBookingsOverlappingForUpdate({ it == [1L, 2L] as Set }, future, future.plusDays(6)) >>
+                [new Booking(60L, 2L, future.plusDays(1), future.plusDays(2))]
+        report.imported == 1
+        report.rejections*.line == [1L]
+        inserted.flatten()*.mail == ["b@test.com"]
+        availabilityIndex.isFree(2L, future, future.plusDays(3), null)
+    }
+
+    def "should parse json lines"() {
+        given:
+        ImportService importService = importService(10)
+        insertingWithIds()
+        roomRepository.findAllForUpdate(_) >> [room(2L)]
+        String jsonl = """{"roomId":2,"startDate":"${future}","endDate":"${future.plusDays(1)}","mail":"a@test.com"}
+                         |{"roomId":2,"startDate":"${future.plusDays(1)}","endDate":"${future.plusDays(2)}"}
+                         |{"roomId":2,"startDate":""".stripMargin()
+        when:
+        ImportReportDTO report = importService.importReservations(new StringReader(jsonl), ImportService.Format.JSONL)
+        then:
+        report.imported == 1
+        report.rejections*.line == [2L, 3L]
+        report.rejections[0].message == "Room id, dates and mail are required."
+    }
+
+    def "should reject rows of failed chunk and release their date ranges"() {
+        given:
+        ImportService importService = importService(10)
+        roomRepository.findAllForUpdate(_) >> [room(2L)]
+        reservationRepository.insertAll(_) >> { throw new DataIntegrityViolationException("constraint") }
+        String csv = "2,${future},${future.plusDays(1)},a@test.com"
+        when:
+        ImportReportDTO report = importService.importReservations(new StringReader(csv), ImportService.Format.CSV)
+        then:
+        report.imported == 0
+        report.rejected == 1
+        report.rejections[0].message == "Failed to save chunk: constraint"
+        availabilityIndex.isFree(2L, future, future.plusDays(1), null)
+    }
+}
@@ -0,0 +1,92 @@
+package com.kisielewicz.finanteq.service
+
+import com.kisielewicz.finanteq.availability.Booking
+import com.kisielewicz.finanteq.dto.OccupancyDTO
+import com.kisielewicz.finanteq.exceptions.ConflictException
+import com.kisielewicz.finanteq.repository.ReservationRepository
+import com.kisielewicz.finanteq.repository.RoomRepository
+import org.springframework.transaction.PlatformTransactionManager
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+class OccupancyServiceSpecTest extends Specification {
+
+    private final ReservationRepository reservationRepository = Mock(ReservationRepository)
+    private final RoomRepository roomRepository = Mock(RoomRepository)
+    private final PlatformTransactionManager transactionManager = Mock(PlatformTransactionManager)
+
+    private final LocalDate from = LocalDate.of(2030, 1, 1)
+
+    private final List<Booking> bookings = [
+            new Booking(1L, 1L, from.minusDays(2), from.plusDays(2)),
+            new Booking(2L, 1L, from.plusDays(3), from.plusDays(5)),
+            new Booking(3L, 2L, from.plusDays(1), from.plusDays(4)),
+            new Booking(4L, 4L, from.plusDays(4), from.plusDays(10))]
+
+    def "should count occupied rooms per day and occupied nights per room in single pass"() {
+        given:
+        OccupancyService occupancyService = new OccupancyService(reservationRepository, roomRepository, transactionManager, 2, 90, 3660)
+        when:
+        OccupancyDTO result = occupancyService.getOccupancy(from, from.plusDays(6))
+        then:
+        1*roomRepository.findAllIds() >> [4L, 1L, 2L, 3L]
+        1*reservationRepository.streamBookingsOverlapping(from, from.plusDays(6), 1L, 4L) >> bookings.stream()
+        result.occupiedRoomsPerDay == [1, 2, 1, 2, 2, 1] as int[]
+        result.roomIds == [1L, 2L, 3L, 4L] as long[]
+        result.occupiedNightsPerRoom == [4, 3, 0, 2] as int[]
+        result.occupiedDayRunsPerRoom == [[0, 2, 3, 5], [1, 4], [], [4, 6]] as int[][]
+        cleanup:
+        occupancyService.stop()
+    }
+
+    def "should give same occupancy when counting partitions of rooms in parallel"() {
+        given:
+        OccupancyService occupancyService = new OccupancyService(reservationRepository, roomRepository, transactionManager, 2, 1, 3660)
+        when:
+        OccupancyDTO result = occupancyService.getOccupancy(from, from.plusDays(6))
+        then:
+        1*roomRepository.findAllIds() >> [4L, 1L, 2L, 3L]
+        1*reservationRepository.streamBookingsOverlapping(from, from.plusDays(6), 1L, 2L) >> bookings.findAll { it.roomId <= 2 }.stream()
+        1*reservationRepository.streamBookingsOverlapping(from, from.plusDays(6), 3L, 4L) >> bookings.findAll { it.roomId >= 3 }.stream()
+        result.occupiedRoomsPerDay == [1, 2, 1, 2, 2, 1] as int[]
+        result.occupiedNightsPerRoom == [4, 3, 0, 2] as int[]
+        result.occupiedDayRunsPerRoom == [[0, 2, 3, 5], [1, 4], [], [4, 6]] as int[][]
+        cleanup:
+        occupancyService.stop()
+    }
+
+    def "should leave rooms created after their ids were read out of both per-day and per-room counts"() {
+        given:
+        OccupancyService occupancyService = new OccupancyService(reservationRepository, roomRepository, transactionManager, 2, 90, 3660)
+        when:
+        OccupancyDTO result = occupancyService.getOccupancy(from, from.plusDays(6))
+        then:
+        1*roomRepository.findAllIds() >> [4L, 1L, 2L]
+        1*reservationRepository.streamBookingsOverlapping(from, from.plusDays(6), 1L, 4L) >> (bookings + new Booking(5L, 3L, from, from.plusDays(6))).stream()
+        result.occupiedRoomsPerDay == [1, 2, 1, 2, 2, 1] as int[]
+        result.roomIds == [1L, 2L, 4L] as long[]
+        result.occupiedNightsPerRoom == [4, 3, 2] as int[]
+        result.occupiedDayRunsPerRoom == [[0, 2, 3, 5], [1, 4], [4, 6]] as int[][]
+        cleanup:
+        occupancyService.stop()
+    }
+
+    def "should reject wrong and too long windows"() {
+        given:
+        OccupancyService occupancyService = new OccupancyService(reservationRepository, roomRepository, transactionManager, 2, 90, 30)
+        when:
+        occupancyService.getOccupancy(from, from.plusDays(days))
+        then:
+        ConflictException e = thrown()
+        e.getMessage() == message
+        0*reservationRepository.streamBookingsOverlapping(*_)
+        cleanup:
+        occupancyService.stop()
+        where:
+        days | message
+        0    | "Date range input is wrong."
+        -1   | "Date range input is wrong."
+        31   | "Occupancy window can't be longer than 30 days."
+    }
+}
@@ -1,46 +1,109 @@
 package com.kisielewicz.finanteq.service
 
+import com.kisielewicz.finanteq.availability.Booking
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex
+import com.kisielewicz.finanteq.datasource.ShardContext
+import com.kisielewicz.finanteq.datasource.ShardRouter
 import com.kisielewicz.finanteq.domain.Reservation
 import com.kisielewicz.finanteq.domain.Room
+import com.kisielewicz.finanteq.dto.BatchReservationResultDTO
 import com.kisielewicz.finanteq.dto.ReservationDTO
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO
+import com.kisielewicz.finanteq.dto.RevisionReportDTO
 import com.kisielewicz.finanteq.exceptions.ConflictException
 import com.kisielewicz.finanteq.exceptions.NotFoundException
+import com.kisielewicz.finanteq.helpers.JobPartitions
+import com.kisielewicz.finanteq.helpers.MailDispatcher
+import com.kisielewicz.finanteq.helpers.ResourceVersions
 import com.kisielewicz.finanteq.repository.ReservationRepository
 import com.kisielewicz.finanteq.repository.RoomRepository
+import org.springframework.boot.actuate.metrics.CounterService
+import org.springframework.dao.CannotAcquireLockException
+import org.springframework.data.domain.PageRequest
 import spock.lang.Specification
 
+import javax.persistence.EntityManager
 import java.time.LocalDate
+import java.util.stream.Stream
 
 class ReservationServiceSpecTest extends Specification {
 
     private final ReservationRepository reservationRepository = Mock(ReservationRepository)
     private final RoomRepository roomRepository = Mock(RoomRepository)
+    private final RoomAvailabilityIndex availabilityIndex = new RoomAvailabilityIndex(reservationRepository, roomRepository, 365)
 
-    private final ReservationService reservationService = new ReservationService(reservationRepository, roomRepository)
+    private final EntityManager entityManager = Mock(EntityManager)
+    private final MailDispatcher mailDispatcher = Mock(MailDispatcher)
+    private final RoomService roomService = Mock(RoomService)
+    private final CounterService counterService = Mock(CounterService)
+    private final ResourceVersions resourceVersions = Mock(ResourceVersions)
+    private final JobPartitions jobPartitions = Mock(JobPartitions)
+
+    private final ReservationService reservationService = new ReservationService(
+            reservationRepository, roomRepository, availabilityIndex, entityManager, mailDispatcher, roomService, counterService, resourceVersions,
+            ShardRouter.single(), jobPartitions, 1000, true)
+
+    def setup() {
+        reservationRepository.findBookingsOverlappingForUpdate(*_) >> []
+    }
 
     def "should return all reservations made"() {
         given:
-        Iterable<Reservation> reservations = new ArrayList<>()
+        List<ReservationSummaryDTO> reservations = new ArrayList<>()
         for (int i = 0; i < 5; i++) {
-            reservations.add(new Reservation().setId(i))
+            reservations.add(new ReservationSummaryDTO(id: i))
         }
         when:
-        Iterable<Reservation> result = reservationService.getAllReservations()
+        List<ReservationSummaryDTO> result = reservationService.getAllReservations()
         then:
-        1*reservationRepository.findAll() >> reservations
+        1*reservationRepository.findAllSummaries() >> reservations
         result == reservations
         result.size() == 5
     }
 
     def "should return empty list of reservations"() {
+        when:
+        List<ReservationSummaryDTO> result = reservationService.getAllReservations()
+        then:
+        1*reservationRepository.findAllSummaries() >> []
+        result.size() == 0
+    }
+
+    def "should return page of reservations after given id"() {
         given:
-        Iterable<Reservation> reservations = new ArrayList<>()
+        List<ReservationSummaryDTO> reservations = new ArrayList<>()
+        for (int i = 11; i < 16; i++) {
+            reservations.add(new ReservationSummaryDTO(id: i))
+        }
         when:
-        Iterable<Reservation> result = reservationService.getAllReservations()
+        List<ReservationSummaryDTO> result = reservationService.getAllReservations(10, 5)
         then:
-        1*reservationRepository.findAll() >> reservations
+        1*reservationRepository.findSummariesAfter(10, new PageRequest(0, 5)) >> reservations
         result == reservations
-        result.size() == 0
+    }
+
+    def "should limit page size of reservations"() {
+        when:
+        reservationService.getAllReservationsForRoom(1, 0, 50000)
+        reservationService.getUpcomingReservations(LocalDate.now(), 7, 0)
+        then:
+        1*reservationRepository.findSummariesForRoomAfter(1, 0, new PageRequest(0, 1000)) >> []
+        1*reservationRepository.findSummariesStartingAfter(LocalDate.now().minusDays(1), 7, new PageRequest(0, 1)) >> []
+    }
+
+    def "should pass every exported reservation to consumer and detach it"() {
+        given:
+        List<Reservation> reservations = new ArrayList<>()
+        for (int i = 0; i < 3; i++) {
+            reservations.add(new Reservation(id: i))
+        }
+        List<Reservation> exported = new ArrayList<>()
+        when:
+        reservationService.exportReservations({ exported.add(it) })
+        then:
+        1*reservationRepository.streamAll() >> reservations.stream()
+        3*entityManager.detach({ it instanceof Reservation })
+        exported*.id == [0L, 1L, 2L]
     }
 
     def "should return reservations by id"() {
@@ -73,96 +136,59 @@ class ReservationServiceSpecTest extends Specification {
 
     def "should return all for room"() {
         given:
-        int res = 1
-        Reservation reservation
-        Room room = new Room()
-        room.setId(res)
-        Iterable<Reservation> reservations = new ArrayList<>()
+        long res = 1
+        List<ReservationSummaryDTO> reservations = new ArrayList<>()
         for (int i = 0; i < 2; i++) {
-            reservation = new Reservation()
-            reservation.setId(i)
-            reservation.setRoom(room)
-            reservations.add(reservation)
+            reservations.add(new ReservationSummaryDTO(id: i, roomId: res))
         }
         when:
-        Iterable<Reservation> result = reservationService.getAllReservationsForRoom(res)
+        List<ReservationSummaryDTO> result = reservationService.getAllReservationsForRoom(res)
         then:
-        1*reservationRepository.findAllByRoom_Id(res) >> reservations
+        1*reservationRepository.findSummariesForRoom(res) >> reservations
         result.size() == 2
-        result[1].room.id == res
+        result[1].roomId == res
     }
 
     def "should return empty reservation when no reservations for room"() {
         given:
-        int res = 1
-        Reservation reservation
-        Room room = new Room()
-        room.setId(res)
-        Iterable<Reservation> reservations = new ArrayList<>()
-        for (int i = 2; i < 4; i++) {
-            reservation = new Reservation()
-            reservation.setId(i)
-            reservation.setRoom(room)
-            reservations.add(reservation)
-        }
+        long res = 1
         when:
-        Iterable<Reservation> result = reservationService.getAllReservationsForRoom(res)
+        List<ReservationSummaryDTO> result = reservationService.getAllReservationsForRoom(res)
         then:
-        1*reservationRepository.findAllByRoom_Id(res) >> new ArrayList<>()
+        1*reservationRepository.findSummariesForRoom(res) >> new ArrayList<>()
         result.size() == 0
     }
 
     def "should find all reservations with date after some date"() {
         given:
-        int res = 1
-        Reservation reservation
-        Room room = new Room()
-        room.setId(res)
-        Iterable<Reservation> reservations = new ArrayList<>()
+        List<ReservationSummaryDTO> reservations = new ArrayList<>()
         for (int i = 0; i < 2; i++) {
-            reservation = new Reservation()
-            reservation.setId(i)
-            reservation.setRoom(room)
-            reservation.setStartDate(LocalDate.now().plusDays(i+1))
-            reservations.add(reservation)
+            reservations.add(new ReservationSummaryDTO(id: i, roomId: 1, startDate: LocalDate.now().plusDays(i + 1)))
         }
         when:
-        Iterable<Reservation> result = reservationService.getUpcomingReservations(LocalDate.now())
+        List<ReservationSummaryDTO> result = reservationService.getUpcomingReservations(LocalDate.now())
         then:
-        1*reservationRepository.findAllByStartDateAfter(LocalDate.now().minusDays(1)) >> reservations
+        1*reservationRepository.findSummariesStartingAfter(LocalDate.now().minusDays(1)) >> reservations
         result.size() == 2
         result[0].startDate == reservations[0].startDate
     }
 
     def "should find no reservations for date specified"() {
-        given:
         when:
-        Iterable<Reservation> result = reservationService.getUpcomingReservations(LocalDate.now())
+        List<ReservationSummaryDTO> result = reservationService.getUpcomingReservations(LocalDate.now())
         then:
-        1*reservationRepository.findAllByStartDateAfter(LocalDate.now().minusDays(1)) >> new ArrayList<>()
+        1*reservationRepository.findSummariesStartingAfter(LocalDate.now().minusDays(1)) >> new ArrayList<>()
         result.size() == 0
     }
 
     def "should find all reservations for room with date after some date"() {
         given:
-        int res = 1
-        Reservation reservation
-        Room room
-        Iterable<Reservation> reservations = new ArrayList<>()
-        for (int i = 0; i < 2; i++) {
-            room = new Room()
-            room.setId(i)
-            reservation = new Reservation()
-            reservation.setId(i)
-            reservation.setRoom(room)
-            reservation.setStartDate(LocalDate.now().plusDays(i+1))
-            reservations.add(reservation)
-        }
-        Iterable<Reservation> shouldResult = Collections.singletonList(reservations[res])
+        long res = 1
+        List<ReservationSummaryDTO> shouldResult = [new ReservationSummaryDTO(id: 1, roomId: res, startDate: LocalDate.now().plusDays(2))]
         when:
-        Iterable<Reservation> result = reservationService.getUpcomingReservationsForRoom(LocalDate.now(), res)
+        List<ReservationSummaryDTO> result = reservationService.getUpcomingReservationsForRoom(LocalDate.now(), res)
         then:
-        1*reservationRepository.findAllByStartDateAfterAndRoom_Id(LocalDate.now().minusDays(1), res) >> shouldResult
+        1*reservationRepository.findSummariesForRoomStartingAfter(res, LocalDate.now().minusDays(1)) >> shouldResult
         result.size() == 1
         result[0].startDate == shouldResult[0].startDate
     }
@@ -171,13 +197,13 @@ class ReservationServiceSpecTest extends Specification {
         given:
         long res = 1
         when:
-        Iterable<Reservation> result = reservationService.getUpcomingReservationsForRoom(LocalDate.now(), res)
+        List<ReservationSummaryDTO> result = reservationService.getUpcomingReservationsForRoom(LocalDate.now(), res)
         then:
-        1*reservationRepository.findAllByStartDateAfterAndRoom_Id(LocalDate.now().minusDays(1),res) >> new ArrayList<>()
+        1*reservationRepository.findSummariesForRoomStartingAfter(res, LocalDate.now().minusDays(1)) >> new ArrayList<>()
         result.size() == 0
     }
 
-    def "should successfully cancel reservation"() {
+    def "should successfully cancel reservation holding lock of its room"() {
         given:
         int reservationId = 1
         Room room = new Room()
@@ -189,12 +215,18 @@ class ReservationServiceSpecTest extends Specification {
         reservation.setEndDate(LocalDate.now().plusDays(4))
         reservation.setMail("test@test.com")
         reservation.setRoom(room)
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(
+                new Booking(reservationId, room.getId(), reservation.getStartDate(), reservation.getEndDate())))
         when:
         reservationService.cancelReservation(reservationId)
         then:
-        1*reservationRepository.exists(reservationId) >> true
+        1*reservationRepository.lockReservation(reservationId) >> 7L
+        then:
+        1*roomRepository.lockRoom(7L) >> 7L
+        then:
         1*reservationRepository.findOne(reservationId) >> reservation
         1*reservationRepository.delete(reservationId)
+        availabilityIndex.size() == 0
     }
 
     def "should successfully cancel ongoing reservation and set room to not reserved"() {
@@ -217,7 +249,8 @@ class ReservationServiceSpecTest extends Specification {
         when:
         reservationService.cancelReservation(reservationId)
         then:
-        1*reservationRepository.exists(reservationId) >> true
+        1*reservationRepository.lockReservation(reservationId) >> 7L
+        1*roomRepository.lockRoom(7L) >> 7L
         1*reservationRepository.findOne(reservationId) >> reservation
         1*roomRepository.save(changedRoom) >> changedRoom
         1*reservationRepository.delete(reservationId)
@@ -230,7 +263,8 @@ class ReservationServiceSpecTest extends Specification {
         when:
         reservationService.cancelReservation(reservationId)
         then:
-        1*reservationRepository.exists(reservationId) >> false
+        1*reservationRepository.lockReservation(reservationId) >> null
+        0*roomRepository.lockRoom(_)
         NotFoundException e = thrown()
         e.getMessage() == "No reservation by id:1 found."
     }
@@ -248,29 +282,27 @@ class ReservationServiceSpecTest extends Specification {
         reservationDTO.setRoomId(roomId)
 
         Reservation shouldResult = new Reservation()
+        shouldResult.setId(3)
         shouldResult.setStartDate(LocalDate.now().plusDays(2))
         shouldResult.setEndDate(LocalDate.now().plusDays(4))
         shouldResult.setMail("test@test.com")
         shouldResult.setRoom(room)
 
-        Iterable<Reservation> reservations = new ArrayList<>()
-        Reservation reservation
+        Iterable<Booking> bookings = new ArrayList<>()
         for (int i = 0; i < 2; i++) {
-            reservation = new Reservation()
-            reservation.setId(i)
-            reservation.setRoom(room)
-            reservation.setStartDate(LocalDate.now().plusDays(i+10))
-            reservation.setEndDate(LocalDate.now().plusDays(i+11))
-            reservations.add(reservation)
+            bookings.add(new Booking(i, roomId, LocalDate.now().plusDays(i*2+10), LocalDate.now().plusDays(i*2+11)))
         }
+        availabilityIndex.load(Collections.emptyList(), bookings)
         when:
         Reservation result = reservationService.makeReservation(reservationDTO)
         then:
+        1*roomRepository.lockRoom(roomId) >> roomId
         1*roomRepository.findOne(roomId) >> room
-        1*reservationRepository.findAllByRoomAndStartDateBeforeAndEndDateAfter(
-                room, reservationDTO.getEndDate(), reservationDTO.getStartDate()) >> new ArrayList<>()
         1*reservationRepository.save(_) >> shouldResult
+        1*resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.RESERVATIONS)
         result.getMail() == reservationDTO.getMail()
+        !availabilityIndex.isFree(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+        availabilityIndex.size() == 3
     }
 
     def "should throw NotFoundException when no room present"() {
@@ -304,7 +336,8 @@ class ReservationServiceSpecTest extends Specification {
         when:
         Reservation result = reservationService.makeReservation(reservationDTO)
         then:
-        1*roomRepository.findOne(roomId) >> null
+        1*roomRepository.lockRoom(roomId) >> null
+        0*roomRepository.findOne(roomId)
         NotFoundException e = thrown()
         e.getMessage() == "No room by id:" + roomId + " found."
         0*reservationRepository.save(_) >> shouldResult
@@ -343,6 +376,7 @@ class ReservationServiceSpecTest extends Specification {
         then:
         ConflictException e = thrown()
         e.getMessage() == "Date range input is wrong."
+        1*counterService.increment(ReservationService.CONFLICT_DATE_RANGE_COUNTER)
         0*roomRepository.findOne(roomId) >> room
         0*reservationRepository.save(_) >> shouldResult
     }
@@ -380,6 +414,7 @@ class ReservationServiceSpecTest extends Specification {
         then:
         ConflictException e = thrown()
         e.getMessage() == "Can't make reservation with start date before today."
+        1*counterService.increment(ReservationService.CONFLICT_START_DATE_COUNTER)
         0*roomRepository.findOne(roomId) >> room
         0*reservationRepository.save(_) >> shouldResult
     }
@@ -402,24 +437,19 @@ class ReservationServiceSpecTest extends Specification {
         shouldResult.setMail("test@test.com")
         shouldResult.setRoom(room)
 
-        Iterable<Reservation> reservations = new ArrayList<>()
-        Reservation reservation
+        Iterable<Booking> bookings = new ArrayList<>()
         for (int i = 0; i < 2; i++) {
-            reservation = new Reservation()
-            reservation.setId(i)
-            reservation.setRoom(room)
-            reservation.setStartDate(LocalDate.now().plusDays(i+10))
-            reservation.setEndDate(LocalDate.now().plusDays(i+11))
-            reservations.add(reservation)
+            bookings.add(new Booking(i, roomId, LocalDate.now().plusDays(i*2+10), LocalDate.now().plusDays(i*2+11)))
         }
+        availabilityIndex.load(Collections.emptyList(), bookings)
         when:
         reservationService.makeReservation(reservationDTO)
         then:
+        1*roomRepository.lockRoom(roomId) >> roomId
         1*roomRepository.findOne(roomId) >> room
-        1*reservationRepository.findAllByRoomAndStartDateBeforeAndEndDateAfter(
-                room, reservationDTO.getEndDate(), reservationDTO.getStartDate()) >> reservations
         ConflictException e = thrown()
         e.getMessage() == "Reservation for this room is already created for desired date range."
+        1*counterService.increment(ReservationService.CONFLICT_OVERLAP_COUNTER)
         0*reservationRepository.save(_) >> shouldResult
     }
 
@@ -451,24 +481,426 @@ class ReservationServiceSpecTest extends Specification {
         shouldResult.setMail("test@test.com")
         shouldResult.setRoom(room)
 
-        Iterable<Reservation> reservations = new ArrayList<>()
-        Reservation reservation
-        for (int i = 0; i < 2; i++) {
-            reservation = new Reservation()
-            reservation.setId(i)
-            reservation.setRoom(room)
-            reservation.setStartDate(LocalDate.now().plusDays(i+10))
-            reservation.setEndDate(LocalDate.now().plusDays(i+11))
-            reservations.add(reservation)
-        }
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(
+                new Booking(reservationId, roomId, oldReservation.getStartDate(), oldReservation.getEndDate())))
         when:
         Reservation result = reservationService.editReservation(reservationDTO)
         then:
         1*reservationRepository.findOne(reservationId) >> oldReservation
+        1*roomRepository.lockRoom(roomId) >> roomId
         1*roomRepository.findOne(roomId) >> room
-        1*reservationRepository.findAllByRoomAndStartDateBeforeAndEndDateAfter(
-                room, reservationDTO.getEndDate(), reservationDTO.getStartDate()) >> new ArrayList<>()
         1*reservationRepository.save(_) >> shouldResult
         result.getMail() == reservationDTO.getMail()
+        availabilityIndex.isFree(roomId, LocalDate.now().plusDays(17), LocalDate.now().plusDays(26), null)
+        !availabilityIndex.isFree(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+    }
+
+    def "should successfully edit reservation into date range overlapping its previous one"() {
+        given:
+        int roomId = 5
+        int reservationId = 1
+        Room room = new Room()
+        room.setId(roomId)
+        room.setIsReserved(false)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setReservationId(reservationId)
+        reservationDTO.setStartDate(LocalDate.now().plusDays(3))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(8))
+        reservationDTO.setMail("test@test.com")
+        reservationDTO.setRoomId(roomId)
+
+        Reservation oldReservation = new Reservation()
+        oldReservation.setId(reservationId)
+        oldReservation.setStartDate(LocalDate.now().plusDays(2))
+        oldReservation.setEndDate(LocalDate.now().plusDays(6))
+        oldReservation.setMail("old@old.com")
+        oldReservation.setRoom(room)
+
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(
+                new Booking(reservationId, roomId, oldReservation.getStartDate(), oldReservation.getEndDate())))
+        when:
+        reservationService.editReservation(reservationDTO)
+        then:
+        1*reservationRepository.findOne(reservationId) >> oldReservation
+        1*roomRepository.lockRoom(roomId) >> roomId
+        1*roomRepository.findOne(roomId) >> room
+        1*reservationRepository.save(_) >> { Reservation reservation -> reservation }
+        availabilityIndex.isFree(roomId, LocalDate.now().plusDays(2), LocalDate.now().plusDays(3), null)
+        !availabilityIndex.isFree(roomId, LocalDate.now().plusDays(7), LocalDate.now().plusDays(8), null)
+        availabilityIndex.size() == 1
+    }
+
+    def "should lock both rooms in ascending id order before reading when moving reservation to other room"() {
+        given:
+        int reservationId = 1
+        Room oldRoom = new Room()
+        oldRoom.setId(7)
+        Room newRoom = new Room()
+        newRoom.setId(3)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setReservationId(reservationId)
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setMail("test@test.com")
+        reservationDTO.setRoomId(newRoom.getId())
+
+        Reservation oldReservation = new Reservation()
+        oldReservation.setId(reservationId)
+        oldReservation.setStartDate(LocalDate.now().plusDays(2))
+        oldReservation.setEndDate(LocalDate.now().plusDays(4))
+        oldReservation.setMail("old@old.com")
+        oldReservation.setRoom(oldRoom)
+
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(
+                new Booking(reservationId, oldRoom.getId(), oldReservation.getStartDate(), oldReservation.getEndDate())))
+        when:
+        reservationService.editReservation(reservationDTO)
+        then:
+        1*reservationRepository.lockReservation(reservationId) >> 7L
+        then:
+        1*roomRepository.lockRoom(3) >> 3L
+        then:
+        1*roomRepository.lockRoom(7) >> 7L
+        then:
+        1*reservationRepository.findOne(reservationId) >> oldReservation
+        then:
+        1*roomRepository.findOne(3) >> newRoom
+        1*reservationRepository.save(_) >> { Reservation reservation -> reservation }
+        availabilityIndex.isFree(7, LocalDate.now().plusDays(2), LocalDate.now().plusDays(4), null)
+        !availabilityIndex.isFree(3, LocalDate.now().plusDays(2), LocalDate.now().plusDays(4), null)
+    }
+
+    def "should throw ConflictException when reservation made through other node overlaps"() {
+        given:
+        long roomId = 5
+        Room room = new Room()
+        room.setId(roomId)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setMail("test@test.com")
+        reservationDTO.setRoomId(roomId)
+        when:
+        reservationService.makeReservation(reservationDTO)
+        then:
+        1*roomRepository.lockRoom(roomId) >> roomId
+        1*roomRepository.findOne(roomId) >> room
+        1*reservationRepository.findBookingsOverlappingForUpdate({ it as List == [roomId] }, reservationDTO.getStartDate(), reservationDTO.getEndDate()) >>
+                [new Booking(7L, roomId, LocalDate.now().plusDays(3), LocalDate.now().plusDays(5))]
+        0*reservationRepository.save(_)
+        1*counterService.increment(ReservationService.CONFLICT_OVERLAP_COUNTER)
+        thrown(ConflictException)
+        availabilityIndex.isFree(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+    }
+
+    def "should check overlaps only in index when node is the only one writing"() {
+        given:
+        ReservationService singleNodeService = new ReservationService(reservationRepository, roomRepository, availabilityIndex,
+                entityManager, mailDispatcher, roomService, counterService, resourceVersions, ShardRouter.single(), jobPartitions, 1000, false)
+        long roomId = 5
+        Room room = new Room()
+        room.setId(roomId)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setMail("test@test.com")
+        reservationDTO.setRoomId(roomId)
+        when:
+        singleNodeService.makeReservation(reservationDTO)
+        then:
+        1*roomRepository.lockRoom(roomId) >> roomId
+        1*roomRepository.findOne(roomId) >> room
+        0*reservationRepository.findBookingsOverlappingForUpdate(*_)
+        1*reservationRepository.save(_) >> { args -> args[0].setId(10L); args[0] }
+    }
+
+    def "should release booked date range when saving reservation fails"() {
+        given:
+        int roomId = 5
+        Room room = new Room()
+        room.setId(roomId)
+        room.setIsReserved(false)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setMail("test@test.com")
+        reservationDTO.setRoomId(roomId)
+        when:
+        reservationService.makeReservation(reservationDTO)
+        then:
+        1*roomRepository.lockRoom(roomId) >> roomId
+        1*roomRepository.findOne(roomId) >> room
+        1*reservationRepository.save(_) >> { throw new CannotAcquireLockException("lock") }
+        thrown(CannotAcquireLockException)
+        availabilityIndex.isFree(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+    }
+
+    def "should allocate room the date range fits best skipping rooms which are gone"() {
+        given:
+        LocalDate today = LocalDate.now()
+        Room room = new Room()
+        room.setId(2)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(today.plusDays(2))
+        reservationDTO.setEndDate(today.plusDays(4))
+        reservationDTO.setMail("test@test.com")
+        availabilityIndex.load([1L, 2L, 3L], [new Booking(1L, 1L, today.plusDays(4), today.plusDays(6)),
+                                              new Booking(2L, 2L, today.plusDays(5), today.plusDays(6)),
+                                              new Booking(3L, 3L, today.plusDays(20), today.plusDays(22))])
+        when:
+        Reservation result = reservationService.allocateReservation(reservationDTO)
+        then:
+        1*roomRepository.lockRoom(1L) >> null
+        1*roomRepository.lockRoom(2L) >> 2L
+        0*roomRepository.lockRoom(3L)
+        1*roomRepository.findOne(2L) >> room
+        1*reservationRepository.save({ it.room == room }) >> { args -> args[0].setId(10L); args[0] }
+        result.id == 10L
+        availabilityIndex.isFree(1L, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+        !availabilityIndex.isFree(2L, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+    }
+
+    def "should fail allocation without locking other rooms when best one was booked through other node"() {
+        given:
+        LocalDate today = LocalDate.now()
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(today.plusDays(2))
+        reservationDTO.setEndDate(today.plusDays(4))
+        availabilityIndex.load([1L, 2L], [new Booking(1L, 1L, today.plusDays(4), today.plusDays(6))])
+        when:
+        reservationService.allocateReservation(reservationDTO)
+        then:
+        1*roomRepository.lockRoom(1L) >> 1L
+        1*reservationRepository.findBookingsOverlappingForUpdate({ it as List == [1L] }, *_) >> [new Booking(9L, 1L, today.plusDays(1), today.plusDays(3))]
+        0*roomRepository.lockRoom(2L)
+        0*reservationRepository.save(_)
+        1*counterService.increment(ReservationService.CONFLICT_OVERLAP_COUNTER)
+        thrown(ConflictException)
+        availabilityIndex.isFree(1L, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+        availabilityIndex.isFree(2L, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+    }
+
+    def "should allocate only rooms of property of request when sharded without reading other rooms"() {
+        given:
+        LocalDate today = LocalDate.now()
+        ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+        ReservationService shardedService = new ReservationService(reservationRepository, roomRepository, availabilityIndex,
+                entityManager, mailDispatcher, roomService, counterService, resourceVersions, router, jobPartitions, 1000, false)
+        Room room = new Room()
+        room.setId(3)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(today.plusDays(2))
+        reservationDTO.setEndDate(today.plusDays(4))
+        availabilityIndex.load([], [])
+        availabilityIndex.addRoom(1L, 1L)
+        availabilityIndex.addRoom(2L, 1L)
+        availabilityIndex.addRoom(3L, 2L)
+        availabilityIndex.commit(availabilityIndex.tryBook(2L, today, today.plusDays(3), null), 1L)
+        when:
+        Reservation result = ShardContext.callForProperty(2L, { shardedService.allocateReservation(reservationDTO) })
+        then:
+        0*roomRepository.findAll(_)
+        0*roomRepository.lockRoom(1L)
+        1*roomRepository.lockRoom(3L) >> 3L
+        1*roomRepository.findOne(3L) >> room
+        1*reservationRepository.save({ it.room == room }) >> { args -> args[0].setId(10L); args[0] }
+        result.id == 10L
+        cleanup:
+        router.stop()
+    }
+
+    def "should throw ConflictException when no room is free for allocation"() {
+        given:
+        LocalDate today = LocalDate.now()
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(today.plusDays(2))
+        reservationDTO.setEndDate(today.plusDays(4))
+        availabilityIndex.load([1L], [new Booking(1L, 1L, today.plusDays(3), today.plusDays(6))])
+        when:
+        reservationService.allocateReservation(reservationDTO)
+        then:
+        0*roomRepository.lockRoom(_)
+        1*counterService.increment(ReservationService.CONFLICT_NO_FREE_ROOM_COUNTER)
+        ConflictException e = thrown()
+        e.getMessage() == "There is no room free for desired date range."
+    }
+
+    def "should hold date range without saving anything and block it for reservations"() {
+        given:
+        int roomId = 5
+        Room room = new Room()
+        room.setId(roomId)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setRoomId(roomId)
+        when:
+        Booking booking = reservationService.holdDateRange(reservationDTO)
+        then:
+        1*roomRepository.findOne(roomId) >> room
+        0*reservationRepository.save(_)
+        booking.getReservationId() == null
+        when:
+        reservationService.holdDateRange(reservationDTO)
+        then:
+        1*roomRepository.findOne(roomId) >> room
+        ConflictException e = thrown()
+        e.getMessage() == "Reservation for this room is already created for desired date range."
+    }
+
+    def "should save confirmed hold committing its booking"() {
+        given:
+        int roomId = 5
+        Room room = new Room()
+        room.setId(roomId)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setMail("test@test.com")
+        reservationDTO.setRoomId(roomId)
+        Booking pending = availabilityIndex.tryBook(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+        Reservation saved = new Reservation()
+        saved.setId(3)
+        when:
+        Reservation result = reservationService.confirmHold(reservationDTO, pending)
+        then:
+        1*roomRepository.lockRoom(roomId) >> roomId
+        1*roomRepository.findOne(roomId) >> room
+        1*reservationRepository.save({ Reservation reservation -> reservation.getRoom() == room && reservation.getMail() == "test@test.com" }) >> saved
+        result == saved
+        availabilityIndex.size() == 1
+        !availabilityIndex.isFree(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), 4L)
+    }
+
+    def "should release held date range when it was booked through other node"() {
+        given:
+        long roomId = 5
+        Room room = new Room()
+        room.setId(roomId)
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setRoomId(roomId)
+        Booking pending = availabilityIndex.tryBook(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+        when:
+        reservationService.confirmHold(reservationDTO, pending)
+        then:
+        1*roomRepository.lockRoom(roomId) >> roomId
+        1*roomRepository.findOne(roomId) >> room
+        1*reservationRepository.findBookingsOverlappingForUpdate(*_) >> [new Booking(7L, roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate())]
+        0*reservationRepository.save(_)
+        thrown(ConflictException)
+        availabilityIndex.isFree(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+    }
+
+    def "should release held date range when room of confirmed hold is gone"() {
+        given:
+        int roomId = 5
+        ReservationDTO reservationDTO = new ReservationDTO()
+        reservationDTO.setStartDate(LocalDate.now().plusDays(2))
+        reservationDTO.setEndDate(LocalDate.now().plusDays(4))
+        reservationDTO.setRoomId(roomId)
+        Booking pending = availabilityIndex.tryBook(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+        when:
+        reservationService.confirmHold(reservationDTO, pending)
+        then:
+        1*roomRepository.lockRoom(roomId) >> null
+        thrown(NotFoundException)
+        availabilityIndex.isFree(roomId, reservationDTO.getStartDate(), reservationDTO.getEndDate(), null)
+    }
+
+    def "should make batch of reservations reporting result of every item"() {
+        given:
+        Room room = new Room()
+        room.setId(5)
+        List<ReservationDTO> reservationDTOs = new ArrayList<>()
+        for (int i = 0; i < 5; i++) {
+            ReservationDTO reservationDTO = new ReservationDTO()
+            reservationDTO.setStartDate(LocalDate.now().plusDays(2 + i))
+            reservationDTO.setEndDate(LocalDate.now().plusDays(4 + i))
+            reservationDTO.setMail("test@test.com")
+            reservationDTO.setRoomId(5)
+            reservationDTOs.add(reservationDTO)
+        }
+        reservationDTOs[2].setStartDate(LocalDate.now().plusDays(20))
+        reservationDTOs[3].setRoomId(6)
+        reservationDTOs[4].setEndDate(LocalDate.now().plusDays(1))
+        when:
+        List<BatchReservationResultDTO> results = reservationService.makeReservations(reservationDTOs)
+        then:
+        1*roomRepository.findAllForUpdate(new TreeSet<>([5L, 6L])) >> [room]
+        1*reservationRepository.insertAll({ it.size() == 1 }) >> { arguments ->
+            List<Reservation> reservations = arguments[0]
+            reservations[0].setId(10)
+            reservations
+        }
+        0*reservationRepository.save(_)
+        results*.status == [BatchReservationResultDTO.Status.CREATED, BatchReservationResultDTO.Status.CONFLICT,
+                            BatchReservationResultDTO.Status.CONFLICT, BatchReservationResultDTO.Status.NOT_FOUND,
+                            BatchReservationResultDTO.Status.CONFLICT]
+        results[0].reservation.id == 10
+        results[1].message == "Reservation for this room is already created for desired date range."
+        results[2].message == "Date range input is wrong."
+        results[3].message == "No room by id:6 found."
+        availabilityIndex.size() == 1
+        availabilityIndex.isFree(5, LocalDate.now().plusDays(4), LocalDate.now().plusDays(20), null)
+    }
+
+    def "should reject batch items overlapping reservations made through other node"() {
+        given:
+        Room room = new Room()
+        room.setId(5)
+        List<ReservationDTO> reservationDTOs = [2, 6].collect { int start ->
+            ReservationDTO reservationDTO = new ReservationDTO()
+            reservationDTO.setStartDate(LocalDate.now().plusDays(start))
+            reservationDTO.setEndDate(LocalDate.now().plusDays(start + 2))
+            reservationDTO.setRoomId(5)
+            reservationDTO
+        }
+        when:
+        List<BatchReservationResultDTO> results = reservationService.makeReservations(reservationDTOs)
+        then:
+        1*roomRepository.findAllForUpdate(_) >> [room]
+        1*reservationRepository.findBookingsOverlappingForUpdate({ it as List == [5L] }, LocalDate.now().plusDays(2), LocalDate.now().plusDays(8)) >>
+                [new Booking(7L, 5L, LocalDate.now().plusDays(3), LocalDate.now().plusDays(4))]
+        1*reservationRepository.insertAll({ it.size() == 1 }) >> { arguments -> arguments[0][0].setId(10L); arguments[0] }
+        results*.status == [BatchReservationResultDTO.Status.CONFLICT, BatchReservationResultDTO.Status.CREATED]
+    }
+
+    def "should mail about reservations starting tomorrow through partitioned job"() {
+        when:
+        reservationService.setReservedForRooms()
+        then:
+        1*roomRepository.findMaxId() >> 2500L
+        1*jobPartitions.run(ReservationService.MAIL_JOB, LocalDate.now().plusDays(1), 2500L) >> [2, 1]
+    }
+
+    def "should queue mails for reservations starting on date in chunk of rooms"() {
+        given:
+        LocalDate tomorrow = LocalDate.now().plusDays(1)
+        List<String> mails = ["first@test.com", "second@test.com", "third@test.com"]
+        when:
+        int queued = reservationService.queueMails(tomorrow, 1L, 1000L)
+        then:
+        1*reservationRepository.findMailsByStartDateForRooms(tomorrow, 1L, 1000L) >> mails
+        then:
+        1*mailDispatcher.dispatch("first@test.com") >> true
+        1*mailDispatcher.dispatch("second@test.com") >> false
+        1*mailDispatcher.dispatch("third@test.com") >> true
+        queued == 2
+    }
+
+    def "should revise rooms availability and evict ended reservations from index"() {
+        given:
+        LocalDate today = LocalDate.now()
+        RevisionReportDTO report = new RevisionReportDTO()
+        availabilityIndex.load(Collections.emptyList(), [new Booking(1L, 1L, today.minusDays(2), today),
+                                                         new Booking(2L, 1L, today, today.plusDays(2))])
+        when:
+        RevisionReportDTO result = reservationService.reviseRoomsAvailability()
+        then:
+        1*roomService.reviseAvailability(today) >> report
+        result == report
+        availabilityIndex.size() == 1
     }
 }
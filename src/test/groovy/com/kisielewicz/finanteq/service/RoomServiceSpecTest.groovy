@@ -1,15 +1,30 @@
 package com.kisielewicz.finanteq.service
 
+import com.kisielewicz.finanteq.availability.Booking
+import com.kisielewicz.finanteq.availability.RoomAvailabilityIndex
 import com.kisielewicz.finanteq.domain.Room
+import com.kisielewicz.finanteq.exceptions.ConflictException
 import com.kisielewicz.finanteq.exceptions.NotFoundException
+import com.kisielewicz.finanteq.helpers.JobPartitions
+import com.kisielewicz.finanteq.helpers.ResourceVersions
+import com.kisielewicz.finanteq.repository.ReservationRepository
 import com.kisielewicz.finanteq.repository.RoomRepository
+import com.kisielewicz.finanteq.dto.RevisionReportDTO
 import spock.lang.Specification
 
+import java.time.LocalDate
+
 class RoomServiceSpecTest extends Specification {
 
     private final RoomRepository roomRepository = Mock(RoomRepository)
 
-    private final RoomService roomService = new RoomService(roomRepository)
+    private final RoomAvailabilityIndex availabilityIndex = new RoomAvailabilityIndex(Mock(ReservationRepository), roomRepository, 365)
+
+    private final JobPartitions jobPartitions = Mock(JobPartitions)
+
+    private final ResourceVersions resourceVersions = Mock(ResourceVersions)
+
+    private final RoomService roomService = new RoomService(roomRepository, availabilityIndex, jobPartitions, 100, resourceVersions)
 
     def "should return all rooms made"() {
         given:
@@ -103,6 +118,7 @@ class RoomServiceSpecTest extends Specification {
         Room result = roomService.addNewRoom()
         then:
         1*roomRepository.save(_) >> room
+        1*resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.ROOMS)
         result == room
         result.id == room.id
     }
@@ -113,11 +129,15 @@ class RoomServiceSpecTest extends Specification {
         Room room = new Room()
         room.setId(1)
         room.setIsReserved(false)
+        availabilityIndex.load(Collections.emptyList(), Collections.singletonList(
+                new Booking(1, roomId, LocalDate.now().plusDays(1), LocalDate.now().plusDays(3))))
         when:
         roomService.deleteRoom(roomId)
         then:
-        1*roomRepository.exists(roomId) >> true
+        1*roomRepository.lockRoom(roomId) >> roomId
         1*roomRepository.delete(roomId)
+        1*resourceVersions.bumpAfterTransaction(ResourceVersions.Resource.ROOMS, ResourceVersions.Resource.RESERVATIONS)
+        availabilityIndex.size() == 0
     }
 
     def "should throw NotFoundException when deleting room because of no room in db"() {
@@ -126,7 +146,7 @@ class RoomServiceSpecTest extends Specification {
         when:
         roomService.deleteRoom(roomId)
         then:
-        1*roomRepository.exists(roomId) >> false
+        1*roomRepository.lockRoom(roomId) >> null
         0*roomRepository.delete(roomId)
         NotFoundException e = thrown()
         e.getMessage() == "No room by id:1 found."
@@ -144,8 +164,8 @@ class RoomServiceSpecTest extends Specification {
         when:
         Room result = roomService.setAvailability(roomId, false)
         then:
-        1*roomRepository.exists(roomId) >> true
-        1*roomRepository.findOne(roomId) >> room
+        1*roomRepository.findOneForUpdate(roomId) >> room
+        0*roomRepository.findOne(_)
         1*roomRepository.save(room) >> shouldResult
         result.getIsReserved() == shouldResult.getIsReserved()
     }
@@ -156,11 +176,88 @@ class RoomServiceSpecTest extends Specification {
         when:
         roomService.deleteRoom(roomId)
         then:
-        1*roomRepository.exists(roomId) >> false
+        1*roomRepository.lockRoom(roomId) >> null
         0*roomRepository.findOne(roomId)
         0*roomRepository.save(_)
         NotFoundException e = thrown()
         e.getMessage() == "No room by id:1 found."
     }
 
+    def "should throw NotFoundException when setting availability of room locked for update which isn't in db"() {
+        given:
+        int roomId = 1
+        when:
+        roomService.setAvailability(roomId, true)
+        then:
+        1*roomRepository.findOneForUpdate(roomId) >> null
+        0*roomRepository.save(_)
+        NotFoundException e = thrown()
+        e.getMessage() == "No room by id:1 found."
+    }
+
+    def "should return rooms free in date range"() {
+        given:
+        Room room = new Room()
+        room.setId(2)
+        room.setIsReserved(false)
+        availabilityIndex.load([1L, 2L], Collections.singletonList(
+                new Booking(1, 1L, LocalDate.now().plusDays(1), LocalDate.now().plusDays(3))))
+        when:
+        Iterable<Room> result = roomService.getFreeRooms(LocalDate.now(), LocalDate.now().plusDays(2))
+        then:
+        1*roomRepository.findAll([2L]) >> [room]
+        result == [room]
+    }
+
+    def "should throw ConflictException when looking for free rooms with wrong date range"() {
+        when:
+        roomService.getFreeRooms(LocalDate.now().plusDays(2), LocalDate.now())
+        then:
+        0*roomRepository.findAll(_)
+        ConflictException e = thrown()
+        e.getMessage() == "Date range input is wrong."
+    }
+
+    def "should register revision as partitioned job in chunks of room ids"() {
+        when:
+        roomService.registerJobs()
+        then:
+        1*jobPartitions.register(RoomService.REVISION_JOB, 100, _)
+    }
+
+    def "should sum up chunks of rooms revised by this node"() {
+        given:
+        LocalDate date = LocalDate.of(2030, 1, 1)
+        when:
+        RevisionReportDTO report = roomService.reviseAvailability(date)
+        then:
+        1*roomRepository.findMaxId() >> 250L
+        1*jobPartitions.run(RoomService.REVISION_JOB, date, 250L) >> [chunk(2, 1), chunk(0, 4), chunk(1, 0)]
+        report.date == date
+        report.roomsReleased == 3
+        report.roomsReserved == 5
+        report.chunks == 3
+    }
+
+    def "should release rooms before reserving them when revising chunk of rooms"() {
+        given:
+        LocalDate date = LocalDate.of(2030, 1, 1)
+        when:
+        RevisionReportDTO report = roomService.reviseChunk(date, 101L, 200L)
+        then:
+        1*roomRepository.releaseRoomsWithReservationsEndingOn(date, 101L, 200L) >> 2
+        then:
+        1*roomRepository.reserveRoomsWithReservationsStartingOn(date, 101L, 200L) >> 4
+        report.roomsReleased == 2
+        report.roomsReserved == 4
+        report.chunks == 1
+    }
+
+    private static RevisionReportDTO chunk(int released, int reserved) {
+        RevisionReportDTO chunk = new RevisionReportDTO()
+        chunk.setRoomsReleased(released)
+        chunk.setRoomsReserved(reserved)
+        chunk.setChunks(1)
+        chunk
+    }
 }
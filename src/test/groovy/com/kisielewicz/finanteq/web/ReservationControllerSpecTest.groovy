@@ -1,8 +1,178 @@
 package com.kisielewicz.finanteq.web
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.kisielewicz.finanteq.datasource.ShardContext
+import com.kisielewicz.finanteq.datasource.ShardRouter
+import com.kisielewicz.finanteq.domain.Reservation
+import com.kisielewicz.finanteq.dto.ReservationDTO
+import com.kisielewicz.finanteq.dto.ReservationSummaryDTO
+import com.kisielewicz.finanteq.exceptions.BadRequestException
+import com.kisielewicz.finanteq.exceptions.ConflictException
+import com.kisielewicz.finanteq.helpers.IdempotencyStore
+import com.kisielewicz.finanteq.helpers.ResourceVersions
+import com.kisielewicz.finanteq.service.HoldService
+import com.kisielewicz.finanteq.service.ImportService
+import com.kisielewicz.finanteq.service.OccupancyService
+import com.kisielewicz.finanteq.service.ReservationService
+import org.springframework.http.HttpStatus
+import org.springframework.http.ResponseEntity
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.web.context.request.WebRequest
 import spock.lang.Specification
 
+import java.time.LocalDate
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executor
+import java.util.concurrent.RejectedExecutionException
+
 class ReservationControllerSpecTest extends Specification {
 
+    private final ReservationService reservationService = Mock(ReservationService)
+    private final IdempotencyStore idempotencyStore = Mock(IdempotencyStore)
+    private final List<Runnable> writes = []
+    private final Executor writeExecutor = { Runnable write -> writes << write } as Executor
+
+    private final ReservationController reservationController = new ReservationController(reservationService,
+            new ObjectMapper(), Mock(ResourceVersions), Mock(OccupancyService), writeExecutor,
+            idempotencyStore, Mock(HoldService), Mock(ImportService), ShardRouter.single())
+
+    def "should make reservation on write executor"() {
+        given:
+        ReservationDTO reservationDTO = new ReservationDTO()
+        Reservation reservation = new Reservation()
+        when:
+        CompletableFuture<Reservation> result = reservationController.makeReservation(reservationDTO, null)
+        then:
+        0*reservationService.makeReservation(_)
+        !result.isDone()
+        when:
+        writes.each { it.run() }
+        then:
+        1*reservationService.makeReservation(reservationDTO) >> reservation
+        result.get() == reservation
+    }
+
+    def "should complete write with exception thrown by service"() {
+        when:
+        CompletableFuture<ResponseEntity> result = reservationController.cancelReservation(1L, null)
+        writes.each { it.run() }
+        result.get()
+        then:
+        1*reservationService.cancelReservation(1L) >> { throw new ConflictException("Reservation can't be cancelled.") }
+        ExecutionException e = thrown()
+        e.getCause() instanceof ConflictException
+    }
+
+    def "should cancel reservation with OK status"() {
+        when:
+        CompletableFuture<ResponseEntity> result = reservationController.cancelReservation(1L, null)
+        writes.each { it.run() }
+        then:
+        1*reservationService.cancelReservation(1L)
+        result.get().getStatusCode() == HttpStatus.OK
+    }
+
+    def "should reject write right away when write executor is full"() {
+        given:
+        ReservationController busyController = new ReservationController(reservationService, new ObjectMapper(),
+                Mock(ResourceVersions), Mock(OccupancyService), { throw new RejectedExecutionException("full") } as Executor,
+                idempotencyStore, Mock(HoldService), Mock(ImportService), ShardRouter.single())
+        when:
+        busyController.editReservation(new ReservationDTO(), null)
+        then:
+        thrown(RejectedExecutionException)
+        0*reservationService.editReservation(_)
+    }
+
+    def "should pass writes with idempotency key through idempotency store"() {
+        given:
+        ReservationDTO reservationDTO = new ReservationDTO()
+        CompletableFuture<Reservation> stored = CompletableFuture.completedFuture(new Reservation())
+        when:
+        CompletableFuture<Reservation> result = reservationController.makeReservation(reservationDTO, "key")
+        then:
+        1*idempotencyStore.execute("make", "key", reservationDTO, Reservation, _) >> stored
+        0*reservationService.makeReservation(_)
+        result == stored
+    }
+
+    def "should tag summaries with reservations version only and reservation details with rooms version too"() {
+        given:
+        ResourceVersions resourceVersions = Mock(ResourceVersions)
+        ReservationController taggedController = new ReservationController(reservationService, new ObjectMapper(),
+                resourceVersions, Mock(OccupancyService), writeExecutor, idempotencyStore, Mock(HoldService),
+                Mock(ImportService), ShardRouter.single())
+        WebRequest request = Mock(WebRequest)
+        when:
+        List<ReservationSummaryDTO> summaries = taggedController.getAllReservations(null, null, request)
+        then:
+        1*resourceVersions.etag(ResourceVersions.Resource.RESERVATIONS) >> '"5"'
+        1*request.checkNotModified('"5"') >> true
+        summaries == null
+        when:
+        taggedController.getReservationDetails(1L, request)
+        then:
+        1*resourceVersions.etag(ResourceVersions.Resource.RESERVATIONS, ResourceVersions.Resource.ROOMS) >> '"5-3"'
+        1*request.checkNotModified('"5-3"') >> true
+        0*reservationService.getReservation(_)
+    }
+
+    def "should leave exported array open when export fails halfway"() {
+        given:
+        MockHttpServletResponse response = new MockHttpServletResponse()
+        reservationService.exportReservations(_) >> { args ->
+            args[0].accept(new Reservation(id: 1L, mail: "a@test.com"))
+            throw new IllegalStateException("database down")
+        }
+        when:
+        reservationController.exportReservations(response)
+        then:
+        thrown(IllegalStateException)
+        response.getContentAsString().startsWith('[{"id":1')
+        !response.getContentAsString().endsWith("]")
+    }
+
+    def "should read reservations of room and reservation by id from every shard without Property-Id"() {
+        given:
+        ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+        ReservationController shardedController = new ReservationController(reservationService, new ObjectMapper(),
+                Mock(ResourceVersions), Mock(OccupancyService), writeExecutor, idempotencyStore, Mock(HoldService),
+                Mock(ImportService), router)
+        Reservation reservation = new Reservation(id: 4L)
+        reservationService.getAllReservationsForRoom(3L) >> {
+            ShardContext.currentProperty() == 2L ? [new ReservationSummaryDTO(4L, 3L, LocalDate.now(), LocalDate.now().plusDays(1))] : []
+        }
+        reservationService.getReservation(4L) >> { ShardContext.currentProperty() == 2L ? reservation : null }
+        expect:
+        shardedController.getReservationsForRoom(3L, null, null, Mock(WebRequest))*.id == [4L]
+        shardedController.getReservationDetails(4L, Mock(WebRequest)) == reservation
+        cleanup:
+        router.stop()
+    }
 
+    def "should refuse export and occupancy without Property-Id when properties are sharded"() {
+        given:
+        ShardRouter router = new ShardRouter([1L: "a", 2L: "b"])
+        OccupancyService occupancyService = Mock(OccupancyService)
+        ReservationController shardedController = new ReservationController(reservationService, new ObjectMapper(),
+                Mock(ResourceVersions), occupancyService, writeExecutor, idempotencyStore, Mock(HoldService),
+                Mock(ImportService), router)
+        when:
+        shardedController.exportReservations(new MockHttpServletResponse())
+        then:
+        thrown(BadRequestException)
+        0*reservationService.exportReservations(_)
+        when:
+        shardedController.getOccupancy(LocalDate.now(), LocalDate.now().plusDays(1), Mock(WebRequest))
+        then:
+        thrown(BadRequestException)
+        0*occupancyService.getOccupancy(*_)
+        when:
+        ShardContext.callForProperty(2L, { shardedController.getOccupancy(LocalDate.now(), LocalDate.now().plusDays(1), Mock(WebRequest)) })
+        then:
+        1*occupancyService.getOccupancy(*_)
+        cleanup:
+        router.stop()
+    }
 }
@@ -0,0 +1,288 @@
+package com.kisielewicz.finanteq;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kisielewicz.finanteq.domain.Reservation;
+import com.kisielewicz.finanteq.domain.Room;
+import com.kisielewicz.finanteq.dto.ReservationDTO;
+import com.kisielewicz.finanteq.repository.ReservationRepository;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.IfProfileValue;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Load test firing concurrent make, edit, cancel and search requests at the REST endpoints of the application
+ * running on an embedded H2 database. Reports latency percentiles, throughput, conflict rate and other rejections
+ * per endpoint and checks that no two stored reservations of a room overlap afterwards.
+ *
+ * Skipped unless run with {@code -Dloadtest=true}, e.g.
+ * {@code mvn test -Dtest=ConcurrentBookingLoadTests -Dloadtest=true -Dloadtest.threads=32}.
+ * Other settings: {@code loadtest.duration-seconds}, {@code loadtest.rooms} and {@code loadtest.days},
+ * the last being how many days ahead reservations are made - fewer days means more conflicts.
+ */
+@RunWith(SpringRunner.class)
+@IfProfileValue(name = "loadtest", value = "true")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.datasource.url=jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1",
+        "spring.datasource.driver-class-name=org.h2.Driver",
+        "spring.datasource.username=sa",
+        "spring.datasource.password=sa",
+        "spring.datasource.tomcat.max-active=100",
+        "spring.jpa.database=H2",
+        "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+        "spring.jpa.hibernate.ddl-auto=none",
+        "logging.level.com.kisielewicz.finanteq=WARN"})
+public class ConcurrentBookingLoadTests {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentBookingLoadTests.class);
+
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 16);
+    private static final int DURATION_SECONDS = Integer.getInteger("loadtest.duration-seconds", 30);
+    private static final int ROOMS = Integer.getInteger("loadtest.rooms", 20);
+    private static final int DAYS = Integer.getInteger("loadtest.days", 60);
+    private static final int MAX_STAY_DAYS = 5;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private ReservationRepository reservationRepository;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Long> reservationIds = new ConcurrentLinkedQueue<>();
+    private final List<Long> roomIds = new ArrayList<>();
+
+    @Test
+    public void shouldNotDoubleBookRoomsUnderConcurrentTraffic() throws InterruptedException {
+        prepareRooms();
+        LOGGER.warn("Running load test with {} threads for {} seconds against {} rooms over {} days",
+                THREADS, DURATION_SECONDS, roomIds.size(), DAYS);
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(DURATION_SECONDS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            executor.submit(() -> {
+                while (System.nanoTime() < deadline) {
+                    try {
+                        fireRandomRequest();
+                    } catch (Exception e) {
+                        LOGGER.error("Load test request failed", e);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(DURATION_SECONDS + 60, TimeUnit.SECONDS)).isTrue();
+        report(System.nanoTime() - start);
+
+        List<String> overlaps = findOverlappingReservations();
+        assertThat(overlaps).isEmpty();
+        assertThat(stats.get("make").succeeded.get()).isGreaterThan(0);
+        // mostly rejected requests - e.g. rate limited with 429 - measure nothing of the booking path
+        stats.forEach((endpoint, endpointStats) -> assertThat(endpointStats.otherClientErrors.get())
+                .as("other 4xx responses of %s", endpoint)
+                .isLessThanOrEqualTo(endpointStats.latencies.size() / 2));
+    }
+
+    private void prepareRooms() {
+        Room[] existingRooms = restTemplate.getForObject("/rooms/all", Room[].class);
+        for (Room room : existingRooms) {
+            roomIds.add(room.getId());
+        }
+        while (roomIds.size() < ROOMS) {
+            roomIds.add(restTemplate.postForObject("/rooms/add", null, Room.class).getId());
+        }
+    }
+
+    private void fireRandomRequest() throws IOException {
+        int dice = ThreadLocalRandom.current().nextInt(100);
+        if (dice < 40) {
+            make();
+        } else if (dice < 55) {
+            edit();
+        } else if (dice < 70) {
+            cancel();
+        } else if (dice < 85) {
+            searchFreeRooms();
+        } else {
+            searchUpcomingForRoom();
+        }
+    }
+
+    private void make() throws IOException {
+        ResponseEntity<String> response = timed("make",
+                () -> restTemplate.postForEntity("/reservations/make", randomReservation(null), String.class));
+        if (response.getStatusCode() == HttpStatus.OK) {
+            reservationIds.add(objectMapper.readValue(response.getBody(), Reservation.class).getId());
+        }
+    }
+
+    private void edit() {
+        Long reservationId = reservationIds.poll();
+        if (reservationId == null) {
+            return;
+        }
+        HttpEntity<ReservationDTO> request = new HttpEntity<>(randomReservation(reservationId));
+        ResponseEntity<String> response = timed("edit",
+                () -> restTemplate.exchange("/reservations/edit", HttpMethod.PUT, request, String.class));
+        if (response.getStatusCode() != HttpStatus.NOT_FOUND) {
+            reservationIds.add(reservationId);
+        }
+    }
+
+    private void cancel() {
+        Long reservationId = reservationIds.poll();
+        if (reservationId == null) {
+            return;
+        }
+        ResponseEntity<String> response = timed("cancel", () -> restTemplate.exchange(
+                "/reservations/cancel/{reservationId}", HttpMethod.DELETE, null, String.class, reservationId));
+        if (response.getStatusCode() != HttpStatus.OK && response.getStatusCode() != HttpStatus.NOT_FOUND) {
+            reservationIds.add(reservationId);
+        }
+    }
+
+    private void searchFreeRooms() {
+        LocalDate from = randomStartDate();
+        timed("free rooms", () -> restTemplate.getForEntity("/rooms/free?from={from}&to={to}", String.class,
+                from, from.plusDays(1 + ThreadLocalRandom.current().nextInt(MAX_STAY_DAYS))));
+    }
+
+    private void searchUpcomingForRoom() {
+        timed("upcoming for room", () -> restTemplate.getForEntity("/reservations/upcoming/room/{roomId}/date/{forDate}",
+                String.class, randomRoomId(), LocalDate.now()));
+    }
+
+    private ReservationDTO randomReservation(Long reservationId) {
+        ReservationDTO reservationDTO = new ReservationDTO();
+        reservationDTO.setReservationId(reservationId);
+        reservationDTO.setRoomId(randomRoomId());
+        reservationDTO.setStartDate(randomStartDate());
+        reservationDTO.setEndDate(reservationDTO.getStartDate().plusDays(1 + ThreadLocalRandom.current().nextInt(MAX_STAY_DAYS)));
+        reservationDTO.setMail("loadtest@mail.com");
+        return reservationDTO;
+    }
+
+    private Long randomRoomId() {
+        return roomIds.get(ThreadLocalRandom.current().nextInt(roomIds.size()));
+    }
+
+    private LocalDate randomStartDate() {
+        return LocalDate.now().plusDays(1 + ThreadLocalRandom.current().nextInt(DAYS));
+    }
+
+    private <T> ResponseEntity<T> timed(String endpoint, Supplier<ResponseEntity<T>> request) {
+        long start = System.nanoTime();
+        ResponseEntity<T> response = request.get();
+        stats.computeIfAbsent(endpoint, name -> new EndpointStats()).record(System.nanoTime() - start, response.getStatusCode());
+        return response;
+    }
+
+    private void report(long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        StringBuilder report = new StringBuilder(String.format("%n%-20s %10s %10s %10s %12s %10s %10s %10s%n",
+                "endpoint", "requests", "p50 [ms]", "p99 [ms]", "throughput", "409 rate", "other 4xx", "errors"));
+        new TreeMap<>(stats).forEach((endpoint, endpointStats) -> {
+            List<Long> latencies = endpointStats.sortedLatencies();
+            report.append(String.format("%-20s %10d %10.2f %10.2f %10.1f/s %9.1f%% %10d %10d%n", endpoint, latencies.size(),
+                    percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6, latencies.size() / elapsedSeconds,
+                    100.0 * endpointStats.conflicts.get() / latencies.size(), endpointStats.otherClientErrors.get(),
+                    endpointStats.errors.get()));
+        });
+        LOGGER.warn("Load test finished in {} seconds:{}", String.format("%.1f", elapsedSeconds), report);
+    }
+
+    private List<String> findOverlappingReservations() {
+        Map<Long, List<Reservation>> reservationsByRoom = new TreeMap<>();
+        for (Reservation reservation : reservationRepository.findAll()) {
+            reservationsByRoom.computeIfAbsent(reservation.getRoom().getId(), id -> new ArrayList<>()).add(reservation);
+        }
+        List<String> overlaps = new ArrayList<>();
+        reservationsByRoom.forEach((roomId, reservations) -> {
+            reservations.sort(Comparator.comparing(Reservation::getStartDate));
+            for (int i = 1; i < reservations.size(); i++) {
+                Reservation previous = reservations.get(i - 1);
+                Reservation next = reservations.get(i);
+                if (next.getStartDate().isBefore(previous.getEndDate())) {
+                    overlaps.add(String.format("room %s: reservation %s (%s - %s) overlaps %s (%s - %s)", roomId,
+                            previous.getId(), previous.getStartDate(), previous.getEndDate(),
+                            next.getId(), next.getStartDate(), next.getEndDate()));
+                }
+            }
+        });
+        LOGGER.warn("Checked {} reservations in {} rooms, found {} overlaps",
+                reservationsByRoom.values().stream().mapToInt(List::size).sum(), reservationsByRoom.size(), overlaps.size());
+        return overlaps;
+    }
+
+    private static long percentile(List<Long> sortedLatencies, int percentile) {
+        if (sortedLatencies.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.size()) - 1;
+        return sortedLatencies.get(Math.max(index, 0));
+    }
+
+    private static final class EndpointStats {
+
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+        private final AtomicLong otherClientErrors = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        private void record(long latencyNanos, HttpStatus status) {
+            latencies.add(latencyNanos);
+            if (status == HttpStatus.CONFLICT) {
+                conflicts.incrementAndGet();
+            } else if (status.is2xxSuccessful()) {
+                succeeded.incrementAndGet();
+            } else if (status.is5xxServerError()) {
+                errors.incrementAndGet();
+            } else {
+                otherClientErrors.incrementAndGet();
+            }
+        }
+
+        private List<Long> sortedLatencies() {
+            List<Long> sorted;
+            synchronized (latencies) {
+                sorted = new ArrayList<>(latencies);
+            }
+            Collections.sort(sorted);
+            return sorted;
+        }
+    }
+}